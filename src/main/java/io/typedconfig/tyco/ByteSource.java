@@ -0,0 +1,188 @@
+package io.typedconfig.tyco;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lexer source over the UTF-8 bytes of a memory-mapped file. Every byte is exposed
+ * as one char, which is enough to scan the ASCII structure of a Tyco file; text is
+ * only decoded when a span of it is turned into a string. A missing trailing
+ * newline is presented as a virtual {@code '\n'}.
+ */
+final class ByteSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int size;
+    private final int length;
+    private final boolean ascii;
+    private final boolean carriageReturns;
+
+    private ByteSource(ByteBuffer bytes) throws MalformedInputException {
+        this.bytes = bytes;
+        this.size = bytes.limit();
+        boolean ascii = true;
+        boolean carriageReturns = false;
+        int i = 0;
+        while (i < size) {
+            int b = bytes.get(i) & 0xFF;
+            if (b < 0x80) {
+                if (b == '\r') {
+                    carriageReturns = true;
+                }
+                i++;
+            } else {
+                ascii = false;
+                i += validateSequence(i, b);
+            }
+        }
+        this.ascii = ascii;
+        this.carriageReturns = carriageReturns;
+        this.length = size > 0 && bytes.get(size - 1) != '\n' ? size + 1 : size;
+    }
+
+    /**
+     * Map a file read-only. Malformed UTF-8 is reported the same way as a failed
+     * {@link java.nio.file.Files#readString} would.
+     */
+    static ByteSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize >= Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            return new ByteSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize));
+        }
+    }
+
+    /**
+     * True when the file uses {@code \r} line endings, which the lexer cannot read
+     * from the raw bytes.
+     */
+    boolean hasCarriageReturns() {
+        return carriageReturns;
+    }
+
+    boolean isAscii() {
+        return ascii;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index == size) {
+            return '\n';
+        }
+        return (char) (bytes.get(index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new SourceSpan(this, start, end);
+    }
+
+    /**
+     * Decode {@code [start, end)} to a string. Offsets must fall on character
+     * boundaries, which holds for every offset the lexer produces since it only
+     * stops on ASCII characters.
+     */
+    String decode(int start, int end) {
+        int limit = Math.min(end, size);
+        byte[] data = new byte[Math.max(0, limit - start)];
+        ByteBuffer view = bytes.duplicate();
+        view.position(start);
+        view.get(data);
+        String text = new String(data, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        return end > size ? text + '\n' : text;
+    }
+
+    /**
+     * Number of UTF-16 chars encoded by {@code [start, end)}.
+     */
+    int charCount(int start, int end) {
+        if (ascii) {
+            return end - start;
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            int b = charAt(i);
+            if ((b & 0xC0) != 0x80) {
+                count += b >= 0xF0 ? 2 : 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Code point of the (possibly multi-byte) character starting at {@code index}.
+     */
+    int codePointAt(int index) {
+        int b = charAt(index);
+        if (b < 0x80) {
+            return b;
+        }
+        int len = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+        int cp = b & (0x3F >> (len - 1));
+        for (int i = 1; i < len; i++) {
+            cp = (cp << 6) | (charAt(index + i) & 0x3F);
+        }
+        return cp;
+    }
+
+    /**
+     * Offset of the first byte of the character that ends right before {@code end}.
+     */
+    int characterStart(int end) {
+        int i = end - 1;
+        while (i > 0 && (charAt(i) & 0xC0) == 0x80) {
+            i--;
+        }
+        return i;
+    }
+
+    static int sequenceLength(int lead) {
+        return lead < 0x80 ? 1 : lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+    }
+
+    private int validateSequence(int index, int lead) throws MalformedInputException {
+        int len;
+        int min = 0x80;
+        int max = 0xBF;
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            len = 2;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            len = 3;
+            if (lead == 0xE0) {
+                min = 0xA0;
+            } else if (lead == 0xED) {
+                max = 0x9F;
+            }
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            len = 4;
+            if (lead == 0xF0) {
+                min = 0x90;
+            } else if (lead == 0xF4) {
+                max = 0x8F;
+            }
+        } else {
+            throw new MalformedInputException(1);
+        }
+        if (index + len > size) {
+            throw new MalformedInputException(size - index);
+        }
+        for (int i = 1; i < len; i++) {
+            int b = bytes.get(index + i) & 0xFF;
+            if (b < (i == 1 ? min : 0x80) || b > (i == 1 ? max : 0xBF)) {
+                throw new MalformedInputException(i);
+            }
+        }
+        return len;
+    }
+}
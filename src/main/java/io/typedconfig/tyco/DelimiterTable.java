@@ -0,0 +1,102 @@
+package io.typedconfig.tyco;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable char-class table for the delimiters that may (good) or must not (bad)
+ * end an unquoted attribute value. Every delimiter is a single ASCII character
+ * except the end of line, which is kept as a flag. The tables for the places the
+ * lexer scans values from are built once.
+ */
+final class DelimiterTable {
+
+    static final String EOL = "\n";
+
+    private static final byte NONE = 0;
+    private static final byte GOOD = 1;
+    private static final byte BAD = 2;
+
+    /** Closing brackets and separators that are always bad unless explicitly good */
+    private static final List<String> STRUCTURAL = List.of("(", ")", "[", "]", ",");
+
+    /** Value of a global, a schema default or a local default */
+    static final DelimiterTable LINE = new DelimiterTable(List.of(EOL), List.of());
+    /** Positional or keyword argument on an instance line */
+    static final DelimiterTable INSTANCE = new DelimiterTable(List.of(",", EOL), List.of());
+    /** Element of a {@code [...]} array */
+    static final DelimiterTable ARRAY = new DelimiterTable(List.of("]", ","), List.of(")"));
+    /** Argument of an inline instance or reference {@code Type(...)} */
+    static final DelimiterTable CALL = new DelimiterTable(List.of(")", ","), List.of("]"));
+
+    private final byte[] classes = new byte[128];
+    private final String[] delimiters = new String[128];
+    private final boolean eol;
+    private final String goodText;
+    private final String allText;
+
+    private DelimiterTable(List<String> good, List<String> bad) {
+        Set<String> goodSet = new HashSet<>(good);
+        Set<String> badSet = new HashSet<>(bad);
+        badSet.addAll(STRUCTURAL);
+        badSet.removeAll(goodSet);
+        for (String delim : goodSet) {
+            register(delim, GOOD);
+        }
+        for (String delim : badSet) {
+            register(delim, BAD);
+        }
+        Set<String> all = new HashSet<>(goodSet);
+        all.addAll(badSet);
+        this.eol = goodSet.contains(EOL);
+        // messages list the delimiters the way the reference implementation prints its sets
+        this.goodText = goodSet.toString();
+        this.allText = all.toString();
+    }
+
+    private void register(String delim, byte kind) {
+        char ch = delim.charAt(0);
+        if (delim.length() != 1 || ch >= classes.length) {
+            throw new IllegalArgumentException("Delimiters must be single ASCII characters: " + delim);
+        }
+        classes[ch] = kind;
+        delimiters[ch] = delim;
+    }
+
+    /** Whether the value may end at the end of the line (or at a comment) */
+    boolean acceptsEol() {
+        return eol;
+    }
+
+    /**
+     * Whether {@code ch} is a good delimiter. A newline counts when the end of line
+     * is accepted.
+     */
+    boolean isGood(char ch) {
+        return ch < classes.length && classes[ch] == GOOD;
+    }
+
+    boolean isDelimiter(char ch) {
+        return ch < classes.length && classes[ch] != NONE && ch != '\n';
+    }
+
+    boolean isBad(char ch) {
+        return ch < classes.length && classes[ch] == BAD;
+    }
+
+    /** The delimiter string for a character accepted by {@link #isGood} or {@link #isDelimiter} */
+    String delimiter(char ch) {
+        return delimiters[ch];
+    }
+
+    /** The good delimiters, formatted for error messages */
+    String describeGood() {
+        return goodText;
+    }
+
+    /** Good and bad delimiters, formatted for error messages */
+    String describeAll() {
+        return allText;
+    }
+}
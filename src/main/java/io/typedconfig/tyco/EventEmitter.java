@@ -0,0 +1,75 @@
+package io.typedconfig.tyco;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Renders what the lexer produces one piece at a time and hands it to a
+ * {@link TycoEventHandler}. Instances are rendered on their own and then dropped.
+ */
+final class EventEmitter {
+    private final TycoContext context;
+    private final TycoEventHandler handler;
+    private final String instanceType;
+    private final Consumer<TycoInstance> instances;
+
+    EventEmitter(TycoContext context, TycoEventHandler handler) {
+        this(context, handler, null);
+    }
+
+    /**
+     * @param instanceType only instances of this struct are rendered and passed on,
+     *                     null for all
+     */
+    EventEmitter(TycoContext context, TycoEventHandler handler, String instanceType) {
+        this.context = context;
+        this.handler = handler;
+        this.instanceType = instanceType;
+        this.instances = null;
+    }
+
+    /**
+     * Hands the rendered instances of {@code instanceType} themselves to {@code instances}
+     * instead of their Maps; nothing else is passed on
+     */
+    EventEmitter(TycoContext context, Consumer<TycoInstance> instances, String instanceType) {
+        this.context = context;
+        this.handler = new TycoEventHandler() { };
+        this.instanceType = instanceType;
+        this.instances = instances;
+    }
+
+    void include(String path) {
+        handler.onInclude(path);
+    }
+
+    void global(String attrName, TycoAttribute attr) {
+        attr.setParent(context.getGlobals());
+        attr.renderBaseContent();
+        attr.renderTemplates();
+        handler.onGlobal(attrName, attr.toJson());
+    }
+
+    void schema(TycoStruct struct) {
+        handler.onStructSchema(struct);
+    }
+
+    @SuppressWarnings("unchecked")
+    void instance(TycoInstance instance) {
+        if (instanceType != null && !instanceType.equals(instance.getTypeName())) {
+            return;
+        }
+        instance.setParent();
+        instance.renderBaseContent();
+        instance.renderTemplates();
+        if (instances != null) {
+            instances.accept(instance);
+            return;
+        }
+        handler.onInstance(instance.getTypeName(), (Map<String, Object>) instance.toJson());
+    }
+
+    void end() {
+        handler.onEnd();
+    }
+}
@@ -0,0 +1,129 @@
+package io.typedconfig.tyco;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Private context a single file is lexed into on a worker thread before it is
+ * merged into the shared context (see {@link TycoContext#merge}), or to be kept in
+ * a {@link TycoIncludeCache}. Lexing a file
+ * only depends on other files through the structs it looks up and the files it
+ * includes, so both are recorded to tell whether the result is the same as lexing
+ * the file into the shared context would have been. A file can also be lexed
+ * against copies of the schemas of the structs that earlier files define (see
+ * {@link #borrowSchemas}), so that the instances it adds to them can be kept too.
+ */
+final class ForkedContext extends TycoContext {
+    private final Set<String> missingStructs = new HashSet<>();
+    private final Set<String> borrowedStructs = new HashSet<>();
+    private boolean includes;
+    private RuntimeException failure;
+
+    ForkedContext(TycoContext parent) {
+        super(parent.getOptions(), parent.getSourcePositions(), parent.getInternPool());
+    }
+
+    @Override
+    public TycoStruct getStruct(String typeName) {
+        TycoStruct struct = super.getStruct(typeName);
+        if (struct == null) {
+            synchronized (missingStructs) {
+                missingStructs.add(typeName);
+            }
+        }
+        return struct;
+    }
+
+    @Override
+    TycoLexer getCachedLexer(String path) {
+        includes = true;
+        return super.getCachedLexer(path);
+    }
+
+    @Override
+    void adopt(TycoContext lexed) {
+        super.adopt(lexed);
+        if (lexed instanceof ForkedContext) {
+            Set<String> lookups = ((ForkedContext) lexed).missingStructs;
+            synchronized (missingStructs) {
+                missingStructs.addAll(lookups);
+            }
+        }
+    }
+
+    /**
+     * Lex against copies of the schemas of {@code structs}, without their instances.
+     * Adopting the result appends the instances lexed for them to the structs of
+     * the same name, which must have the same schema by then.
+     */
+    void borrowSchemas(Collection<TycoStruct> structs) {
+        for (TycoStruct struct : structs) {
+            addStruct(struct.getTypeName()).copySchemaFrom(struct);
+            borrowedStructs.add(struct.getTypeName());
+        }
+    }
+
+    boolean isBorrowed(String typeName) {
+        return borrowedStructs.contains(typeName);
+    }
+
+    void fail(RuntimeException failure) {
+        this.failure = failure;
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Whether the file has to be lexed again in {@code parent}: lexing failed (the
+     * error may depend on earlier files), it includes other files, or it depends on
+     * the structs of {@code parent} (see {@link #dependsOnStructsOf}).
+     */
+    boolean needsRelex(TycoContext parent) {
+        return failure != null || includes || dependsOnStructsOf(parent);
+    }
+
+    /**
+     * Whether copying this into {@code context} with {@link TycoContext#adopt} gives
+     * what lexing the same files into it would: lexing succeeded, the context has
+     * not read any of the files nor defines any of the globals yet, and it does not
+     * define the structs this defines, but does define those it was lexed against.
+     */
+    boolean canBeAdoptedBy(TycoContext context) {
+        if (failure != null) {
+            return false;
+        }
+        for (String path : getCachedPaths()) {
+            if (context.getCachedLexer(path) != null) {
+                return false;
+            }
+        }
+        for (String attrName : getGlobals().keySet()) {
+            if (context.getGlobalAttribute(attrName) != null) {
+                return false;
+            }
+        }
+        return !dependsOnStructsOf(context);
+    }
+
+    /**
+     * Whether this defines or looked up a struct that {@code parent} already defines,
+     * or was lexed against a struct schema that {@code parent} does not define alike.
+     */
+    boolean dependsOnStructsOf(TycoContext parent) {
+        for (TycoStruct struct : structs()) {
+            TycoStruct defined = parent.getStruct(struct.getTypeName());
+            if (borrowedStructs.contains(struct.getTypeName()) ? defined == null || !defined.hasSchemaOf(struct) : defined != null) {
+                return true;
+            }
+        }
+        for (String typeName : missingStructs) {
+            if (parent.getStruct(typeName) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,79 @@
+package io.typedconfig.tyco;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Pulls the instances of one struct out of a list of files. The lexer is only
+ * stepped as far as needed to produce the next instance, so a consumer sees the
+ * first instance right away and the parse never gets ahead of it by more than one
+ * line (or one included file).
+ */
+final class InstanceSpliterator implements Spliterator<Map<String, Object>>, TycoEventHandler {
+    private final TycoContext context;
+    private final Iterator<String> paths;
+    private final Deque<Map<String, Object>> pending = new ArrayDeque<>();
+    private TycoLexer lexer;
+    private String lexerPath;
+
+    InstanceSpliterator(TycoContext context, List<String> paths, String typeName) {
+        this.context = context;
+        this.paths = paths.iterator();
+        context.setEvents(new EventEmitter(context, this, typeName));
+    }
+
+    @Override
+    public void onInstance(String typeName, Map<String, Object> fields) {
+        pending.addLast(fields);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map<String, Object>> action) {
+        while (pending.isEmpty()) {
+            if (lexer != null && lexer.step()) {
+                continue;
+            }
+            if (lexer != null) {
+                // cached like TycoLexer.fromPath does, so later includes of it are no-ops
+                context.cacheLexer(lexerPath, lexer);
+            }
+            lexer = nextLexer();
+            if (lexer == null) {
+                return false;
+            }
+        }
+        action.accept(pending.removeFirst());
+        return true;
+    }
+
+    private TycoLexer nextLexer() {
+        while (paths.hasNext()) {
+            String path = paths.next();
+            if (context.getCachedLexer(path) == null) {
+                lexerPath = path;
+                return TycoLexer.open(context, path);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Spliterator<Map<String, Object>> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,347 @@
+package io.typedconfig.tyco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes the JSON of {@link TycoContext#toObject()} straight from the rendered
+ * attributes, without building its maps. Output is compact and written as Jackson
+ * writes the maps: same order, numbers as {@code toString()} gives them, NaN and
+ * infinities as strings, and only quotes, backslashes and control characters
+ * escaped. Text goes through a char buffer taken from a small pool; for streams it
+ * is encoded to UTF-8 through a pooled byte buffer as well.
+ */
+final class JsonWriter {
+    private static final int CHARS = 8192;
+    private static final int BYTES = 3 * CHARS;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // buffers of finished writers, for the next ones
+    private static final ArrayBlockingQueue<char[]> CHAR_POOL = new ArrayBlockingQueue<>(16);
+    private static final ArrayBlockingQueue<byte[]> BYTE_POOL = new ArrayBlockingQueue<>(16);
+
+    private final Writer writer;
+    private final OutputStream stream;
+    private char[] buf;
+    private int pos;
+    private byte[] bytes;
+    // instances being written, outermost first, to stop at reference cycles
+    private final List<TycoInstance> path = new ArrayList<>();
+
+    private JsonWriter(Writer writer, OutputStream stream) {
+        this.writer = writer;
+        this.stream = stream;
+        this.buf = CHAR_POOL.poll();
+        if (buf == null) {
+            buf = new char[CHARS];
+        }
+        if (stream != null) {
+            bytes = BYTE_POOL.poll();
+            if (bytes == null) {
+                bytes = new byte[BYTES];
+            }
+        }
+    }
+
+    /**
+     * Write the globals and the instances of the structs with primary keys to
+     * {@code writer}, which is flushed but not closed
+     */
+    static void write(Map<String, TycoAttribute> globals, Collection<TycoStruct> structs, Writer writer) throws IOException {
+        new JsonWriter(writer, null).writeContent(globals, structs);
+    }
+
+    /**
+     * Like {@link #write(Map, Collection, Writer)}, as UTF-8 to {@code stream}
+     */
+    static void write(Map<String, TycoAttribute> globals, Collection<TycoStruct> structs, OutputStream stream) throws IOException {
+        new JsonWriter(null, stream).writeContent(globals, structs);
+    }
+
+    private void writeContent(Map<String, TycoAttribute> globals, Collection<TycoStruct> structs) throws IOException {
+        try {
+            char separator = '{';
+            for (Map.Entry<String, TycoAttribute> entry : globals.entrySet()) {
+                append(separator);
+                separator = ',';
+                writeName(entry.getKey());
+                writeAttribute(entry.getValue());
+            }
+            for (TycoStruct struct : structs) {
+                if (struct.getPrimaryKeys().isEmpty()) {
+                    continue;
+                }
+                append(separator);
+                separator = ',';
+                writeName(struct.getTypeName());
+                char itemSeparator = '[';
+                for (TycoInstance instance : struct.instances()) {
+                    append(itemSeparator);
+                    itemSeparator = ',';
+                    writeInstance(instance);
+                }
+                if (itemSeparator == '[') {
+                    append('[');
+                }
+                append(']');
+            }
+            if (separator == '{') {
+                append('{');
+            }
+            append('}');
+            flushBuffer(true);
+            if (writer != null) {
+                writer.flush();
+            } else {
+                stream.flush();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        CHAR_POOL.offer(buf);
+        if (bytes != null) {
+            BYTE_POOL.offer(bytes);
+        }
+        buf = null;
+        bytes = null;
+    }
+
+    private void writeAttribute(TycoAttribute attr) throws IOException {
+        if (attr instanceof TycoValue) {
+            Object value = attr.getRendered();
+            // as TycoValue.toJson() gives it
+            if (value instanceof BigDecimal) {
+                writeDouble(((BigDecimal) value).doubleValue());
+            } else {
+                writeValue(value);
+            }
+        } else if (attr instanceof TycoInstance) {
+            writeInstance((TycoInstance) attr);
+        } else if (attr instanceof TycoReference && ((TycoReference) attr).getTarget() != null) {
+            writeInstance(((TycoReference) attr).getTarget());
+        } else if (attr instanceof TycoArray) {
+            char separator = '[';
+            for (TycoAttribute item : ((TycoArray) attr).items()) {
+                append(separator);
+                separator = ',';
+                writeAttribute(item);
+            }
+            if (separator == '[') {
+                append('[');
+            }
+            append(']');
+        } else {
+            writeValue(attr.toJson());
+        }
+    }
+
+    private void writeInstance(TycoInstance instance) throws IOException {
+        TycoInstance.checkCycle(path, instance);
+        path.add(instance);
+        char separator = '{';
+        for (Map.Entry<String, TycoAttribute> entry : instance.attributes().entrySet()) {
+            append(separator);
+            separator = ',';
+            writeName(entry.getKey());
+            writeAttribute(entry.getValue());
+        }
+        if (separator == '{') {
+            append('{');
+        }
+        append('}');
+        path.remove(path.size() - 1);
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            appendAscii("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            appendAscii((Boolean) value ? "true" : "false");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeFloating(((Number) value).doubleValue(), value.toString());
+        } else if (value instanceof Number) {
+            appendAscii(value.toString());
+        } else if (value instanceof TycoAttribute) {
+            writeAttribute((TycoAttribute) value);
+        } else if (value instanceof Map<?, ?>) {
+            char separator = '{';
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                append(separator);
+                separator = ',';
+                writeName(String.valueOf(entry.getKey()));
+                writeValue(entry.getValue());
+            }
+            if (separator == '{') {
+                append('{');
+            }
+            append('}');
+        } else if (value instanceof Collection<?>) {
+            char separator = '[';
+            for (Object item : (Collection<?>) value) {
+                append(separator);
+                separator = ',';
+                writeValue(item);
+            }
+            if (separator == '[') {
+                append('[');
+            }
+            append(']');
+        } else {
+            writeString(String.valueOf(value));
+        }
+    }
+
+    private void writeName(String name) throws IOException {
+        writeString(name);
+        append(':');
+    }
+
+    private void writeDouble(double value) throws IOException {
+        writeFloating(value, Double.toString(value));
+    }
+
+    private void writeFloating(double value, String text) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeString(text);
+        } else {
+            appendAscii(text);
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            appendAscii(Long.toString(value));
+            return;
+        }
+        if (pos + 20 > buf.length) {
+            flushBuffer(false);
+        }
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        pos = end;
+    }
+
+    private void writeString(String text) throws IOException {
+        append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (pos + 6 > buf.length) {
+                flushBuffer(false);
+            }
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                buf[pos++] = c;
+                continue;
+            }
+            buf[pos++] = '\\';
+            switch (c) {
+                case '"': buf[pos++] = '"'; break;
+                case '\\': buf[pos++] = '\\'; break;
+                case '\b': buf[pos++] = 'b'; break;
+                case '\f': buf[pos++] = 'f'; break;
+                case '\n': buf[pos++] = 'n'; break;
+                case '\r': buf[pos++] = 'r'; break;
+                case '\t': buf[pos++] = 't'; break;
+                default:
+                    buf[pos++] = 'u';
+                    buf[pos++] = '0';
+                    buf[pos++] = '0';
+                    buf[pos++] = HEX[c >> 4];
+                    buf[pos++] = HEX[c & 0xf];
+            }
+        }
+        append('"');
+    }
+
+    private void appendAscii(String text) throws IOException {
+        for (int start = 0; start < text.length(); ) {
+            if (pos == buf.length) {
+                flushBuffer(false);
+            }
+            int end = Math.min(text.length(), start + buf.length - pos);
+            text.getChars(start, end, buf, pos);
+            pos += end - start;
+            start = end;
+        }
+    }
+
+    private void append(char c) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer(false);
+        }
+        buf[pos++] = c;
+    }
+
+    /**
+     * Pass the buffered text on. For streams a high surrogate at the end waits for
+     * the low one that follows, unless this is the {@code last} flush; lone
+     * surrogates become '?', as with {@link String#getBytes}.
+     */
+    private void flushBuffer(boolean last) throws IOException {
+        if (writer != null) {
+            writer.write(buf, 0, pos);
+            pos = 0;
+            return;
+        }
+        int end = pos;
+        if (!last && end > 0 && Character.isHighSurrogate(buf[end - 1])) {
+            end--;
+        }
+        int n = 0;
+        for (int i = 0; i < end; i++) {
+            if (n > bytes.length - 4) {
+                stream.write(bytes, 0, n);
+                n = 0;
+            }
+            char c = buf[i];
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xc0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(buf[i + 1])) {
+                int codePoint = Character.toCodePoint(c, buf[++i]);
+                bytes[n++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                bytes[n++] = '?';
+            } else {
+                bytes[n++] = (byte) (0xe0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        stream.write(bytes, 0, n);
+        if (end < pos) {
+            buf[0] = buf[end];
+            pos = 1;
+        } else {
+            pos = 0;
+        }
+    }
+}
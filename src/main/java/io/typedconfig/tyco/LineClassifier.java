@@ -0,0 +1,256 @@
+package io.typedconfig.tyco;
+
+/**
+ * Hand-written replacement for the structural regexes of the lexer. A line is
+ * looked at once and classified by its first characters; the spans that the
+ * regex groups used to capture are left in the fields of the classifier, so one
+ * instance is reused for every line of a lexer.
+ *
+ * <p>Character classes follow {@code java.util.regex} defaults: {@code \s} and
+ * {@code \w} are ASCII only, identifiers may not start with a digit.
+ */
+final class LineClassifier {
+
+    enum Kind {
+        /** {@code #include path} */
+        INCLUDE,
+        /** {@code [?]type[[]] name:} at the start of a line */
+        GLOBAL,
+        /** {@code Type:} */
+        STRUCT_BLOCK,
+        /** indented {@code [*?]type[[]] name:} */
+        SCHEMA,
+        /** indented {@code name:} */
+        DEFAULT,
+        /** optionally indented {@code -} */
+        INSTANCE,
+        OTHER
+    }
+
+    Kind kind;
+    /** {@code '*'}, {@code '?'} or 0 */
+    char option;
+    int typeStart;
+    int typeEnd;
+    boolean array;
+    int attrStart;
+    int attrEnd;
+    /** End of the structural prefix, i.e. where the value of the line starts */
+    int end;
+
+    /**
+     * Classify the line text {@code [start, limit)}, which includes its newline.
+     */
+    Kind classify(CharSequence text, int start, int limit) {
+        kind = Kind.OTHER;
+        option = 0;
+        array = false;
+        if (start >= limit) {
+            return kind;
+        }
+        char first = text.charAt(start);
+        if (first == '#') {
+            if (matchInclude(text, start, limit)) {
+                kind = Kind.INCLUDE;
+            }
+        } else if (first == '-') {
+            kind = Kind.INSTANCE;
+            end = start + 1;
+        } else if (isSpace(first)) {
+            int i = skipSpace(text, start, limit);
+            if (i < limit && text.charAt(i) == '-') {
+                kind = Kind.INSTANCE;
+                end = i + 1;
+            } else if (matchDeclaration(text, i, limit, true)) {
+                kind = Kind.SCHEMA;
+            } else if (matchAttrColon(text, i, limit)) {
+                kind = Kind.DEFAULT;
+            }
+        } else if (first == '?' || isIdentStart(first)) {
+            if (matchDeclaration(text, start, limit, false)) {
+                kind = Kind.GLOBAL;
+            } else if (first != '?') {
+                int identEnd = skipWord(text, start, limit);
+                if (identEnd < limit && text.charAt(identEnd) == ':') {
+                    kind = Kind.STRUCT_BLOCK;
+                    typeStart = start;
+                    typeEnd = identEnd;
+                    end = identEnd + 1;
+                }
+            }
+        }
+        return kind;
+    }
+
+    /**
+     * {@code name\s*:\s*} at {@code start}; sets the attribute span and {@link #end}.
+     */
+    boolean matchIdentifierColon(CharSequence text, int start, int limit) {
+        if (!matchAttrColon(text, start, limit)) {
+            return false;
+        }
+        end = skipSpace(text, end, limit);
+        return true;
+    }
+
+    /**
+     * {@code Type(} at {@code start}; sets the type span and {@link #end}.
+     */
+    boolean matchCall(CharSequence text, int start, int limit) {
+        int identEnd = skipWord(text, start, limit);
+        if (identEnd == start || identEnd >= limit || text.charAt(identEnd) != '(') {
+            return false;
+        }
+        typeStart = start;
+        typeEnd = identEnd;
+        end = identEnd + 1;
+        return true;
+    }
+
+    /**
+     * Whether {@code [start, end)} is exactly {@code \s+\w+\s+\w+}, i.e. a schema
+     * line that lost its colon.
+     */
+    static boolean isMissingColon(CharSequence text, int start, int end) {
+        int i = start;
+        for (int part = 0; part < 2; part++) {
+            int spaceEnd = skipSpace(text, i, end);
+            int wordEnd = skipWord(text, spaceEnd, end);
+            if (spaceEnd == i || wordEnd == spaceEnd) {
+                return false;
+            }
+            i = wordEnd;
+        }
+        return i == end;
+    }
+
+    /**
+     * {@code #include\s+(\S.*)} over the line with trailing whitespace removed. The
+     * path is captured as the attribute span; the caller still has to reject paths
+     * containing line separators, which {@code .} would not have matched.
+     */
+    private boolean matchInclude(CharSequence text, int start, int limit) {
+        int stop = limit;
+        while (stop > start) {
+            char ch = text.charAt(stop - 1);
+            if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') {
+                stop--;
+            } else {
+                break;
+            }
+        }
+        String keyword = "#include";
+        if (stop - start <= keyword.length()) {
+            return false;
+        }
+        for (int k = 0; k < keyword.length(); k++) {
+            if (text.charAt(start + k) != keyword.charAt(k)) {
+                return false;
+            }
+        }
+        int i = start + keyword.length();
+        if (!isSpace(text.charAt(i))) {
+            return false;
+        }
+        i = skipSpace(text, i, stop);
+        if (i >= stop) {
+            return false;
+        }
+        attrStart = i;
+        attrEnd = stop;
+        end = stop;
+        return true;
+    }
+
+    /**
+     * {@code [option]type[[]]\s+name\s*:} where the option is {@code *} or {@code ?}
+     * for schema lines and only {@code ?} for globals.
+     */
+    private boolean matchDeclaration(CharSequence text, int start, int limit, boolean schema) {
+        int i = start;
+        char opt = 0;
+        if (i < limit) {
+            char ch = text.charAt(i);
+            if (ch == '?' || (schema && ch == '*')) {
+                opt = ch;
+                i++;
+            }
+        }
+        if (i >= limit || !isIdentStart(text.charAt(i))) {
+            return false;
+        }
+        int identStart = i;
+        i = skipWord(text, i, limit);
+        int identEnd = i;
+        boolean isArray = false;
+        if (i + 1 < limit && text.charAt(i) == '[' && text.charAt(i + 1) == ']') {
+            isArray = true;
+            i += 2;
+        }
+        int spaceEnd = skipSpace(text, i, limit);
+        if (spaceEnd == i || !matchAttrColon(text, spaceEnd, limit)) {
+            return false;
+        }
+        option = opt;
+        typeStart = identStart;
+        typeEnd = identEnd;
+        array = isArray;
+        return true;
+    }
+
+    /**
+     * {@code name\s*:} where the name may contain dots; sets the attribute span and
+     * {@link #end} (just past the colon).
+     */
+    private boolean matchAttrColon(CharSequence text, int start, int limit) {
+        if (start >= limit || !isIdentStart(text.charAt(start)) && text.charAt(start) != '.') {
+            return false;
+        }
+        int i = start;
+        while (i < limit) {
+            char ch = text.charAt(i);
+            if (!isWord(ch) && ch != '.') {
+                break;
+            }
+            i++;
+        }
+        int nameEnd = i;
+        i = skipSpace(text, i, limit);
+        if (i >= limit || text.charAt(i) != ':') {
+            return false;
+        }
+        attrStart = start;
+        attrEnd = nameEnd;
+        end = i + 1;
+        return true;
+    }
+
+    private static int skipSpace(CharSequence text, int i, int limit) {
+        while (i < limit && isSpace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipWord(CharSequence text, int i, int limit) {
+        while (i < limit && isWord(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /** {@code \s} */
+    static boolean isSpace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+
+    /** {@code \w} */
+    static boolean isWord(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+
+    /** {@code (?!\d)\w} */
+    private static boolean isIdentStart(char ch) {
+        return isWord(ch) && !(ch >= '0' && ch <= '9');
+    }
+}
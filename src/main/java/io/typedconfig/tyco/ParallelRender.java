@@ -0,0 +1,115 @@
+package io.typedconfig.tyco;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Runs one render phase over the instances of a context in parallel chunks. Each
+ * instance is rendered by a single thread, and the phases are the barriers between
+ * runs. When instances fail, the failure of the first one in order is thrown,
+ * which is the one a sequential run would have stopped at.
+ */
+final class ParallelRender implements AutoCloseable {
+    private static final int MIN_CHUNK = 256;
+
+    private final ExecutorService pool;
+    private final Executor executor;
+    private final int threads;
+
+    ParallelRender(TycoParserOptions options) {
+        if (options.getExecutor() != null) {
+            this.pool = null;
+            this.executor = options.getExecutor();
+            this.threads = Math.max(options.getParallelism(), Runtime.getRuntime().availableProcessors());
+        } else if (options.getParallelism() > 1) {
+            this.pool = new ForkJoinPool(options.getParallelism());
+            this.executor = pool;
+            this.threads = options.getParallelism();
+        } else {
+            this.pool = null;
+            this.executor = ForkJoinPool.commonPool();
+            this.threads = ForkJoinPool.getCommonPoolParallelism();
+        }
+    }
+
+    <T> void forEach(List<T> items, Consumer<? super T> action) {
+        int size = items.size();
+        int chunk = Math.max(MIN_CHUNK, size / (threads * 4) + 1);
+        AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+        List<CompletableFuture<Failure>> chunks = new ArrayList<>();
+        for (int start = 0; start < size; start += chunk) {
+            int from = start;
+            int to = Math.min(size, start + chunk);
+            chunks.add(CompletableFuture.supplyAsync(() -> {
+                for (int i = from; i < to && i < firstFailure.get(); i++) {
+                    try {
+                        action.accept(items.get(i));
+                    } catch (RuntimeException e) {
+                        firstFailure.accumulateAndGet(i, Math::min);
+                        return new Failure(i, e);
+                    }
+                }
+                return null;
+            }, executor));
+        }
+
+        Failure first = null;
+        for (CompletableFuture<Failure> future : chunks) {
+            Failure failure = future.join();
+            if (failure != null && (first == null || failure.index < first.index)) {
+                first = failure;
+            }
+        }
+        if (first != null) {
+            throw first.exception;
+        }
+    }
+
+    /**
+     * Whether any item matches, evaluated in parallel. The predicate must not change
+     * anything.
+     */
+    <T> boolean anyMatch(List<T> items, Predicate<? super T> predicate) {
+        int size = items.size();
+        int chunk = Math.max(MIN_CHUNK, size / (threads * 4) + 1);
+        AtomicInteger found = new AtomicInteger();
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int start = 0; start < size; start += chunk) {
+            int from = start;
+            int to = Math.min(size, start + chunk);
+            chunks.add(CompletableFuture.runAsync(() -> {
+                for (int i = from; i < to && found.get() == 0; i++) {
+                    if (predicate.test(items.get(i))) {
+                        found.set(1);
+                    }
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).join();
+        return found.get() != 0;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Failure {
+        final int index;
+        final RuntimeException exception;
+
+        Failure(int index, RuntimeException exception) {
+            this.index = index;
+            this.exception = exception;
+        }
+    }
+}
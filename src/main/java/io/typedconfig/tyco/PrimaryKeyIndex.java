@@ -0,0 +1,324 @@
+package io.typedconfig.tyco;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Instances of a struct by the rendered values of their primary keys, specialized
+ * for the shape of the key: one int, any other single value (most often a string),
+ * or several values. Lookups compare values like {@code List.equals} would, except
+ * that int keys also match whatever the boxed type of the number.
+ *
+ * <p>Reads are safe from several threads once loaded, as during parallel rendering.
+ */
+abstract class PrimaryKeyIndex {
+    final List<String> primaryKeys;
+
+    PrimaryKeyIndex(List<String> primaryKeys) {
+        this.primaryKeys = primaryKeys;
+    }
+
+    static PrimaryKeyIndex of(List<String> primaryKeys, Map<String, String> attrTypes) {
+        if (primaryKeys.size() > 1) {
+            return new CompositeKeyIndex(primaryKeys);
+        }
+        if ("int".equals(attrTypes.get(primaryKeys.get(0)))) {
+            return new LongKeyIndex(primaryKeys);
+        }
+        return new SingleKeyIndex(primaryKeys);
+    }
+
+    /** The instance with a single primary key value, or null */
+    abstract TycoInstance get(Object key);
+
+    /** The instance with the primary key values in key order, or null */
+    abstract TycoInstance get(Object[] key);
+
+    /** The instance with a single int primary key, or null */
+    TycoInstance get(long key) {
+        return get((Object) key);
+    }
+
+    /** Add {@code inst} unless an instance with the same key is there, which is returned */
+    abstract TycoInstance putIfAbsent(TycoInstance inst);
+
+    /** Remove {@code inst} if it is the instance under its key */
+    abstract void remove(TycoInstance inst);
+
+    abstract void clear();
+
+    /** The key of {@code inst} the way error messages show it */
+    List<Object> keyOf(TycoInstance inst) {
+        return Arrays.asList(keyValues(inst));
+    }
+
+    Object[] keyValues(TycoInstance inst) {
+        Object[] values = new Object[primaryKeys.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = inst.getAttribute(primaryKeys.get(i)).getRendered();
+        }
+        return values;
+    }
+
+    Object singleKeyOf(TycoInstance inst) {
+        return inst.getAttribute(primaryKeys.get(0)).getRendered();
+    }
+
+    /**
+     * A single string or other non-int key, in a hash map; strings cache their hash
+     * code, so lookups do not allocate.
+     */
+    static final class SingleKeyIndex extends PrimaryKeyIndex {
+        private final Map<Object, TycoInstance> instances = new HashMap<>();
+
+        SingleKeyIndex(List<String> primaryKeys) {
+            super(primaryKeys);
+        }
+
+        @Override
+        TycoInstance get(Object key) {
+            return instances.get(key);
+        }
+
+        @Override
+        TycoInstance get(Object[] key) {
+            return key.length == 1 ? instances.get(key[0]) : null;
+        }
+
+        @Override
+        TycoInstance putIfAbsent(TycoInstance inst) {
+            return instances.putIfAbsent(singleKeyOf(inst), inst);
+        }
+
+        @Override
+        void remove(TycoInstance inst) {
+            instances.remove(singleKeyOf(inst), inst);
+        }
+
+        @Override
+        void clear() {
+            instances.clear();
+        }
+    }
+
+    /**
+     * A single int key, in an open addressing table of primitive longs
+     */
+    static final class LongKeyIndex extends PrimaryKeyIndex {
+        private long[] keys = new long[16];
+        private TycoInstance[] values = new TycoInstance[16];
+        private int size;
+
+        LongKeyIndex(List<String> primaryKeys) {
+            super(primaryKeys);
+        }
+
+        @Override
+        TycoInstance get(Object key) {
+            if (!(key instanceof Integer || key instanceof Long)) {
+                return null;
+            }
+            return get(((Number) key).longValue());
+        }
+
+        @Override
+        TycoInstance get(Object[] key) {
+            return key.length == 1 ? get(key[0]) : null;
+        }
+
+        @Override
+        TycoInstance get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        TycoInstance putIfAbsent(TycoInstance inst) {
+            long key = ((Number) singleKeyOf(inst)).longValue();
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            for (; values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            keys[slot] = key;
+            values[slot] = inst;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return null;
+        }
+
+        @Override
+        void remove(TycoInstance inst) {
+            long key = ((Number) singleKeyOf(inst)).longValue();
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] != inst) {
+                return;
+            }
+            values[slot] = null;
+            size--;
+            // move later entries of the same run back, so that no lookup stops early
+            for (int next = (slot + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                int home = slot(keys[next], mask);
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    values[next] = null;
+                    slot = next;
+                }
+            }
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            TycoInstance[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new TycoInstance[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = slot(oldKeys[i], mask);
+                    while (values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * Several key values, in an open addressing table of value arrays; lookups
+     * hash and compare the given values in place.
+     */
+    static final class CompositeKeyIndex extends PrimaryKeyIndex {
+        private Object[][] keys = new Object[16][];
+        private TycoInstance[] values = new TycoInstance[16];
+        private int size;
+
+        CompositeKeyIndex(List<String> primaryKeys) {
+            super(primaryKeys);
+        }
+
+        @Override
+        TycoInstance get(Object key) {
+            return null;
+        }
+
+        @Override
+        TycoInstance get(Object[] key) {
+            if (key.length != primaryKeys.size()) {
+                return null;
+            }
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if (Arrays.equals(keys[slot], key)) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        TycoInstance putIfAbsent(TycoInstance inst) {
+            Object[] key = keyValues(inst);
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            for (; values[slot] != null; slot = (slot + 1) & mask) {
+                if (Arrays.equals(keys[slot], key)) {
+                    return values[slot];
+                }
+            }
+            keys[slot] = key;
+            values[slot] = inst;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return null;
+        }
+
+        @Override
+        void remove(TycoInstance inst) {
+            int mask = keys.length - 1;
+            int slot = hash(keyValues(inst)) & mask;
+            while (values[slot] != null && values[slot] != inst) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == null) {
+                return;
+            }
+            keys[slot] = null;
+            values[slot] = null;
+            size--;
+            for (int next = (slot + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                int home = hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    keys[next] = null;
+                    values[next] = null;
+                    slot = next;
+                }
+            }
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void resize() {
+            Object[][] oldKeys = keys;
+            TycoInstance[] oldValues = values;
+            keys = new Object[oldKeys.length * 2][];
+            values = new TycoInstance[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(Object[] key) {
+            int hash = 1;
+            for (Object value : key) {
+                hash = 31 * hash + Objects.hashCode(value);
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io.typedconfig.tyco;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes over the rendered instances of a struct for {@link TycoQuery}, built per
+ * attribute on first use: hash indexes for equality, sorted indexes for ranges and
+ * prefixes. They give rows, the positions of instances in the instance list, in
+ * ascending order. A struct drops its indexes when the context is updated.
+ *
+ * <p>Values are compared as rendered, except that integral numbers compare equal
+ * whatever their boxed type, references compare by the instance they resolved to,
+ * and numbers of different kinds compare by value in ranges.
+ */
+final class QueryIndexes {
+    private static final int[] NO_ROWS = new int[0];
+
+    private final List<TycoInstance> instances;
+    private final Map<String, Map<Object, int[]>> hashIndexes = new ConcurrentHashMap<>();
+    private final Map<String, SortedIndex> sortedIndexes = new ConcurrentHashMap<>();
+
+    QueryIndexes(List<TycoInstance> instances) {
+        this.instances = instances;
+    }
+
+    TycoInstance instance(int row) {
+        return instances.get(row);
+    }
+
+    int size() {
+        return instances.size();
+    }
+
+    /** Rows whose value equals {@code value} */
+    int[] equal(String attrName, Object value) {
+        int[] rows = hashIndexes.computeIfAbsent(attrName, this::buildHashIndex).get(normalize(value));
+        return rows == null ? NO_ROWS : rows;
+    }
+
+    /** Rows with a value from {@code from} to {@code to}, both included; null bounds are open */
+    int[] between(String attrName, Object from, Object to) {
+        SortedIndex index = sortedIndexes.computeIfAbsent(attrName, this::buildSortedIndex);
+        int start = from == null ? 0 : index.lowerBound(normalize(from));
+        int end = to == null ? index.keys.length : index.upperBound(normalize(to));
+        return index.rows(start, end);
+    }
+
+    /** Rows with a string value starting with {@code prefix} */
+    int[] startingWith(String attrName, String prefix) {
+        SortedIndex index = sortedIndexes.computeIfAbsent(attrName, this::buildSortedIndex);
+        int start = index.lowerBound(prefix);
+        int end = start;
+        while (end < index.keys.length && index.keys[end] instanceof String && ((String) index.keys[end]).startsWith(prefix)) {
+            end++;
+        }
+        return index.rows(start, end);
+    }
+
+    private Map<Object, int[]> buildHashIndex(String attrName) {
+        Map<Object, int[]> counts = new HashMap<>();
+        Object[] keys = new Object[instances.size()];
+        for (int row = 0; row < keys.length; row++) {
+            keys[row] = keyOf(instances.get(row).getAttribute(attrName));
+            counts.computeIfAbsent(keys[row], k -> new int[1])[0]++;
+        }
+        Map<Object, int[]> index = new HashMap<>(counts.size() * 4 / 3 + 1);
+        for (int row = 0; row < keys.length; row++) {
+            int[] rows = index.computeIfAbsent(keys[row], k -> new int[counts.get(k)[0]]);
+            // fill from the back, counting down what is left
+            rows[rows.length - counts.get(keys[row])[0]--] = row;
+        }
+        return index;
+    }
+
+    private SortedIndex buildSortedIndex(String attrName) {
+        Object[] values = new Object[instances.size()];
+        int count = 0;
+        for (int row = 0; row < values.length; row++) {
+            values[row] = keyOf(instances.get(row).getAttribute(attrName));
+            if (values[row] != null) {
+                count++;
+            }
+        }
+        Integer[] order = new Integer[count];
+        for (int row = 0, i = 0; row < values.length; row++) {
+            if (values[row] != null) {
+                order[i++] = row;
+            }
+        }
+        Arrays.sort(order, Comparator.comparing((Integer row) -> values[row], QueryIndexes::compare));
+        Object[] keys = new Object[count];
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = order[i];
+            keys[i] = values[order[i]];
+        }
+        return new SortedIndex(keys, rows);
+    }
+
+    /** The value of an attribute as indexed */
+    private static Object keyOf(TycoAttribute attr) {
+        if (attr instanceof TycoReference) {
+            return ((TycoReference) attr).getTarget();
+        }
+        return attr == null ? null : normalize(attr.getRendered());
+    }
+
+    private static Object normalize(Object value) {
+        return value instanceof Integer ? (Object) ((Integer) value).longValue() : value;
+    }
+
+    static int compare(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            return Long.compare((Long) a, (Long) b);
+        }
+        if (a instanceof Number && b instanceof Number) {
+            if (a instanceof BigDecimal || b instanceof BigDecimal) {
+                return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+            }
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        if (a instanceof Boolean && b instanceof Boolean) {
+            return ((Boolean) a).compareTo((Boolean) b);
+        }
+        throw new IllegalArgumentException("Cannot order " + a + " and " + b);
+    }
+
+    private static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        }
+        return number instanceof Long ? BigDecimal.valueOf(number.longValue()) : BigDecimal.valueOf(number.doubleValue());
+    }
+
+    /**
+     * Non-null values in order, with the row of each
+     */
+    private static final class SortedIndex {
+        final Object[] keys;
+        final int[] rows;
+
+        SortedIndex(Object[] keys, int[] rows) {
+            this.keys = keys;
+            this.rows = rows;
+        }
+
+        /** First position with a key not below {@code key} */
+        int lowerBound(Object key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(keys[mid], key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /** First position with a key above {@code key} */
+        int upperBound(Object key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(keys[mid], key) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /** Rows of the positions from {@code start} to {@code end}, ascending */
+        int[] rows(int start, int end) {
+            if (start >= end) {
+                return NO_ROWS;
+            }
+            int[] result = Arrays.copyOfRange(rows, start, end);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
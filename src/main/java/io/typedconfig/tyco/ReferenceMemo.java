@@ -0,0 +1,138 @@
+package io.typedconfig.tyco;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolved references of a struct by the raw text of their arguments, so that a
+ * reference written many times, like {@code Host(prod-01-us)}, is decoded and
+ * looked up once. The arguments of a later reference with the same text get the
+ * rendered values of the first one. Only references whose arguments are all plain
+ * values are kept. Safe for parallel rendering.
+ */
+final class ReferenceMemo {
+    private final Map<Key, Resolved> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Key of a reference by its arguments, null if it is not kept; taken before
+     * the arguments are resolved, which names the positional ones
+     */
+    Key keyOf(List<TycoAttribute> instArgs) {
+        for (int i = 0; i < instArgs.size(); i++) {
+            if (!(instArgs.get(i) instanceof TycoValue)) {
+                return null;
+            }
+        }
+        return new Key(instArgs);
+    }
+
+    /** The earlier resolution of references with the same argument text, or null */
+    Resolved get(Key key) {
+        return key == null ? null : resolved.get(key);
+    }
+
+    void put(Key key, Object[] rendered, TycoInstance target) {
+        if (key != null) {
+            resolved.put(key, new Resolved(rendered, target));
+        }
+    }
+
+    void clear() {
+        resolved.clear();
+    }
+
+    static final class Resolved {
+        // rendered value of each argument, in argument order
+        final Object[] rendered;
+        final TycoInstance target;
+
+        Resolved(Object[] rendered, TycoInstance target) {
+            this.rendered = rendered;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Argument names as written (null when positional) and raw texts, read from the
+     * arguments themselves: the text of a value never changes, its name may.
+     */
+    static final class Key {
+        private final List<TycoAttribute> args;
+        // null when all arguments are positional
+        private final String[] names;
+        private final int hash;
+
+        Key(List<TycoAttribute> args) {
+            this.args = args;
+            String[] names = null;
+            int hash = 1;
+            for (int i = 0; i < args.size(); i++) {
+                String name = args.get(i).getAttrName();
+                if (name != null) {
+                    if (names == null) {
+                        names = new String[args.size()];
+                    }
+                    names[i] = name;
+                }
+                hash = hash(hash, name, text(args, i));
+            }
+            this.names = names;
+            this.hash = hash;
+        }
+
+        private static int hash(int hash, String name, CharSequence text) {
+            hash = 31 * hash + (name == null ? 0 : name.hashCode());
+            for (int i = 0; i < text.length(); i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            return 31 * hash + text.length();
+        }
+
+        private static CharSequence text(List<TycoAttribute> args, int index) {
+            return ((TycoValue) args.get(index)).content();
+        }
+
+        private String name(int index) {
+            return names == null ? null : names[index];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || args.size() != other.args.size()) {
+                return false;
+            }
+            for (int i = 0; i < args.size(); i++) {
+                String name = name(i);
+                if (name == null ? other.name(i) != null : !name.equals(other.name(i))) {
+                    return false;
+                }
+                if (!contentEquals(text(args, i), text(other.args, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean contentEquals(CharSequence a, CharSequence b) {
+            if (a.length() != b.length()) {
+                return false;
+            }
+            for (int i = 0; i < a.length(); i++) {
+                if (a.charAt(i) != b.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package io.typedconfig.tyco;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * What the attributes of a rendered context read while rendering: the template
+ * values that read each attribute, and the references that resolve to each
+ * instance. {@link TycoContext} keeps it to re-render only the dependents of an
+ * attribute it replaces. It is built from the rendered context, by resolving the
+ * templates once more, so loads that never update pay nothing for it.
+ */
+final class RenderGraph {
+    // template value -> attributes, references and instances its templates read
+    private final Map<TycoValue, List<Object>> reads = new IdentityHashMap<>();
+    // attribute -> template values reading it
+    private final Map<Object, Set<TycoValue>> readers = new IdentityHashMap<>();
+    // instance -> references resolved to it
+    private final Map<TycoInstance, Set<TycoReference>> referrers = new IdentityHashMap<>();
+    // templates reading the globals table as a whole ({global}) see every change
+    private boolean readsGlobals;
+
+    /**
+     * Record what {@code attr} and the attributes in it read
+     */
+    void add(TycoAttribute attr) {
+        forEach(attr, item -> {
+            if (item instanceof TycoValue) {
+                addReads((TycoValue) item);
+            } else if (item instanceof TycoReference) {
+                TycoReference reference = (TycoReference) item;
+                referrers.computeIfAbsent(reference.getTarget(), k -> new LinkedHashSet<>()).add(reference);
+            }
+        });
+    }
+
+    /**
+     * Forget {@code attr} and the attributes in it, as readers and as read
+     */
+    void remove(TycoAttribute attr) {
+        forEach(attr, item -> {
+            if (item instanceof TycoValue) {
+                removeReads((TycoValue) item);
+            } else if (item instanceof TycoReference) {
+                TycoReference reference = (TycoReference) item;
+                Set<TycoReference> resolved = referrers.get(reference.getTarget());
+                if (resolved != null) {
+                    resolved.remove(reference);
+                }
+            }
+            readers.remove(item);
+        });
+        if (attr instanceof TycoInstance) {
+            referrers.remove(attr);
+        }
+    }
+
+    /**
+     * Record the reads of a template value again after it was re-rendered
+     */
+    void reread(TycoValue value) {
+        removeReads(value);
+        addReads(value);
+    }
+
+    /**
+     * References resolved to {@code attr}, except those inside it
+     */
+    Set<TycoReference> referrersOf(TycoAttribute attr) {
+        Set<TycoReference> result = new LinkedHashSet<>();
+        Set<TycoReference> resolved = attr instanceof TycoInstance ? referrers.get(attr) : null;
+        if (resolved != null) {
+            Set<Object> inside = contents(attr);
+            for (TycoReference reference : resolved) {
+                if (!inside.contains(reference)) {
+                    result.add(reference);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Template values reading {@code attr} or an attribute in it, except those inside it
+     */
+    Set<TycoValue> readersOf(TycoAttribute attr) {
+        Set<Object> inside = contents(attr);
+        Set<TycoValue> result = new LinkedHashSet<>();
+        for (Object item : inside) {
+            Set<TycoValue> itemReaders = readers.get(item);
+            if (itemReaders != null) {
+                for (TycoValue reader : itemReaders) {
+                    if (!inside.contains(reader)) {
+                        result.add(reader);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether re-rendering only {@code replacement} and {@code dependents} could give
+     * another result than rendering everything again. Templates see the values they
+     * read as they are at that moment, so they depend on render order once they read
+     * a value that templates change. Within the replacement the order is the same as
+     * in a full render; everywhere else it is not.
+     */
+    boolean isOrderDependent(TycoAttribute replacement, Set<TycoValue> dependents) {
+        if (readsGlobals) {
+            return true;
+        }
+        Set<Object> inside = contents(replacement);
+        for (Object item : inside) {
+            if (item instanceof TycoValue && readsTemplated(reads.get(item), inside)) {
+                return true;
+            }
+        }
+        for (TycoValue dependent : dependents) {
+            Set<TycoValue> dependentReaders = readers.get(dependent);
+            if (dependentReaders != null && !dependentReaders.isEmpty()) {
+                return true;
+            }
+            if (readsTemplated(reads.get(dependent), Set.of())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean readsTemplated(List<Object> read, Set<Object> except) {
+        if (read == null) {
+            return false;
+        }
+        for (Object item : read) {
+            if (item instanceof TycoValue && !except.contains(item) && ((TycoValue) item).hasTemplates()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addReads(TycoValue value) {
+        List<Object> read = value.templateReads();
+        if (read.isEmpty()) {
+            return;
+        }
+        reads.put(value, read);
+        for (Object item : read) {
+            if (!(item instanceof TycoAttribute)) {
+                readsGlobals = true;
+            }
+            readers.computeIfAbsent(item, k -> new LinkedHashSet<>()).add(value);
+        }
+    }
+
+    private void removeReads(TycoValue value) {
+        List<Object> read = reads.remove(value);
+        if (read == null) {
+            return;
+        }
+        for (Object item : read) {
+            Set<TycoValue> itemReaders = readers.get(item);
+            if (itemReaders != null) {
+                itemReaders.remove(value);
+                if (itemReaders.isEmpty()) {
+                    readers.remove(item);
+                }
+            }
+        }
+    }
+
+    private static Set<Object> contents(TycoAttribute attr) {
+        Set<Object> contents = new LinkedHashSet<>();
+        forEach(attr, contents::add);
+        return contents;
+    }
+
+    /**
+     * Visit {@code attr} and every attribute in it (not the arguments of references).
+     * Shared defaults are skipped: they read nothing and are never replaced.
+     */
+    static void forEach(TycoAttribute attr, Consumer<TycoAttribute> action) {
+        if (TycoStruct.isShared(attr)) {
+            return;
+        }
+        action.accept(attr);
+        if (attr instanceof TycoArray) {
+            for (TycoAttribute item : ((TycoArray) attr).items()) {
+                forEach(item, action);
+            }
+        } else if (attr instanceof TycoInstance) {
+            for (TycoAttribute item : ((TycoInstance) attr).attributes().values()) {
+                forEach(item, action);
+            }
+        }
+    }
+}
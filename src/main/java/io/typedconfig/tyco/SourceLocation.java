@@ -1,12 +1,14 @@
 package io.typedconfig.tyco;
 
 import java.util.Objects;
+import java.util.function.Supplier;
 
 public final class SourceLocation {
     private final String source;
     private final int line;
     private final int column;
-    private final String lineText;
+    private String lineText;
+    private Supplier<String> lineTextSource;
 
     public SourceLocation(String source, int line, int column, String lineText) {
         this.source = source;
@@ -15,6 +17,15 @@ public final class SourceLocation {
         this.lineText = lineText;
     }
 
+    /**
+     * Location whose line text is only read when first asked for.
+     */
+    static SourceLocation withLazyLineText(String source, int line, int column, Supplier<String> lineTextSource) {
+        SourceLocation location = new SourceLocation(source, line, column, null);
+        location.lineTextSource = lineTextSource;
+        return location;
+    }
+
     public String getSource() {
         return source;
     }
@@ -28,11 +39,15 @@ public final class SourceLocation {
     }
 
     public String getLineText() {
+        if (lineTextSource != null) {
+            lineText = lineTextSource.get();
+            lineTextSource = null;
+        }
         return lineText;
     }
 
     public SourceLocation advance(int columns) {
-        return new SourceLocation(source, line, Math.max(1, column + columns), lineText);
+        return new SourceLocation(source, line, Math.max(1, column + columns), getLineText());
     }
 
     public static SourceLocation unknown() {
@@ -64,11 +79,11 @@ public final class SourceLocation {
         SourceLocation that = (SourceLocation) o;
         return line == that.line && column == that.column &&
             Objects.equals(source, that.source) &&
-            Objects.equals(lineText, that.lineText);
+            Objects.equals(getLineText(), that.getLineText());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(source, line, column, lineText);
+        return Objects.hash(source, line, column, getLineText());
     }
 }
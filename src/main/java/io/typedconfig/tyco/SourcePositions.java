@@ -0,0 +1,139 @@
+package io.typedconfig.tyco;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Source files of a context, so that attributes can keep their position as one
+ * packed {@code long} of (file, line, column) instead of a {@link SourceLocation}.
+ * Positions are only turned into locations when asked for, and the line text of a
+ * location is only read back from the source when it is used, i.e. when a
+ * {@link TycoParseException} is formatted.
+ *
+ * <p>Layout: bits 0-23 column, 24-47 line, 48-62 file index + 1. Lines and columns
+ * beyond 24 bits are clamped. {@link #NONE} is the unknown position.
+ */
+final class SourcePositions {
+
+    static final long NONE = 0L;
+
+    private static final int FIELD_BITS = 24;
+    private static final int FIELD_MAX = (1 << FIELD_BITS) - 1;
+    private static final int FILE_MAX = (1 << 15) - 1;
+
+    /** {@link SourceFile} or a fixed {@link SourceLocation}; null once dropped */
+    private final List<Object> files = new ArrayList<>();
+
+    /**
+     * Register a source buffer; the returned id is used with {@link #pack}.
+     */
+    synchronized int register(String path, CharSequence source) {
+        files.add(new SourceFile(path, source));
+        return files.size() - 1;
+    }
+
+    static long pack(int fileId, int line, int column) {
+        if (fileId < 0 || fileId >= FILE_MAX) {
+            return NONE;
+        }
+        return ((long) (fileId + 1) << (2 * FIELD_BITS))
+            | ((long) clamp(line) << FIELD_BITS)
+            | clamp(column);
+    }
+
+    /**
+     * Position for a location that does not come from a registered source, e.g. one
+     * set through {@link TycoAttribute#setLocation}.
+     */
+    synchronized long pack(SourceLocation location) {
+        if (location == null) {
+            return NONE;
+        }
+        files.add(location);
+        return pack(files.size() - 1, location.getLine(), location.getColumn());
+    }
+
+    /**
+     * Append all sources of {@code other}. Its positions stay valid here once moved
+     * by the returned offset with {@link #relocate}.
+     */
+    int adopt(SourcePositions other) {
+        List<Object> adopted;
+        synchronized (other) {
+            adopted = new ArrayList<>(other.files);
+        }
+        synchronized (this) {
+            int offset = files.size();
+            files.addAll(adopted);
+            return offset;
+        }
+    }
+
+    static long relocate(long position, int fileOffset) {
+        if (position == NONE || fileOffset == 0) {
+            return position;
+        }
+        int fileId = (int) (position >>> (2 * FIELD_BITS)) - 1 + fileOffset;
+        return pack(fileId, (int) (position >>> FIELD_BITS) & FIELD_MAX, (int) position & FIELD_MAX);
+    }
+
+    synchronized SourceLocation resolve(long position) {
+        if (position == NONE) {
+            return null;
+        }
+        int fileId = (int) (position >>> (2 * FIELD_BITS)) - 1;
+        Object file = fileId < files.size() ? files.get(fileId) : null;
+        if (file instanceof SourceLocation) {
+            return (SourceLocation) file;
+        }
+        if (file == null) {
+            return null;
+        }
+        SourceFile sourceFile = (SourceFile) file;
+        int line = (int) (position >>> FIELD_BITS) & FIELD_MAX;
+        int column = (int) position & FIELD_MAX;
+        return SourceLocation.withLazyLineText(sourceFile.path, line, column, () -> sourceFile.lineText(line));
+    }
+
+    /**
+     * Forget all sources; positions handed out so far resolve to null from now on.
+     */
+    synchronized void drop() {
+        for (int i = 0; i < files.size(); i++) {
+            files.set(i, null);
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(value, FIELD_MAX));
+    }
+
+    private static final class SourceFile {
+        final String path;
+        final CharSequence source;
+
+        SourceFile(String path, CharSequence source) {
+            this.path = path;
+            this.source = source;
+        }
+
+        String lineText(int line) {
+            int start = 0;
+            int length = source.length();
+            for (int current = 1; current < line && start < length; current++) {
+                while (start < length && source.charAt(start) != '\n') {
+                    start++;
+                }
+                start++;
+            }
+            if (start >= length) {
+                return null;
+            }
+            int end = start;
+            while (end < length && source.charAt(end) != '\n') {
+                end++;
+            }
+            return source.subSequence(start, end).toString();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.typedconfig.tyco;
+
+import java.util.Objects;
+
+/**
+ * Read-only view over a range of a lexer source buffer. Nothing is copied until
+ * {@link #toString()} is called.
+ */
+final class SourceSpan implements CharSequence {
+    private final CharSequence source;
+    private final int start;
+    private final int end;
+
+    SourceSpan(CharSequence source, int start, int end) {
+        Objects.checkFromToIndex(start, end, source.length());
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, end - start);
+        return source.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        Objects.checkFromToIndex(from, to, end - start);
+        return new SourceSpan(source, start + from, start + to);
+    }
+
+    /**
+     * True when the chars are the UTF-8 bytes of a mapped file that is not all
+     * ASCII, so only {@link #toString()} gives the text as written.
+     */
+    boolean isEncoded() {
+        return source instanceof ByteSource && !((ByteSource) source).isAscii();
+    }
+
+    @Override
+    public String toString() {
+        if (source instanceof ByteSource) {
+            return ((ByteSource) source).decode(start, end);
+        }
+        return source.subSequence(start, end).toString();
+    }
+}
@@ -0,0 +1,112 @@
+package io.typedconfig.tyco;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code {placeholder}} templates of a string, split once into the literal text
+ * between them and a lookup plan per placeholder. Compiled programs are immutable
+ * and shared by the copies of a value, e.g. the copies of a struct default.
+ *
+ * <p>Placeholders are found like the pattern {@code \{([\w.]+)\}}: left to right,
+ * without overlap, and an opening brace that does not start one is plain text.
+ */
+final class TemplateProgram {
+    private static final TemplateProgram PLAIN = new TemplateProgram(new String[] {""}, new Placeholder[0], false);
+
+    // literals[i] comes before placeholders[i], the last literal after all of them
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final boolean hasBackslash;
+
+    private TemplateProgram(String[] literals, Placeholder[] placeholders, boolean hasBackslash) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.hasBackslash = hasBackslash;
+    }
+
+    static TemplateProgram compile(String text) {
+        boolean hasBackslash = text.indexOf('\\') >= 0;
+        if (text.indexOf('{') < 0 && !hasBackslash) {
+            return PLAIN;
+        }
+        List<String> literals = new ArrayList<>();
+        List<Placeholder> placeholders = new ArrayList<>();
+        int literalStart = 0;
+        int i = text.indexOf('{');
+        while (i >= 0) {
+            int end = i + 1;
+            while (end < text.length() && isPathChar(text.charAt(end))) {
+                end++;
+            }
+            if (end > i + 1 && end < text.length() && text.charAt(end) == '}') {
+                literals.add(text.substring(literalStart, i));
+                placeholders.add(Placeholder.plan(text.substring(i + 1, end)));
+                literalStart = end + 1;
+                i = text.indexOf('{', literalStart);
+            } else {
+                i = text.indexOf('{', i + 1);
+            }
+        }
+        literals.add(text.substring(literalStart));
+        return new TemplateProgram(literals.toArray(new String[0]), placeholders.toArray(new Placeholder[0]), hasBackslash);
+    }
+
+    private static boolean isPathChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_' || ch == '.';
+    }
+
+    int size() {
+        return placeholders.length;
+    }
+
+    String literal(int index) {
+        return literals[index];
+    }
+
+    Placeholder placeholder(int index) {
+        return placeholders[index];
+    }
+
+    /** Whether rendering can change the text: it has placeholders or escapes */
+    boolean isTemplate() {
+        return placeholders.length > 0 || hasBackslash;
+    }
+
+    /**
+     * Lookup plan of one placeholder: how many parents to go up ({@code ..name} is
+     * one), then the path segments. Segments that are not found are merged with the
+     * next one at render time, as attribute names may contain dots.
+     */
+    static final class Placeholder {
+        final int parents;
+        final String[] path;
+
+        private Placeholder(int parents, String[] path) {
+            this.parents = parents;
+            this.path = path;
+        }
+
+        static Placeholder plan(String templateVar) {
+            int parents = 0;
+            if (templateVar.startsWith("..")) {
+                templateVar = templateVar.substring(1);
+                while (templateVar.startsWith(".")) {
+                    parents++;
+                    templateVar = templateVar.substring(1);
+                }
+            }
+            List<String> path = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i <= templateVar.length(); i++) {
+                if (i == templateVar.length() || templateVar.charAt(i) == '.') {
+                    if (i > start) {
+                        path.add(templateVar.substring(start, i));
+                    }
+                    start = i + 1;
+                }
+            }
+            return new Placeholder(parents, path.toArray(new String[0]));
+        }
+    }
+}
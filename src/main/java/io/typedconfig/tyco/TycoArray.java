@@ -14,7 +14,11 @@ public class TycoArray implements TycoAttribute {
     private Boolean isArray;
     private Object parent;
     private List<Object> objectCache;
-    private SourceLocation location;
+    private int objectCacheVersion;
+    // a struct default that instances use as is (see TycoStruct#resolveDefault)
+    private boolean shared;
+    private boolean sharedRendered;
+    private long position;
     
     public TycoArray(TycoContext context, List<TycoAttribute> content) {
         this.context = context;
@@ -22,6 +26,10 @@ public class TycoArray implements TycoAttribute {
         this.objectCache = null;
     }
     
+    List<TycoAttribute> items() {
+        return content;
+    }
+
     public String getAttrName() {
         return attrName;
     }
@@ -32,12 +40,16 @@ public class TycoArray implements TycoAttribute {
     
     @Override
     public TycoAttribute makeCopy() {
+        return copyInto(context, 0);
+    }
+
+    TycoArray copyInto(TycoContext context, int fileOffset) {
         List<TycoAttribute> copiedContent = new ArrayList<>();
         for (TycoAttribute attr : content) {
-            copiedContent.add(attr.makeCopy());
+            copiedContent.add(TycoContext.copyInto(attr, context, fileOffset));
         }
         TycoArray copy = new TycoArray(context, copiedContent);
-        copy.location = this.location;
+        copy.position = SourcePositions.relocate(this.position, fileOffset);
         copy.typeName = this.typeName;
         copy.attrName = this.attrName;
         copy.isNullable = this.isNullable;
@@ -47,12 +59,22 @@ public class TycoArray implements TycoAttribute {
 
     @Override
     public void setLocation(SourceLocation location) {
-        this.location = location;
+        this.position = context.getSourcePositions().pack(location);
     }
 
     @Override
     public SourceLocation getLocation() {
-        return location;
+        return context.getSourcePositions().resolve(position);
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void setPosition(long position) {
+        this.position = position;
     }
     
     @Override
@@ -75,10 +97,15 @@ public class TycoArray implements TycoAttribute {
         }
         
         if (Boolean.FALSE.equals(this.isArray)) {
-            throw new TycoParseException("Schema for " + parent + "." + attrName + " needs to indicate array with []", location);
+            throw new TycoParseException("Schema for " + parent + "." + attrName + " needs to indicate array with []", getLocation());
     }
     }
     
+    /** Apply the schema info of this array to one replacing it */
+    void applySchemaInfoTo(TycoAttribute replacement) {
+        replacement.applySchemaInfo(typeName, attrName, isNullable, isArray);
+    }
+
     @Override
     public void setParent(Object parent) {
         this.parent = parent;
@@ -93,6 +120,30 @@ public class TycoArray implements TycoAttribute {
         for (TycoAttribute item : content) {
             item.renderBaseContent();
         }
+        sharedRendered = shared;
+    }
+
+    /** Whether every item renders the same for every parent */
+    boolean isConstant() {
+        for (TycoAttribute item : content) {
+            if (item instanceof TycoValue ? !((TycoValue) item).isConstant()
+                    : !(item instanceof TycoArray) || !((TycoArray) item).isConstant()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isShared() {
+        return shared;
+    }
+
+    void share() {
+        shared = true;
+    }
+
+    boolean isBaseRendered() {
+        return sharedRendered;
     }
     
     @Override
@@ -111,6 +162,9 @@ public class TycoArray implements TycoAttribute {
     
     @Override
     public Object getRendered() {
+        if (context.isRendered()) {
+            return getObject();
+        }
         List<Object> rendered = new ArrayList<>();
         for (TycoAttribute item : content) {
             rendered.add(item.getRendered());
@@ -120,13 +174,21 @@ public class TycoArray implements TycoAttribute {
     
     @Override
     public Object getObject() {
-        if (objectCache == null) {
-            objectCache = new ArrayList<>();
-            for (TycoAttribute item : content) {
-                objectCache.add(item.getObject());
-            }
+        if (objectCache != null && objectCacheVersion == context.getRenderVersion() && context.isRendered()) {
+            return objectCache;
         }
-        return objectCache;
+        List<Object> items = new ArrayList<>();
+        List<Object> result = items;
+        if (context.isRendered()) {
+            // shared by every later call, so read-only
+            result = Collections.unmodifiableList(items);
+            objectCacheVersion = context.getRenderVersion();
+            objectCache = result;
+        }
+        for (TycoAttribute item : content) {
+            items.add(item.getObject());
+        }
+        return result;
     }
     
     @Override
@@ -135,9 +197,23 @@ public class TycoArray implements TycoAttribute {
         for (TycoAttribute item : content) {
             json.add(item.toJson());
         }
+        if (context.getOptions().isSharedMaterialization() && context.isRendered()) {
+            // part of the materialized instance that every reference shares
+            return Collections.unmodifiableList(json);
+        }
         return json;
     }
     
+    /** How {@link #toString()} reads before base content is rendered */
+    String toUnrenderedString() {
+        StringJoiner items = new StringJoiner(", ", "[", "]");
+        for (TycoAttribute item : content) {
+            items.add(item instanceof TycoValue ? ((TycoValue) item).toUnrenderedString()
+                : item instanceof TycoArray ? ((TycoArray) item).toUnrenderedString() : String.valueOf(item));
+        }
+        return "TycoArray(" + typeName + " " + attrName + ": " + items + ")";
+    }
+
     @Override
     public String toString() {
         return "TycoArray(" + typeName + " " + attrName + ": " + content + ")";
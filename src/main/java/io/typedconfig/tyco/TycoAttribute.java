@@ -30,6 +30,21 @@ public interface TycoAttribute {
     default SourceLocation getLocation() {
         return null;
     }
+
+    /**
+     * Packed (file, line, column) source position, 0 if unknown. Cheaper to keep and
+     * copy around than {@link #getLocation()}.
+     */
+    default long getPosition() {
+        return 0L;
+    }
+
+    /**
+     * Set the packed source position
+     */
+    default void setPosition(long position) {
+        // default no-op for implementations that do not track location
+    }
     
     /**
      * Get the attribute name
@@ -0,0 +1,536 @@
+package io.typedconfig.tyco;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Binds rendered Tyco content to Java records and POJOs.
+ *
+ * <p>The properties of the target class are matched by name: record components,
+ * else setters and non-final fields. At the top level they are matched with the
+ * globals and the structs (a struct binds to a list or array of its instances, and
+ * its name also matches case-insensitively and in the plural, so {@code hosts}
+ * finds {@code Host}); inside an instance, with its
+ * attributes. Attributes without a property are ignored. A record needs all its
+ * components; a POJO keeps the value its constructor gave to properties that are
+ * not in the content.
+ *
+ * <p>Values are read straight from the rendered attributes, without building the
+ * maps of {@link TycoContext#toObject()}. Each struct instance is bound once per
+ * target class, so all references to it give the same object. Records are built
+ * after their components, so references can only go round in a cycle through POJOs.
+ *
+ * <p>The binding plan of a class (its constructor, setters and the conversion of
+ * each property) is built on first use and kept for later binds.
+ */
+public final class TycoBinder {
+    private static final ClassValue<BeanPlan> PLANS = new ClassValue<>() {
+        @Override
+        protected BeanPlan computeValue(Class<?> type) {
+            return BeanPlan.of(type);
+        }
+    };
+
+    // stands in for a record while its components are bound
+    private static final Object BINDING = new Object();
+
+    private final TycoContext context;
+    // struct instance -> target class -> object bound to it
+    private final Map<TycoInstance, Map<Class<?>, Object>> bound = new IdentityHashMap<>();
+
+    private TycoBinder(TycoContext context) {
+        this.context = context;
+    }
+
+    public static <T> T load(String path, Class<T> type) {
+        return load(path, new TycoParserOptions(), type);
+    }
+
+    /**
+     * Load a file or directory like {@link TycoParser#load(String, TycoParserOptions)}
+     * and bind it to {@code type}.
+     */
+    public static <T> T load(String path, TycoParserOptions options, Class<T> type) {
+        return bind(TycoParser.loadContext(path, options), type);
+    }
+
+    /**
+     * Bind the globals and structs of a rendered context to the properties of {@code type}.
+     */
+    public static <T> T bind(TycoContext context, Class<T> type) {
+        return type.cast(new TycoBinder(context).bindRoot(PLANS.get(type)));
+    }
+
+    /**
+     * Bind the instances of one struct of a rendered context, in order.
+     */
+    public static <T> List<T> bindInstances(TycoContext context, String typeName, Class<T> type) {
+        TycoStruct struct = context.getStruct(typeName);
+        if (struct == null) {
+            throw new TycoParseException("Unknown struct: " + typeName);
+        }
+        TycoBinder binder = new TycoBinder(context);
+        List<T> result = new ArrayList<>(struct.instances().size());
+        for (TycoInstance instance : struct.instances()) {
+            result.add(type.cast(binder.bindInstance(instance, type, typeName)));
+        }
+        return result;
+    }
+
+    private Object bindRoot(BeanPlan plan) {
+        return plan.bind(this, name -> {
+            TycoAttribute global = context.globals().get(name);
+            if (global != null) {
+                return global;
+            }
+            TycoStruct struct = context.getStruct(name);
+            if (struct == null) {
+                for (TycoStruct candidate : context.structs()) {
+                    String typeName = candidate.getTypeName();
+                    if (typeName.equalsIgnoreCase(name) || (typeName + "s").equalsIgnoreCase(name)) {
+                        struct = candidate;
+                        break;
+                    }
+                }
+            }
+            return struct == null ? null : struct.instances();
+        }, null);
+    }
+
+    private Object bindInstance(TycoInstance instance, Class<?> type, String where) {
+        Map<Class<?>, Object> byType = bound.computeIfAbsent(instance, k -> new HashMap<>(4));
+        Object result = byType.get(type);
+        if (result == BINDING) {
+            throw new TycoParseException("Cannot bind reference cycle through " + instance.getTypeName()
+                + " to record " + type.getName() + " at " + where, instance.getLocation());
+        }
+        if (result == null) {
+            result = PLANS.get(type).bind(this, instance::getAttribute, byType);
+        }
+        return result;
+    }
+
+    /**
+     * Converts an attribute, or the instance list of a struct, to a property type.
+     */
+    private interface Converter {
+        Object convert(TycoBinder binder, Object source);
+    }
+
+    /**
+     * Constructor and properties of a bindable class
+     */
+    private static final class BeanPlan {
+        final Class<?> type;
+        final Property[] properties;
+        final MethodHandle constructor;
+        final boolean isRecord;
+
+        private BeanPlan(Class<?> type, Property[] properties, MethodHandle constructor, boolean isRecord) {
+            this.type = type;
+            this.properties = properties;
+            this.constructor = constructor;
+            this.isRecord = isRecord;
+        }
+
+        static BeanPlan of(Class<?> type) {
+            if (type.isInterface() || Modifier.isAbstract(type.getModifiers()) || type.isPrimitive() || type.isArray()) {
+                throw new IllegalArgumentException("Cannot bind to " + type.getName());
+            }
+            try {
+                Object[] components = recordComponents(type);
+                return components == null ? ofBean(type) : ofRecord(type, components);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot bind to " + type.getName(), e);
+            }
+        }
+
+        private static BeanPlan ofRecord(Class<?> type, Object[] components) throws ReflectiveOperationException {
+            Property[] properties = new Property[components.length];
+            Class<?>[] parameterTypes = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++) {
+                Class<?> componentClass = components[i].getClass();
+                String name = (String) componentClass.getMethod("getName").invoke(components[i]);
+                Type genericType = (Type) componentClass.getMethod("getGenericType").invoke(components[i]);
+                parameterTypes[i] = (Class<?>) componentClass.getMethod("getType").invoke(components[i]);
+                properties[i] = new Property(name, converterFor(genericType, where(type, name)), null);
+            }
+            Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor)
+                .asSpreader(Object[].class, components.length);
+            return new BeanPlan(type, properties, handle, true);
+        }
+
+        private static BeanPlan ofBean(Class<?> type) throws ReflectiveOperationException {
+            Constructor<?> constructor;
+            try {
+                constructor = type.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("Cannot bind to " + type.getName() + ": no constructor without arguments");
+            }
+            constructor.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            Map<String, Property> properties = new LinkedHashMap<>();
+            for (Method method : type.getMethods()) {
+                String name = method.getName();
+                if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1
+                        && !Modifier.isStatic(method.getModifiers())) {
+                    String property = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                    properties.putIfAbsent(property, new Property(property,
+                        converterFor(method.getGenericParameterTypes()[0], where(type, property)),
+                        lookup.unreflect(method)));
+                }
+            }
+            for (Class<?> declaring = type; declaring != Object.class; declaring = declaring.getSuperclass()) {
+                for (Field field : declaring.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || field.isSynthetic()
+                            || properties.containsKey(field.getName())) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    properties.put(field.getName(), new Property(field.getName(),
+                        converterFor(field.getGenericType(), where(type, field.getName())),
+                        lookup.unreflectSetter(field)));
+                }
+            }
+            return new BeanPlan(type, properties.values().toArray(new Property[0]),
+                lookup.unreflectConstructor(constructor), false);
+        }
+
+        /**
+         * Bind the sources that {@code lookup} finds for the properties; the result
+         * is registered in {@code byType}, if given, as soon as it exists.
+         */
+        Object bind(TycoBinder binder, Function<String, Object> lookup, Map<Class<?>, Object> byType) {
+            try {
+                if (isRecord) {
+                    if (byType != null) {
+                        byType.put(type, BINDING);
+                    }
+                    Object[] args = new Object[properties.length];
+                    for (int i = 0; i < properties.length; i++) {
+                        Property property = properties[i];
+                        Object source = lookup.apply(property.name);
+                        if (source == null) {
+                            throw new TycoParseException("Nothing to bind to " + where(type, property.name));
+                        }
+                        args[i] = property.converter.convert(binder, source);
+                    }
+                    Object result = constructor.invoke(args);
+                    if (byType != null) {
+                        byType.put(type, result);
+                    }
+                    return result;
+                }
+                Object result = constructor.invoke();
+                if (byType != null) {
+                    byType.put(type, result);
+                }
+                for (Property property : properties) {
+                    Object source = lookup.apply(property.name);
+                    if (source != null) {
+                        property.setter.invoke(result, property.converter.convert(binder, source));
+                    }
+                }
+                return result;
+            } catch (RuntimeException | Error e) {
+                if (byType != null && byType.get(type) == BINDING) {
+                    byType.remove(type);
+                }
+                throw e;
+            } catch (Throwable e) {
+                throw new TycoParseException("Cannot bind to " + type.getName() + ": " + e, e);
+            }
+        }
+
+        private static Object[] recordComponents(Class<?> type) throws ReflectiveOperationException {
+            Class<?> superclass = type.getSuperclass();
+            if (superclass == null || !"java.lang.Record".equals(superclass.getName())) {
+                return null;
+            }
+            // looked up by name, as records are newer than the Java release we build for
+            return (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+        }
+    }
+
+    private static final class Property {
+        final String name;
+        final Converter converter;
+        // (bean, value) -> void, null for record components
+        final MethodHandle setter;
+
+        Property(String name, Converter converter, MethodHandle setter) {
+            this.name = name;
+            this.converter = converter;
+            this.setter = setter == null ? null : setter.asType(setter.type().generic().changeReturnType(void.class));
+        }
+    }
+
+    private static String where(Class<?> type, String property) {
+        return type.getSimpleName() + "." + property;
+    }
+
+    private static Converter converterFor(Type type, String where) {
+        Class<?> raw = rawType(type);
+        if (raw == Object.class) {
+            return (binder, source) -> toJson(source);
+        }
+        if (raw.isArray()) {
+            Class<?> arrayType = raw;
+            Converter item = converterFor(componentType(type), where + "[]");
+            MethodHandle newArray = MethodHandles.arrayConstructor(arrayType);
+            MethodHandle setter = MethodHandles.arrayElementSetter(arrayType);
+            MethodHandle setItem = setter.asType(setter.type().generic().changeReturnType(void.class));
+            return (binder, source) -> {
+                List<?> items = items(source, type, where);
+                if (items == null) {
+                    return null;
+                }
+                try {
+                    Object array = newArray.invoke(items.size());
+                    for (int i = 0; i < items.size(); i++) {
+                        setItem.invoke(array, i, item.convert(binder, items.get(i)));
+                    }
+                    return array;
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new TycoParseException("Cannot bind " + where + ": " + e, e);
+                }
+            };
+        }
+        if (raw == List.class || raw == Collection.class || raw == Iterable.class || raw == Set.class) {
+            Converter item = converterFor(typeArgument(type, 0), where + "[]");
+            boolean isSet = raw == Set.class;
+            return (binder, source) -> {
+                List<?> items = items(source, type, where);
+                if (items == null) {
+                    return null;
+                }
+                Collection<Object> result = isSet ? new LinkedHashSet<>() : new ArrayList<>(items.size());
+                for (Object itemSource : items) {
+                    result.add(item.convert(binder, itemSource));
+                }
+                return result;
+            };
+        }
+        if (raw == Map.class) {
+            Type keyType = typeArgument(type, 0);
+            if (keyType != String.class && keyType != Object.class) {
+                throw new IllegalArgumentException("Map keys must be strings to bind " + where);
+            }
+            Converter value = converterFor(typeArgument(type, 1), where + "[]");
+            return (binder, source) -> {
+                TycoInstance instance = instance(source, type, where);
+                if (instance == null) {
+                    return null;
+                }
+                Map<String, Object> result = new LinkedHashMap<>();
+                for (Map.Entry<String, TycoAttribute> entry : instance.attributes().entrySet()) {
+                    result.put(entry.getKey(), value.convert(binder, entry.getValue()));
+                }
+                return result;
+            };
+        }
+        if (raw.isPrimitive() || raw.getName().startsWith("java.") || raw.isEnum()) {
+            return (binder, source) -> {
+                Object rendered = scalar(source, type, where);
+                Object converted = convertScalar(rendered, raw);
+                if (converted == null && (rendered != null || raw.isPrimitive())) {
+                    throw mismatch(source, type, where);
+                }
+                return converted;
+            };
+        }
+        return (binder, source) -> {
+            TycoInstance instance = instance(source, type, where);
+            return instance == null ? null : binder.bindInstance(instance, raw, where);
+        };
+    }
+
+    /**
+     * The rendered scalar converted to {@code raw}, null when it does not convert.
+     */
+    private static Object convertScalar(Object rendered, Class<?> raw) {
+        if (rendered == null) {
+            return null;
+        }
+        if (raw == String.class) {
+            return rendered instanceof String ? rendered : null;
+        }
+        if (raw == int.class || raw == Integer.class) {
+            if (rendered instanceof Integer) {
+                return rendered;
+            }
+            if (rendered instanceof Long && (long) (Long) rendered == (int) (long) (Long) rendered) {
+                return (int) (long) (Long) rendered;
+            }
+            return null;
+        }
+        if (raw == long.class || raw == Long.class) {
+            return rendered instanceof Integer || rendered instanceof Long ? ((Number) rendered).longValue() : null;
+        }
+        if (raw == double.class || raw == Double.class) {
+            return rendered instanceof Number ? ((Number) rendered).doubleValue() : null;
+        }
+        if (raw == float.class || raw == Float.class) {
+            return rendered instanceof Number ? ((Number) rendered).floatValue() : null;
+        }
+        if (raw == boolean.class || raw == Boolean.class) {
+            return rendered instanceof Boolean ? rendered : null;
+        }
+        if (raw == BigDecimal.class) {
+            if (rendered instanceof BigDecimal) {
+                return rendered;
+            }
+            if (rendered instanceof Integer || rendered instanceof Long) {
+                return BigDecimal.valueOf(((Number) rendered).longValue());
+            }
+            return rendered instanceof Double ? BigDecimal.valueOf((Double) rendered) : null;
+        }
+        if (raw == Number.class) {
+            return rendered instanceof Number ? rendered : null;
+        }
+        if (!(rendered instanceof String)) {
+            return null;
+        }
+        String text = (String) rendered;
+        try {
+            if (raw == LocalDate.class) {
+                return LocalDate.parse(text);
+            }
+            if (raw == LocalTime.class) {
+                return LocalTime.parse(text);
+            }
+            if (raw == LocalDateTime.class) {
+                return LocalDateTime.parse(text);
+            }
+            if (raw == OffsetDateTime.class) {
+                return OffsetDateTime.parse(text);
+            }
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+        if (raw.isEnum()) {
+            for (Object constant : raw.getEnumConstants()) {
+                if (((Enum<?>) constant).name().equals(text)) {
+                    return constant;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object scalar(Object source, Type type, String where) {
+        if (source instanceof TycoValue) {
+            return ((TycoValue) source).getRendered();
+        }
+        throw mismatch(source, type, where);
+    }
+
+    /** The items of an array, or the instances of a struct; null for a null value */
+    private static List<?> items(Object source, Type type, String where) {
+        if (source instanceof TycoArray) {
+            return ((TycoArray) source).items();
+        }
+        if (source instanceof List) {
+            return (List<?>) source;
+        }
+        if (source instanceof TycoValue && ((TycoValue) source).getRendered() == null) {
+            return null;
+        }
+        throw mismatch(source, type, where);
+    }
+
+    /** The instance, or the instance a reference resolved to; null for a null value */
+    private static TycoInstance instance(Object source, Type type, String where) {
+        if (source instanceof TycoInstance) {
+            return (TycoInstance) source;
+        }
+        if (source instanceof TycoReference && ((TycoReference) source).getTarget() != null) {
+            return ((TycoReference) source).getTarget();
+        }
+        if (source instanceof TycoValue && ((TycoValue) source).getRendered() == null) {
+            return null;
+        }
+        throw mismatch(source, type, where);
+    }
+
+    private static Object toJson(Object source) {
+        if (source instanceof TycoAttribute) {
+            return ((TycoAttribute) source).toJson();
+        }
+        List<Object> result = new ArrayList<>();
+        for (Object item : (List<?>) source) {
+            result.add(((TycoAttribute) item).toJson());
+        }
+        return result;
+    }
+
+    private static TycoParseException mismatch(Object source, Type type, String where) {
+        if (source instanceof TycoAttribute) {
+            return new TycoParseException("Cannot bind " + source + " to " + type.getTypeName() + " " + where,
+                ((TycoAttribute) source).getLocation());
+        }
+        return new TycoParseException("Cannot bind struct instances to " + type.getTypeName() + " " + where);
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return rawType(((ParameterizedType) type).getRawType());
+        }
+        if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawType(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        }
+        if (type instanceof WildcardType) {
+            return rawType(((WildcardType) type).getUpperBounds()[0]);
+        }
+        return Object.class;
+    }
+
+    private static Type componentType(Type type) {
+        if (type instanceof GenericArrayType) {
+            return ((GenericArrayType) type).getGenericComponentType();
+        }
+        return rawType(type).getComponentType();
+    }
+
+    private static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) type).getActualTypeArguments()[index];
+            return argument instanceof WildcardType ? ((WildcardType) argument).getUpperBounds()[0] : argument;
+        }
+        return Object.class;
+    }
+}
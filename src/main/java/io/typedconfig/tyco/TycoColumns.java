@@ -0,0 +1,784 @@
+package io.typedconfig.tyco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.DoublePredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * The rendered instances of a struct stored column by column, one typed column
+ * per scalar attribute. Get it with {@link TycoStruct#toColumns()}, or load a
+ * struct straight into columns with {@link TycoParser#loadColumns}, which renders
+ * one instance at a time and never keeps the instances.
+ *
+ * <p>Ints are kept in an {@code int[]} (a {@code long[]} once one needs it), floats
+ * in a {@code double[]} and bools in a {@link BitSet}; nulls are marked in a
+ * {@code BitSet} of their own. Strings, dates and times with up to 65535 distinct
+ * values are dictionary encoded into one or two bytes per row. Decimals and other
+ * strings are kept as objects. Array, reference and instance attributes get no
+ * column; their rendered values are only kept for {@link #getRow}.
+ *
+ * <p>The columns hold no reference to the instances, so they can be kept for a
+ * large table after its context is dropped, for a fraction of the memory. Rows are
+ * numbered in instance order. Scans take a {@link BitSet} of rows, as returned by
+ * the {@code select} methods, or null for all rows.
+ */
+public final class TycoColumns {
+    private static final int MAX_DICTIONARY = 0xFFFF;
+
+    private final String typeName;
+    private final int size;
+    private final List<String> attrNames;           // every attribute, in schema order
+    private final Map<String, Column> columns;      // the scalar ones
+    private final Map<String, Column> others;       // the rest, as objects
+
+    private TycoColumns(String typeName, int size, List<String> attrNames, Map<String, Column> columns, Map<String, Column> others) {
+        this.typeName = typeName;
+        this.size = size;
+        this.attrNames = attrNames;
+        this.columns = columns;
+        this.others = others;
+    }
+
+    /**
+     * Load the instances of {@code typeName} from {@code paths} into columns. Each
+     * instance is rendered on its own, appended and dropped, as with
+     * {@link TycoParser#streamInstances}.
+     */
+    static TycoColumns load(TycoContext context, List<String> paths, String typeName) {
+        Loader loader = new Loader(context, typeName);
+        context.setEvents(new EventEmitter(context, loader, typeName));
+        for (String filePath : paths) {
+            TycoLexer.fromPath(context, filePath);
+        }
+        return loader.build();
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /** Number of rows, the number of instances */
+    public int size() {
+        return size;
+    }
+
+    /** Attributes with a column, in schema order */
+    public List<String> getAttrNames() {
+        return new ArrayList<>(columns.keySet());
+    }
+
+    public boolean hasColumn(String attrName) {
+        return columns.containsKey(attrName);
+    }
+
+    /** The value as {@link TycoAttribute#getRendered()} gives it */
+    public Object get(String attrName, int row) {
+        return column(attrName).get(checkRow(row));
+    }
+
+    public boolean isNull(String attrName, int row) {
+        return column(attrName).isNull(checkRow(row));
+    }
+
+    /**
+     * The instance in {@code row}, materialized from the columns: every attribute,
+     * in schema order, as {@link TycoInstance#getRendered()} gives it
+     */
+    public Map<String, Object> getRow(int row) {
+        checkRow(row);
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String attrName : attrNames) {
+            Column column = columns.get(attrName);
+            values.put(attrName, (column != null ? column : others.get(attrName)).get(row));
+        }
+        return values;
+    }
+
+    /** Value of an int column */
+    public long getLong(String attrName, int row) {
+        return nonNull(attrName, row).getLong(row);
+    }
+
+    /** Value of a numeric column */
+    public double getDouble(String attrName, int row) {
+        return nonNull(attrName, row).getDouble(row);
+    }
+
+    /** Value of a bool column */
+    public boolean getBoolean(String attrName, int row) {
+        return nonNull(attrName, row).getBoolean(row);
+    }
+
+    /**
+     * Rows whose value equals {@code value}; integral numbers match int columns
+     * whatever their boxed type, and null matches the null rows.
+     */
+    public BitSet select(String attrName, Object value) {
+        Column column = column(attrName);
+        if (value == null) {
+            return column.nulls();
+        }
+        BitSet result = new BitSet(size);
+        column.select(value, result);
+        return result;
+    }
+
+    /** Non-null rows of an int column whose value passes {@code predicate} */
+    public BitSet selectLongs(String attrName, LongPredicate predicate) {
+        Column column = column(attrName);
+        BitSet result = new BitSet(size);
+        for (int row = column.nextValue(0); row >= 0; row = column.nextValue(row + 1)) {
+            if (predicate.test(column.getLong(row))) {
+                result.set(row);
+            }
+        }
+        return result;
+    }
+
+    /** Non-null rows of a numeric column whose value passes {@code predicate} */
+    public BitSet selectDoubles(String attrName, DoublePredicate predicate) {
+        Column column = column(attrName);
+        BitSet result = new BitSet(size);
+        for (int row = column.nextValue(0); row >= 0; row = column.nextValue(row + 1)) {
+            if (predicate.test(column.getDouble(row))) {
+                result.set(row);
+            }
+        }
+        return result;
+    }
+
+    /** Number of rows whose value equals {@code value}, see {@link #select} */
+    public int count(String attrName, Object value) {
+        return select(attrName, value).cardinality();
+    }
+
+    /** Count, sum, min and max of the non-null values of an int column in {@code rows} */
+    public LongSummaryStatistics longStats(String attrName, BitSet rows) {
+        Column column = column(attrName);
+        LongSummaryStatistics stats = new LongSummaryStatistics();
+        for (int row = next(column, rows, 0); row >= 0; row = next(column, rows, row + 1)) {
+            stats.accept(column.getLong(row));
+        }
+        return stats;
+    }
+
+    /** Count, sum, min and max of the non-null values of a numeric column in {@code rows} */
+    public DoubleSummaryStatistics doubleStats(String attrName, BitSet rows) {
+        Column column = column(attrName);
+        DoubleSummaryStatistics stats = new DoubleSummaryStatistics();
+        for (int row = next(column, rows, 0); row >= 0; row = next(column, rows, row + 1)) {
+            stats.accept(column.getDouble(row));
+        }
+        return stats;
+    }
+
+    /** Number of rows per value in {@code rows}, in order of first appearance; null counts too */
+    public Map<Object, Integer> countBy(String attrName, BitSet rows) {
+        Column column = column(attrName);
+        Map<Object, Integer> counts = new LinkedHashMap<>();
+        int limit = rows == null ? size : Math.min(size, rows.length());
+        for (int row = rows == null ? 0 : rows.nextSetBit(0); row >= 0 && row < limit;
+                row = rows == null ? row + 1 : rows.nextSetBit(row + 1)) {
+            counts.merge(column.get(row), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "TycoColumns(" + typeName + ", " + size + " rows, " + columns.keySet() + ")";
+    }
+
+    /** Next non-null row from {@code from} that is in {@code rows}, -1 if none */
+    private static int next(Column column, BitSet rows, int from) {
+        int row = column.nextValue(from);
+        if (rows == null) {
+            return row;
+        }
+        while (row >= 0) {
+            int selected = rows.nextSetBit(row);
+            if (selected < 0) {
+                return -1;
+            }
+            if (selected == row) {
+                return row;
+            }
+            row = column.nextValue(selected);
+        }
+        return -1;
+    }
+
+    private Column column(String attrName) {
+        Column column = columns.get(attrName);
+        if (column == null) {
+            throw new IllegalArgumentException("No column " + attrName + " in " + typeName);
+        }
+        return column;
+    }
+
+    private Column nonNull(String attrName, int row) {
+        Column column = column(attrName);
+        if (column.isNull(checkRow(row))) {
+            throw new IllegalStateException(typeName + "." + attrName + " is null in row " + row);
+        }
+        return column;
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size + " in " + typeName);
+        }
+        return row;
+    }
+
+    /**
+     * Appends rendered instances row by row. An attribute starts in the column its
+     * type calls for and falls back to objects when a value does not fit it.
+     */
+    static final class Builder {
+        private final String typeName;
+        private final String[] attrNames;
+        private final ColumnBuilder[] builders;
+        private final boolean[] scalar;
+        private int size;
+
+        Builder(String typeName, Map<String, String> attrTypes, Set<String> arrayKeys) {
+            this.typeName = typeName;
+            this.attrNames = attrTypes.keySet().toArray(new String[0]);
+            this.builders = new ColumnBuilder[attrNames.length];
+            this.scalar = new boolean[attrNames.length];
+            for (int i = 0; i < attrNames.length; i++) {
+                ColumnBuilder builder = arrayKeys.contains(attrNames[i]) ? null : builder(attrTypes.get(attrNames[i]));
+                scalar[i] = builder != null;
+                builders[i] = builder != null ? builder : new ObjectBuilder();
+            }
+        }
+
+        private static ColumnBuilder builder(String type) {
+            switch (type) {
+                case "int":
+                    return new IntBuilder();
+                case "float":
+                    return new DoubleBuilder();
+                case "bool":
+                    return new BoolBuilder();
+                case "str":
+                case "date":
+                case "time":
+                case "datetime":
+                    return new DictionaryBuilder();
+                case "decimal":
+                    return new ObjectBuilder();
+                default:
+                    return null;
+            }
+        }
+
+        /** Append a rendered instance of the struct */
+        void add(TycoInstance instance) {
+            for (int i = 0; i < attrNames.length; i++) {
+                TycoAttribute attr = instance.getAttribute(attrNames[i]);
+                if (scalar[i] && !(attr instanceof TycoValue)) {
+                    scalar[i] = false;
+                    builders[i] = builders[i].toObjects(size);
+                }
+                Object value = attr == null ? null : attr.getRendered();
+                if (!builders[i].add(size, value)) {
+                    builders[i] = builders[i].toObjects(size);
+                    builders[i].add(size, value);
+                }
+            }
+            size++;
+        }
+
+        TycoColumns build() {
+            Map<String, Column> columns = new LinkedHashMap<>();
+            Map<String, Column> others = new HashMap<>();
+            for (int i = 0; i < attrNames.length; i++) {
+                (scalar[i] ? columns : others).put(attrNames[i], builders[i].build(size));
+            }
+            return new TycoColumns(typeName, size, List.of(attrNames), columns, others);
+        }
+    }
+
+    /** Receives the rendered instances of a scan, see {@link #load} */
+    private static final class Loader implements Consumer<TycoInstance> {
+        private final TycoContext context;
+        private final String typeName;
+        private Builder builder;
+
+        Loader(TycoContext context, String typeName) {
+            this.context = context;
+            this.typeName = typeName;
+        }
+
+        @Override
+        public void accept(TycoInstance instance) {
+            if (builder == null) {
+                builder = context.getStruct(typeName).columnsBuilder();
+            }
+            builder.add(instance);
+        }
+
+        TycoColumns build() {
+            if (builder == null) {
+                TycoStruct struct = context.getStruct(typeName);
+                if (struct == null) {
+                    throw new IllegalArgumentException("No struct " + typeName);
+                }
+                builder = struct.columnsBuilder();
+            }
+            return builder.build();
+        }
+    }
+
+    private abstract static class ColumnBuilder {
+        final BitSet nulls = new BitSet();
+
+        /** Store {@code value} in {@code row}, false when this kind of column cannot hold it */
+        boolean add(int row, Object value) {
+            if (value != null && !accepts(value)) {
+                return false;
+            }
+            reserve(row);
+            if (value == null) {
+                nulls.set(row);
+            } else {
+                set(row, value);
+            }
+            return true;
+        }
+
+        abstract boolean accepts(Object value);
+
+        /** Make room for {@code row} */
+        abstract void reserve(int row);
+
+        abstract void set(int row, Object value);
+
+        abstract Object get(int row);
+
+        abstract Column build(int size);
+
+        /** The rows so far as objects */
+        ColumnBuilder toObjects(int size) {
+            ObjectBuilder objects = new ObjectBuilder();
+            for (int row = 0; row < size; row++) {
+                objects.add(row, nulls.get(row) ? null : get(row));
+            }
+            return objects;
+        }
+
+        static int grow(int length, int row) {
+            return row < length ? length : Math.max(row + 1, length * 2);
+        }
+    }
+
+    private static final class IntBuilder extends ColumnBuilder {
+        private int[] ints = new int[16];
+        private long[] longs;
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Integer || value instanceof Long;
+        }
+
+        @Override
+        void reserve(int row) {
+            if (ints != null) {
+                ints = Arrays.copyOf(ints, grow(ints.length, row));
+            } else {
+                longs = Arrays.copyOf(longs, grow(longs.length, row));
+            }
+        }
+
+        @Override
+        void set(int row, Object value) {
+            if (ints != null && value instanceof Integer) {
+                ints[row] = (Integer) value;
+                return;
+            }
+            if (ints != null) {
+                longs = new long[ints.length];
+                for (int i = 0; i < ints.length; i++) {
+                    longs[i] = ints[i];
+                }
+                ints = null;
+            }
+            longs[row] = ((Number) value).longValue();
+        }
+
+        @Override
+        Object get(int row) {
+            if (ints != null) {
+                return ints[row];
+            }
+            long value = longs[row];
+            return value == (int) value ? (Object) (int) value : (Object) value;
+        }
+
+        @Override
+        Column build(int size) {
+            if (ints != null) {
+                return new IntColumn(Arrays.copyOf(ints, size), null, nulls, size);
+            }
+            return new IntColumn(null, Arrays.copyOf(longs, size), nulls, size);
+        }
+    }
+
+    private static final class DoubleBuilder extends ColumnBuilder {
+        private double[] values = new double[16];
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Double;
+        }
+
+        @Override
+        void reserve(int row) {
+            values = Arrays.copyOf(values, grow(values.length, row));
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values[row] = (Double) value;
+        }
+
+        @Override
+        Object get(int row) {
+            return values[row];
+        }
+
+        @Override
+        Column build(int size) {
+            return new DoubleColumn(Arrays.copyOf(values, size), nulls);
+        }
+    }
+
+    private static final class BoolBuilder extends ColumnBuilder {
+        private final BitSet values = new BitSet();
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Boolean;
+        }
+
+        @Override
+        void reserve(int row) {
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values.set(row, (Boolean) value);
+        }
+
+        @Override
+        Object get(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        Column build(int size) {
+            return new BoolColumn(values, nulls, size);
+        }
+    }
+
+    private static final class DictionaryBuilder extends ColumnBuilder {
+        private final Map<Object, Integer> index = new HashMap<>();
+        private final List<Object> dictionary = new ArrayList<>(Collections.singletonList(null));
+        private char[] codes = new char[16];
+
+        @Override
+        boolean accepts(Object value) {
+            return dictionary.size() <= MAX_DICTIONARY || index.containsKey(value);
+        }
+
+        @Override
+        void reserve(int row) {
+            codes = Arrays.copyOf(codes, grow(codes.length, row));
+        }
+
+        @Override
+        void set(int row, Object value) {
+            Integer code = index.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                index.put(value, code);
+                dictionary.add(value);
+            }
+            codes[row] = (char) (int) code;
+        }
+
+        @Override
+        Object get(int row) {
+            return dictionary.get(codes[row]);
+        }
+
+        @Override
+        Column build(int size) {
+            if (dictionary.size() <= 0xFF + 1) {
+                byte[] smallCodes = new byte[size];
+                for (int row = 0; row < size; row++) {
+                    smallCodes[row] = (byte) codes[row];
+                }
+                return new DictionaryColumn(dictionary.toArray(), smallCodes, null, nulls, size);
+            }
+            return new DictionaryColumn(dictionary.toArray(), null, Arrays.copyOf(codes, size), nulls, size);
+        }
+    }
+
+    private static final class ObjectBuilder extends ColumnBuilder {
+        private Object[] values = new Object[16];
+
+        @Override
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        @Override
+        void reserve(int row) {
+            values = Arrays.copyOf(values, grow(values.length, row));
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values[row] = value;
+        }
+
+        @Override
+        Object get(int row) {
+            return values[row];
+        }
+
+        @Override
+        Column build(int size) {
+            return new ObjectColumn(Arrays.copyOf(values, size), nulls);
+        }
+    }
+
+    private abstract static class Column {
+        final BitSet nulls;
+        final int size;
+
+        Column(BitSet nulls, int size) {
+            this.nulls = nulls;
+            this.size = size;
+        }
+
+        abstract Object get(int row);
+
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        BitSet nulls() {
+            return (BitSet) nulls.clone();
+        }
+
+        /** First non-null row from {@code from}, -1 if none */
+        int nextValue(int from) {
+            int row = nulls.nextClearBit(from);
+            return row < size ? row : -1;
+        }
+
+        long getLong(int row) {
+            throw new IllegalArgumentException("Not an int column: " + get(row));
+        }
+
+        double getDouble(int row) {
+            throw new IllegalArgumentException("Not a numeric column: " + get(row));
+        }
+
+        boolean getBoolean(int row) {
+            throw new IllegalArgumentException("Not a bool column: " + get(row));
+        }
+
+        void select(Object value, BitSet result) {
+            for (int row = nextValue(0); row >= 0; row = nextValue(row + 1)) {
+                if (value.equals(get(row))) {
+                    result.set(row);
+                }
+            }
+        }
+    }
+
+    private static final class IntColumn extends Column {
+        // exactly one of them is set, longs once a value needs them
+        private final int[] ints;
+        private final long[] longs;
+
+        private IntColumn(int[] ints, long[] longs, BitSet nulls, int size) {
+            super(nulls, size);
+            this.ints = ints;
+            this.longs = longs;
+        }
+
+        @Override
+        Object get(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            if (ints != null) {
+                return ints[row];
+            }
+            // rendered ints are Integers unless they need a Long
+            long value = longs[row];
+            return value == (int) value ? (Object) (int) value : (Object) value;
+        }
+
+        @Override
+        long getLong(int row) {
+            return ints != null ? ints[row] : longs[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return getLong(row);
+        }
+
+        @Override
+        void select(Object value, BitSet result) {
+            if (!(value instanceof Integer || value instanceof Long)) {
+                return;
+            }
+            long wanted = ((Number) value).longValue();
+            for (int row = 0; row < size; row++) {
+                if ((ints != null ? ints[row] : longs[row]) == wanted && !nulls.get(row)) {
+                    result.set(row);
+                }
+            }
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+        private final double[] values;
+
+        private DoubleColumn(double[] values, BitSet nulls) {
+            super(nulls, values.length);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+    }
+
+    private static final class BoolColumn extends Column {
+        private final BitSet values;
+
+        private BoolColumn(BitSet values, BitSet nulls, int size) {
+            super(nulls, size);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : values.get(row);
+        }
+
+        @Override
+        boolean getBoolean(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        void select(Object value, BitSet result) {
+            if (Boolean.TRUE.equals(value)) {
+                result.or(values);
+            } else if (Boolean.FALSE.equals(value)) {
+                result.set(0, size);
+                result.andNot(values);
+                result.andNot(nulls);
+            }
+        }
+    }
+
+    /**
+     * Values as codes into a dictionary of the distinct values, code 0 being null:
+     * one byte per row up to 255 distinct values, two up to 65535.
+     */
+    private static final class DictionaryColumn extends Column {
+        private final Object[] dictionary;
+        private final byte[] smallCodes;
+        private final char[] codes;
+
+        private DictionaryColumn(Object[] dictionary, byte[] smallCodes, char[] codes, BitSet nulls, int size) {
+            super(nulls, size);
+            this.dictionary = dictionary;
+            this.smallCodes = smallCodes;
+            this.codes = codes;
+        }
+
+        private int code(int row) {
+            return smallCodes != null ? smallCodes[row] & 0xFF : codes[row];
+        }
+
+        @Override
+        Object get(int row) {
+            return dictionary[code(row)];
+        }
+
+        @Override
+        void select(Object value, BitSet result) {
+            for (int code = 1; code < dictionary.length; code++) {
+                if (value.equals(dictionary[code])) {
+                    for (int row = 0; row < size; row++) {
+                        if (code(row) == code) {
+                            result.set(row);
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class ObjectColumn extends Column {
+        private final Object[] values;
+
+        ObjectColumn(Object[] values, BitSet nulls) {
+            super(nulls, values.length);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            if (values[row] instanceof Number) {
+                return ((Number) values[row]).doubleValue();
+            }
+            return super.getDouble(row);
+        }
+
+        @Override
+        void select(Object value, BitSet result) {
+            for (int row = 0; row < size; row++) {
+                if (Objects.equals(value, values[row])) {
+                    result.set(row);
+                }
+            }
+        }
+    }
+}
@@ -1,26 +1,64 @@
 package io.typedconfig.tyco;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Context for storing parsed Tyco configuration data
  * Manages globals, struct definitions, and instances with reference resolution
  */
 public class TycoContext {
-    private final Map<String, TycoLexer> pathCache;
-    private final Map<String, TycoStruct> structs;
-    private final Map<String, TycoAttribute> globals;
+    private final TycoParserOptions options;
+    // not final: a fork takes over its parent's tables once merged (see merge)
+    private Map<String, TycoLexer> pathCache;
+    private Map<String, TycoStruct> structs;
+    private Map<String, TycoAttribute> globals;
+    private final SourcePositions sourcePositions;
+    private EventEmitter events;
+    // built on the first update, see RenderGraph
+    private RenderGraph renderGraph;
+    private int renderVersion;
+    // false until content is rendered, and again while an update renders
+    private boolean rendered;
+    private final TycoInternPool internPool;
     
     public TycoContext() {
+        this(new TycoParserOptions());
+    }
+
+    public TycoContext(TycoParserOptions options) {
+        this(options, new SourcePositions());
+    }
+
+    TycoContext(TycoParserOptions options, SourcePositions sourcePositions) {
+        this(options, sourcePositions, options.getInternPool() != null ? options.getInternPool()
+            : options.isInterning() ? new TycoInternPool() : null);
+    }
+
+    TycoContext(TycoParserOptions options, SourcePositions sourcePositions, TycoInternPool internPool) {
+        this.options = options;
         this.pathCache = new HashMap<>();
         this.structs = new LinkedHashMap<>();
         this.globals = new LinkedHashMap<>();
+        this.sourcePositions = sourcePositions;
+        this.internPool = internPool;
     }
     
+    /**
+     * Gets the options this context was created with
+     */
+    public TycoParserOptions getOptions() {
+        return options;
+    }
+
     /**
      * Sets a global attribute
      */
@@ -76,32 +114,93 @@ public class TycoContext {
      * Renders all content (sets parents, renders base content, loads primary keys, renders references and templates)
      */
     public void renderContent() {
-        setParents();
-        renderBaseContent();
-        loadPrimaryKeys();
-        renderReferences();
-        renderTemplates();
+        rendered = false;
+        List<TycoInstance> instances = new ArrayList<>();
+        for (TycoStruct struct : structs.values()) {
+            instances.addAll(struct.instances());
+        }
+        if (options.isParallelRender() && instances.size() >= options.getParallelRenderThreshold()) {
+            try (ParallelRender parallel = new ParallelRender(options)) {
+                renderInParallel(instances, parallel);
+            }
+        } else {
+            setParents(instances);
+            renderBaseContent(instances);
+            loadPrimaryKeys();
+            renderReferences(instances);
+            renderTemplates(instances);
+        }
+        if (!options.isRetainLocations()) {
+            sourcePositions.drop();
+        }
+        rendered = true;
     }
-    
-    private void setParents() {
+
+    /**
+     * The phases of {@link #renderContent()}, each one over all instances in parallel.
+     * Globals and primary keys stay sequential. Every instance owns its attributes,
+     * so the phases up to templates do not depend on order; templates only when none
+     * of them is {@linkplain TycoValue#hasOrderDependentTemplates() order dependent}.
+     */
+    private void renderInParallel(List<TycoInstance> instances, ParallelRender parallel) {
         for (TycoAttribute attr : globals.values()) {
             attr.setParent(globals);
         }
-        for (TycoStruct struct : structs.values()) {
-            for (TycoInstance inst : struct.getInstances()) {
-                inst.setParent();
+        parallel.forEach(instances, TycoInstance::setParent);
+        for (TycoAttribute attr : globals.values()) {
+            attr.renderBaseContent();
+        }
+        parallel.forEach(instances, TycoInstance::renderBaseContent);
+        loadPrimaryKeys();
+        for (TycoAttribute attr : globals.values()) {
+            attr.renderReferences();
+        }
+        parallel.forEach(instances, TycoInstance::renderReferences);
+        if (parallel.anyMatch(instances, TycoContext::hasOrderDependentTemplates)) {
+            renderTemplates(instances);
+            return;
+        }
+        for (TycoAttribute attr : globals.values()) {
+            attr.renderTemplates();
+        }
+        parallel.forEach(instances, TycoInstance::renderTemplates);
+    }
+
+    private static boolean hasOrderDependentTemplates(TycoAttribute attr) {
+        if (attr instanceof TycoValue) {
+            return ((TycoValue) attr).hasOrderDependentTemplates();
+        }
+        if (attr instanceof TycoArray) {
+            for (TycoAttribute item : ((TycoArray) attr).items()) {
+                if (hasOrderDependentTemplates(item)) {
+                    return true;
+                }
+            }
+        } else if (attr instanceof TycoInstance) {
+            for (TycoAttribute item : ((TycoInstance) attr).attributes().values()) {
+                if (hasOrderDependentTemplates(item)) {
+                    return true;
+                }
             }
         }
+        return false;
+    }
+
+    private void setParents(List<TycoInstance> instances) {
+        for (TycoAttribute attr : globals.values()) {
+            attr.setParent(globals);
+        }
+        for (TycoInstance inst : instances) {
+            inst.setParent();
+        }
     }
     
-    private void renderBaseContent() {
+    private void renderBaseContent(List<TycoInstance> instances) {
         for (TycoAttribute attr : globals.values()) {
             attr.renderBaseContent();
         }
-        for (TycoStruct struct : structs.values()) {
-            for (TycoInstance inst : struct.getInstances()) {
-                inst.renderBaseContent();
-            }
+        for (TycoInstance inst : instances) {
+            inst.renderBaseContent();
         }
     }
     
@@ -111,28 +210,187 @@ public class TycoContext {
         }
     }
     
-    private void renderReferences() {
+    private void renderReferences(List<TycoInstance> instances) {
         for (TycoAttribute attr : globals.values()) {
             attr.renderReferences();
         }
-        for (TycoStruct struct : structs.values()) {
-            for (TycoInstance inst : struct.getInstances()) {
-                inst.renderReferences();
-            }
+        for (TycoInstance inst : instances) {
+            inst.renderReferences();
         }
     }
     
-    private void renderTemplates() {
+    private void renderTemplates(List<TycoInstance> instances) {
         for (TycoAttribute attr : globals.values()) {
             attr.renderTemplates();
         }
-        for (TycoStruct struct : structs.values()) {
-            for (TycoInstance inst : struct.getInstances()) {
-                inst.renderTemplates();
-            }
+        for (TycoInstance inst : instances) {
+            inst.renderTemplates();
         }
     }
     
+    /**
+     * Replace the value of a global on a rendered context and re-render what depends
+     * on it. The value is given as Tyco source, as it would follow the colon of the
+     * global, e.g. {@code updateGlobal("timezone", "'Europe/Berlin'")}. When the
+     * update fails the context stays as it was.
+     */
+    public void updateGlobal(String attrName, CharSequence content) {
+        TycoAttribute current = globals.get(attrName);
+        if (current == null) {
+            throw new TycoParseException("Unknown global attribute: " + attrName);
+        }
+        TycoAttribute replacement = TycoLexer.lexValue(this, content, attrName);
+        applySchemaInfoTo(current, replacement);
+        replacement.setParent(globals);
+        replacement.renderBaseContent();
+        update(current, replacement, () -> globals.put(attrName, replacement), () -> globals.put(attrName, current));
+    }
+
+    /**
+     * Replace attributes of the instance with the given primary key on a rendered
+     * context, and re-render what depends on it: references to the instance and the
+     * templates reading it. Values are given as Tyco source, e.g.
+     * {@code updateInstance("Host", List.of("web1"), Map.of("os", "Fedora"))}; the
+     * other attributes keep their source. When the update fails the context stays as
+     * it was.
+     */
+    public void updateInstance(String typeName, List<?> primaryKey, Map<String, ? extends CharSequence> attributes) {
+        TycoStruct struct = structs.get(typeName);
+        if (struct == null) {
+            throw new TycoParseException("Unknown struct: " + typeName);
+        }
+        TycoInstance current = struct.findInstance(primaryKey);
+        if (current == null) {
+            throw new TycoParseException("Unable to find instance of " + typeName + "(" + primaryKey + ")");
+        }
+        Map<String, TycoAttribute> replaced = new HashMap<>();
+        for (Map.Entry<String, ? extends CharSequence> entry : attributes.entrySet()) {
+            replaced.put(entry.getKey(), TycoLexer.lexValue(this, entry.getValue(), entry.getKey()));
+        }
+        TycoInstance replacement = struct.replaceAttributes(current, replaced);
+        replacement.setParent();
+        replacement.renderBaseContent();
+        update(current, replacement, () -> struct.replaceInstance(current, replacement), () -> struct.replaceInstance(replacement, current));
+    }
+
+    /**
+     * Put the base rendered {@code replacement} in the place of {@code current} with
+     * {@code swapIn} and render what changed with it. Only the dependents
+     * recorded in the {@link RenderGraph} are rendered again, unless that can give
+     * another result than a full render, which is then done instead.
+     */
+    private void update(TycoAttribute current, TycoAttribute replacement, Runnable swapIn, Runnable swapOut) {
+        RenderGraph graph = renderGraph();
+        swapIn.run();
+        renderVersion++;
+        rendered = false;
+        try {
+            Set<TycoValue> dependents = graph.readersOf(current);
+            Set<TycoReference> references = graph.referrersOf(current);
+            graph.remove(current);
+            for (TycoReference reference : references) {
+                reference.unrender();
+                reference.renderReferences();
+                graph.add(reference);
+            }
+            replacement.renderReferences();
+            graph.add(replacement);
+            for (TycoValue dependent : dependents) {
+                graph.reread(dependent);
+            }
+            if (graph.isOrderDependent(replacement, dependents)) {
+                renderAgain();
+                return;
+            }
+            replacement.renderTemplates();
+            for (TycoValue dependent : dependents) {
+                dependent.renderBaseContent();
+                dependent.renderTemplates();
+            }
+        } catch (RuntimeException e) {
+            swapOut.run();
+            renderAgain();
+            throw e;
+        } finally {
+            rendered = true;
+        }
+    }
+
+    private RenderGraph renderGraph() {
+        if (renderGraph == null) {
+            RenderGraph graph = new RenderGraph();
+            for (TycoAttribute attr : globals.values()) {
+                graph.add(attr);
+            }
+            for (TycoStruct struct : structs.values()) {
+                for (TycoInstance inst : struct.instances()) {
+                    graph.add(inst);
+                }
+            }
+            renderGraph = graph;
+        }
+        return renderGraph;
+    }
+
+    /**
+     * Render everything again, from the base content on
+     */
+    private void renderAgain() {
+        renderGraph = null;
+        List<TycoAttribute> attrs = new ArrayList<>(globals.values());
+        for (TycoStruct struct : structs.values()) {
+            struct.clearPrimaryKeys();
+            attrs.addAll(struct.instances());
+        }
+        for (TycoAttribute attr : attrs) {
+            RenderGraph.forEach(attr, item -> {
+                if (item instanceof TycoReference) {
+                    ((TycoReference) item).unrender();
+                }
+            });
+        }
+        renderContent();
+    }
+
+    /**
+     * Incremented by every update, so that cached objects can tell they are stale
+     */
+    int getRenderVersion() {
+        return renderVersion;
+    }
+
+    /**
+     * Whether content is fully rendered, so that materialized objects cached under
+     * the current {@link #getRenderVersion() render version} stay valid
+     */
+    boolean isRendered() {
+        return rendered;
+    }
+
+    /**
+     * The pool values and names are interned into, null unless
+     * {@link TycoParserOptions#isInterning() interning} is enabled.
+     */
+    public TycoInternPool getInternPool() {
+        return internPool;
+    }
+
+    /** {@code value} as interned in the pool, if there is one */
+    <T> T intern(T value) {
+        return internPool == null ? value : internPool.intern(value);
+    }
+
+    /**
+     * Query over the rendered instances of a struct, see {@link TycoQuery}
+     */
+    public TycoQuery query(String typeName) {
+        TycoStruct struct = getStruct(typeName);
+        if (struct == null) {
+            throw new TycoParseException("Unknown struct: " + typeName);
+        }
+        return struct.query();
+    }
+
     /**
      * Materializes a single object (globals + struct arrays) analogous to the Python binding.
      */
@@ -159,6 +417,22 @@ public class TycoContext {
         return result;
     }
 
+    /**
+     * Writes the JSON of {@link #toObject()} straight from the rendered attributes,
+     * without building its maps. The writer is flushed, not closed.
+     */
+    public void writeJson(Writer out) throws IOException {
+        JsonWriter.write(globals, structs.values(), out);
+    }
+
+    /**
+     * Writes the JSON of {@link #toObject()} as UTF-8, see {@link #writeJson(Writer)}.
+     * The stream is flushed, not closed.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        JsonWriter.write(globals, structs.values(), out);
+    }
+
     /**
      * @deprecated Use {@link #toObject()} instead.
      */
@@ -167,6 +441,103 @@ public class TycoContext {
         return toObject();
     }
 
+    /**
+     * Move the globals, structs and lexed files of a fork into this context, as if
+     * they had been lexed here. Globals go through the usual duplicate check. The
+     * fork then shares this context's tables, so the attributes created in it see
+     * the merged content when they are rendered.
+     */
+    void merge(TycoContext fork) {
+        for (Map.Entry<String, TycoAttribute> entry : fork.globals.entrySet()) {
+            setGlobalAttribute(entry.getKey(), entry.getValue());
+        }
+        structs.putAll(fork.structs);
+        pathCache.putAll(fork.pathCache);
+        fork.pathCache = pathCache;
+        fork.structs = structs;
+        fork.globals = globals;
+    }
+
+    /**
+     * Copy the globals, structs and lexed files of a context that was lexed on its
+     * own into this one, e.g. from {@link TycoIncludeCache}. Unlike {@link #merge}
+     * the source context is only read, so it can be copied again.
+     */
+    void adopt(TycoContext lexed) {
+        int fileOffset = sourcePositions.adopt(lexed.sourcePositions);
+        for (Map.Entry<String, TycoAttribute> entry : lexed.globals.entrySet()) {
+            setGlobalAttribute(entry.getKey(), copyInto(entry.getValue(), this, fileOffset));
+        }
+        for (TycoStruct struct : lexed.structs.values()) {
+            if (lexed instanceof ForkedContext && ((ForkedContext) lexed).isBorrowed(struct.getTypeName())) {
+                // lexed against a copy of the schema here, so only the instances are new
+                structs.get(struct.getTypeName()).adoptInstances(struct, fileOffset);
+            } else {
+                structs.put(struct.getTypeName(), struct.copyInto(this, fileOffset));
+            }
+        }
+        for (Map.Entry<String, TycoLexer> entry : lexed.pathCache.entrySet()) {
+            pathCache.put(entry.getKey(), entry.getValue().copyInto(this, fileOffset));
+        }
+    }
+
+    static TycoAttribute copyInto(TycoAttribute attr, TycoContext context, int fileOffset) {
+        if (attr instanceof TycoValue) {
+            return ((TycoValue) attr).copyInto(context, fileOffset);
+        }
+        if (attr instanceof TycoArray) {
+            return ((TycoArray) attr).copyInto(context, fileOffset);
+        }
+        if (attr instanceof TycoInstance) {
+            return ((TycoInstance) attr).copyInto(context, fileOffset);
+        }
+        if (attr instanceof TycoReference) {
+            return ((TycoReference) attr).copyInto(context, fileOffset);
+        }
+        return attr.makeCopy();
+    }
+
+    private static void applySchemaInfoTo(TycoAttribute current, TycoAttribute replacement) {
+        if (current instanceof TycoValue) {
+            ((TycoValue) current).applySchemaInfoTo(replacement);
+        } else if (current instanceof TycoArray) {
+            ((TycoArray) current).applySchemaInfoTo(replacement);
+        } else if (current instanceof TycoInstance) {
+            ((TycoInstance) current).applySchemaInfoTo(replacement);
+        } else if (current instanceof TycoReference) {
+            ((TycoReference) current).applySchemaInfoTo(replacement);
+        }
+    }
+
+    /** Globals in declaration order, without a copy */
+    Map<String, TycoAttribute> globals() {
+        return globals;
+    }
+
+    /** Structs in declaration order, without a copy */
+    Collection<TycoStruct> structs() {
+        return structs.values();
+    }
+
+    Set<String> getCachedPaths() {
+        return pathCache.keySet();
+    }
+
+    SourcePositions getSourcePositions() {
+        return sourcePositions;
+    }
+
+    /**
+     * Events to push content to while lexing instead of collecting instances
+     */
+    EventEmitter getEvents() {
+        return events;
+    }
+
+    void setEvents(EventEmitter events) {
+        this.events = events;
+    }
+
     TycoLexer getCachedLexer(String path) {
         return pathCache.get(path);
     }
@@ -0,0 +1,50 @@
+package io.typedconfig.tyco;
+
+import java.util.Map;
+
+/**
+ * Callbacks for {@link TycoParser#scan}, which pushes content to the handler as the
+ * lexer reaches it instead of building a {@link TycoContext} with all instances.
+ * Only the schemas, struct defaults and globals are kept while scanning, so memory
+ * is bounded by the largest single instance rather than by the file (use
+ * {@link TycoParserOptions#setMemoryMapped} to keep the source itself off the heap).
+ *
+ * <p>Values are delivered rendered, as {@link TycoContext#toObject()} would return
+ * them. References ({@code Type(key)} to a struct with primary keys) are out of scope:
+ * resolving them needs every instance of the referenced struct, so they are rejected
+ * with a {@link TycoParseException}. Templates are expanded as usual, except that a
+ * global can only use the globals declared before it.
+ */
+public interface TycoEventHandler {
+
+    /**
+     * An {@code #include} line, called before the included file is scanned.
+     */
+    default void onInclude(String path) {
+    }
+
+    /**
+     * A global attribute with its rendered value
+     */
+    default void onGlobal(String attrName, Object value) {
+    }
+
+    /**
+     * The schema of a struct, called once after it is declared and before its
+     * instances
+     */
+    default void onStructSchema(TycoStruct struct) {
+    }
+
+    /**
+     * An instance with defaults applied, keyed by attribute name
+     */
+    default void onInstance(String typeName, Map<String, Object> fields) {
+    }
+
+    /**
+     * End of the content
+     */
+    default void onEnd() {
+    }
+}
@@ -0,0 +1,258 @@
+package io.typedconfig.tyco;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Bounded cache of lexed include files that can be shared by any number of loads,
+ * also from different threads. Enable it with {@link TycoParserOptions#setIncludeCache}.
+ *
+ * <p>An included file is lexed once into a context of its own, together with the
+ * files it includes itself. Later loads get a copy of the result instead of reading
+ * and lexing the files again. Entries are keyed by canonical path and are used
+ * while the modification time and size of every file in them (and optionally a
+ * checksum of the content) are unchanged. Files are lexed with the options of the
+ * including load, read onto the heap instead of mapped, and an entry is only used
+ * by loads with the same lexing options. Least recently used entries are evicted
+ * once there are more than {@code maxEntries}.
+ *
+ * <p>A copy is only used when it is what lexing the file at that point would have
+ * produced: the including context must not define any of its structs or globals
+ * yet, nor have read any of its files. Otherwise the file is lexed as usual.
+ */
+public final class TycoIncludeCache {
+    private static final TycoIncludeCache SHARED = new TycoIncludeCache(256);
+
+    private final int maxEntries;
+    private final boolean hashContent;
+    private final Map<Path, CachedInclude> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries maximum number of cached include files
+     */
+    public TycoIncludeCache(int maxEntries) {
+        this(maxEntries, false);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached include files
+     * @param hashContent also compare a checksum of the file content, for file
+     *                    systems with a coarse modification time
+     */
+    public TycoIncludeCache(int maxEntries, boolean hashContent) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Include cache needs room for at least one entry: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.hashContent = hashContent;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CachedInclude> eldest) {
+                if (size() > TycoIncludeCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The process-wide cache, holding up to 256 include files.
+     */
+    public static TycoIncludeCache shared() {
+        return SHARED;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Copy the lexed include file into {@code context} and return its lexer, or
+     * return null when the file has to be lexed into the context as usual.
+     */
+    TycoLexer include(TycoContext context, String filePath) {
+        Path key;
+        try {
+            key = Path.of(filePath).toRealPath();
+        } catch (IOException e) {
+            return null;
+        }
+
+        CachedInclude entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        boolean hit = entry != null && entry.isCurrent(filePath) && entry.isLexedLike(context);
+        if (!hit) {
+            entry = lex(context, filePath);
+            if (entry != null) {
+                synchronized (this) {
+                    entries.put(key, entry);
+                }
+            }
+        }
+
+        boolean fits = entry != null && entry.lexed.canBeAdoptedBy(context);
+        synchronized (this) {
+            if (hit && fits) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (!fits) {
+            return null;
+        }
+        context.adopt(entry.lexed);
+        return context.getCachedLexer(filePath);
+    }
+
+    private CachedInclude lex(TycoContext context, String filePath) {
+        FileStamp stamp = FileStamp.of(filePath, hashContent);
+        if (stamp == null) {
+            return null;
+        }
+        // lexed as the including load would, except onto the heap, so that no
+        // mapped buffer outlives it
+        TycoParserOptions options = context.getOptions().copy();
+        options.setMemoryMapped(false);
+        options.setIncludeCache(this);
+        ForkedContext lexed = new ForkedContext(new TycoContext(options, new SourcePositions(), context.getInternPool()));
+        try {
+            TycoLexer lexer = TycoLexer.open(lexed, filePath);
+            lexer.process();
+            lexed.cacheLexer(filePath, lexer);
+        } catch (RuntimeException e) {
+            // lexed again in the including context, which reports the error
+            return null;
+        }
+
+        List<FileStamp> stamps = new ArrayList<>();
+        stamps.add(stamp);
+        for (String path : lexed.getCachedPaths()) {
+            if (!path.equals(filePath)) {
+                FileStamp nested = FileStamp.of(path, hashContent);
+                if (nested == null) {
+                    return null;
+                }
+                stamps.add(nested);
+            }
+        }
+        return new CachedInclude(filePath, lexed, stamps);
+    }
+
+    private final class CachedInclude {
+        final String path;
+        final ForkedContext lexed;
+        final List<FileStamp> stamps;
+
+        CachedInclude(String path, ForkedContext lexed, List<FileStamp> stamps) {
+            this.path = path;
+            this.lexed = lexed;
+            this.stamps = stamps;
+        }
+
+        /**
+         * Whether none of the files changed, and the file is included under the same
+         * path, which nested includes and locations are based on.
+         */
+        boolean isCurrent(String filePath) {
+            if (!path.equals(filePath)) {
+                return false;
+            }
+            for (FileStamp stamp : stamps) {
+                if (!stamp.equals(FileStamp.of(stamp.path, hashContent))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether {@code context} lexes files as this was lexed: with the same
+         * options, and interning names into the same shared pool if there is one
+         */
+        boolean isLexedLike(TycoContext context) {
+            TycoParserOptions own = lexed.getOptions();
+            TycoParserOptions other = context.getOptions();
+            return own.isStrict() == other.isStrict()
+                && own.getTemplateIterations() == other.getTemplateIterations()
+                && own.isRetainLocations() == other.isRetainLocations()
+                && own.isInterning() == other.isInterning()
+                && own.getInternPool() == other.getInternPool();
+        }
+    }
+
+    private static final class FileStamp {
+        final String path;
+        final FileTime modified;
+        final long size;
+        final long checksum;
+
+        private FileStamp(String path, FileTime modified, long size, long checksum) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        static FileStamp of(String path, boolean hashContent) {
+            try {
+                Path file = Path.of(path);
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                long checksum = 0;
+                if (hashContent) {
+                    CRC32C crc = new CRC32C();
+                    crc.update(Files.readAllBytes(file));
+                    checksum = crc.getValue();
+                }
+                return new FileStamp(path, attributes.lastModifiedTime(), attributes.size(), checksum);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) o;
+            return path.equals(other.path) && modified.equals(other.modified) && size == other.size && checksum == other.checksum;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + modified.hashCode();
+        }
+    }
+}
@@ -14,7 +14,12 @@ public class TycoInstance implements TycoAttribute {
     private Boolean isArray;     // set later
     protected Object parent;       // set later
     private Map<String, Object> objectCache;
-    private SourceLocation location;
+    private int objectCacheVersion;
+    private Map<String, Object> jsonCache;           // with shared materialization only
+    private int jsonCacheVersion;
+    // attributes whose base content has been rendered, in iteration order
+    private int baseRendered;
+    private long position;
     
     public TycoInstance(TycoContext context, String typeName, Map<String, TycoAttribute> instKwargs) {
         this.context = context;
@@ -30,6 +35,10 @@ public class TycoInstance implements TycoAttribute {
     public TycoAttribute getAttribute(String attrName) {
         return instKwargs.get(attrName);
     }
+
+    Map<String, TycoAttribute> attributes() {
+        return instKwargs;
+    }
     
     public String getAttrName() {
         return attrName;
@@ -41,33 +50,47 @@ public class TycoInstance implements TycoAttribute {
     
     @Override
     public TycoAttribute makeCopy() {
+        return copyInto(context, 0);
+    }
+
+    TycoInstance copyInto(TycoContext context, int fileOffset) {
         Map<String, TycoAttribute> copiedKwargs = new HashMap<>();
         for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
-            copiedKwargs.put(entry.getKey(), entry.getValue().makeCopy());
+            copiedKwargs.put(entry.getKey(), TycoContext.copyInto(entry.getValue(), context, fileOffset));
         }
         TycoInstance copy = new TycoInstance(context, typeName, copiedKwargs);
         copy.attrName = this.attrName;
         copy.isNullable = this.isNullable;
         copy.isArray = this.isArray;
         copy.parent = this.parent;
-        copy.location = this.location;
+        copy.position = SourcePositions.relocate(this.position, fileOffset);
         return copy;
     }
 
     @Override
     public void setLocation(SourceLocation location) {
-        this.location = location;
+        this.position = context.getSourcePositions().pack(location);
     }
 
     @Override
     public SourceLocation getLocation() {
-        return location;
+        return context.getSourcePositions().resolve(position);
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void setPosition(long position) {
+        this.position = position;
     }
     
     @Override
     public void applySchemaInfo(String typeName, String attrName, Boolean isNullable, Boolean isArray) {
         if (typeName != null && !this.typeName.equals(typeName)) {
-            throw new TycoParseException("Expected " + typeName + " for " + parent + "." + attrName + " and instead have " + this, location);
+            throw new TycoParseException("Expected " + typeName + " for " + parent + "." + attrName + " and instead have " + this, getLocation());
         }
         if (attrName != null) {
             this.attrName = attrName;
@@ -80,15 +103,22 @@ public class TycoInstance implements TycoAttribute {
         }
         
         if (Boolean.TRUE.equals(this.isArray)) {
-            throw new TycoParseException("Expected array for " + parent + "." + attrName + ", instead have " + this, location);
+            throw new TycoParseException("Expected array for " + parent + "." + attrName + ", instead have " + this, getLocation());
         }
     }
     
+    /** Apply the schema info of this instance to one replacing it */
+    void applySchemaInfoTo(TycoAttribute replacement) {
+        replacement.applySchemaInfo(typeName, attrName, isNullable, isArray);
+    }
+
     @Override
     public void setParent(Object parent) {
         this.parent = parent;
         for (TycoAttribute attr : instKwargs.values()) {
-            attr.setParent(this);
+            if (!isShared(attr)) {
+                attr.setParent(this);
+            }
         }
     }
     
@@ -99,53 +129,171 @@ public class TycoInstance implements TycoAttribute {
 
     @Override
     public void renderBaseContent() {
+        baseRendered = 0;
         for (TycoAttribute attr : instKwargs.values()) {
-            attr.renderBaseContent();
+            if (isShared(attr)) {
+                renderShared(attr);
+            } else {
+                attr.renderBaseContent();
+            }
+            baseRendered++;
+        }
+    }
+
+    private static boolean isShared(TycoAttribute attr) {
+        return io.typedconfig.tyco.TycoStruct.isShared(attr);
+    }
+
+    /**
+     * Render a shared default unless another instance already did. Until it
+     * succeeds, every instance tries with itself as parent, so errors name the same
+     * instance as they would for a copy of the default.
+     */
+    private void renderShared(TycoAttribute attr) {
+        synchronized (attr) {
+            boolean rendered = attr instanceof TycoValue ? ((TycoValue) attr).isBaseRendered() : ((TycoArray) attr).isBaseRendered();
+            if (!rendered) {
+                attr.setParent(this);
+                attr.renderBaseContent();
+            }
         }
     }
     
     @Override
     public void renderReferences() {
         for (TycoAttribute attr : instKwargs.values()) {
-            attr.renderReferences();
+            if (!isShared(attr)) {
+                attr.renderReferences();
+            }
         }
     }
     
     @Override
     public void renderTemplates() {
         for (TycoAttribute attr : instKwargs.values()) {
-            attr.renderTemplates();
+            if (!isShared(attr)) {
+                attr.renderTemplates();
+            }
         }
     }
     
     @Override
     public Object getRendered() {
-        Map<String, Object> rendered = new LinkedHashMap<>();
-        for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
-            rendered.put(entry.getKey(), entry.getValue().getRendered());
+        if (context.isRendered()) {
+            // the same read-only values as getObject(), which are kept until the next update
+            return getObject();
+        }
+        Materializing.enter(this);
+        try {
+            Map<String, Object> rendered = new LinkedHashMap<>();
+            for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
+                rendered.put(entry.getKey(), entry.getValue().getRendered());
+            }
+            return rendered;
+        } finally {
+            Materializing.exit();
         }
-        return rendered;
     }
     
     @Override
     public Object getObject() {
-        if (objectCache == null) {
-            Map<String, Object> kwargs = new LinkedHashMap<>();
+        boolean cached = context.isRendered();
+        if (cached && objectCache != null && objectCacheVersion == context.getRenderVersion()) {
+            return objectCache;
+        }
+        Materializing.enter(this);
+        Map<String, Object> kwargs = new LinkedHashMap<>();
+        Map<String, Object> result = kwargs;
+        try {
+            if (cached) {
+                // kept before it is filled, so that a reference cycle leads back to it; read-only
+                // since every later call and every reference to this instance shares it
+                result = Collections.unmodifiableMap(kwargs);
+                objectCacheVersion = context.getRenderVersion();
+                objectCache = result;
+            }
             for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
                 kwargs.put(entry.getKey(), entry.getValue().getObject());
             }
-            objectCache = kwargs;
+        } catch (RuntimeException e) {
+            objectCache = null;
+            throw e;
+        } finally {
+            Materializing.exit();
         }
-        return objectCache;
+        return result;
     }
     
     @Override
     public Object toJson() {
-        Map<String, Object> json = new LinkedHashMap<>();
-        for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
-            json.put(entry.getKey(), entry.getValue().toJson());
+        boolean shared = context.getOptions().isSharedMaterialization() && context.isRendered();
+        if (shared && jsonCache != null && jsonCacheVersion == context.getRenderVersion()) {
+            return jsonCache;
+        }
+        Materializing.enter(this);
+        try {
+            Map<String, Object> json = new LinkedHashMap<>();
+            for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
+                json.put(entry.getKey(), entry.getValue().toJson());
+            }
+            if (!shared) {
+                return json;
+            }
+            jsonCacheVersion = context.getRenderVersion();
+            jsonCache = Collections.unmodifiableMap(json);
+            return jsonCache;
+        } finally {
+            Materializing.exit();
+        }
+    }
+
+    /** Type and primary key values, e.g. {@code Host(web1)}, safe to print in a reference cycle */
+    String describe() {
+        StringJoiner key = new StringJoiner(", ", typeName + "(", ")");
+        io.typedconfig.tyco.TycoStruct struct = context.getStruct(typeName);
+        if (struct != null) {
+            for (String keyName : struct.getPrimaryKeys()) {
+                TycoAttribute attr = instKwargs.get(keyName);
+                key.add(String.valueOf(attr instanceof TycoValue ? attr.getRendered() : attr));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Fail when {@code instance} is on the {@code path} of instances being
+     * materialized, so that it can only be reached through itself
+     */
+    static void checkCycle(List<TycoInstance> path, TycoInstance instance) {
+        for (int i = 0; i < path.size(); i++) {
+            if (path.get(i) == instance) {
+                StringJoiner cycle = new StringJoiner(" -> ", "Reference cycle: ", "");
+                for (int j = i; j < path.size(); j++) {
+                    cycle.add(path.get(j).describe());
+                }
+                cycle.add(instance.describe());
+                throw new TycoParseException(cycle.toString(), instance.getLocation());
+            }
+        }
+    }
+
+    /**
+     * The instances being materialized by the current thread, outermost first. An
+     * instance met again before it is done can only be reached through itself.
+     */
+    private static final class Materializing {
+        private static final ThreadLocal<List<TycoInstance>> PATH = ThreadLocal.withInitial(ArrayList::new);
+
+        static void enter(TycoInstance instance) {
+            List<TycoInstance> path = PATH.get();
+            checkCycle(path, instance);
+            path.add(instance);
+        }
+
+        static void exit() {
+            List<TycoInstance> path = PATH.get();
+            path.remove(path.size() - 1);
         }
-        return json;
     }
     
     /**
@@ -157,7 +305,23 @@ public class TycoInstance implements TycoAttribute {
     
     @Override
     public String toString() {
-        return "TycoInstance(" + typeName + ", " + instKwargs + ")";
+        // shared defaults may have been rendered by another instance already; show
+        // them as this instance's own copy would be
+        StringJoiner kwargs = new StringJoiner(", ", "{", "}");
+        int index = 0;
+        for (Map.Entry<String, TycoAttribute> entry : instKwargs.entrySet()) {
+            TycoAttribute attr = entry.getValue();
+            String text;
+            if (index++ < baseRendered || !isShared(attr)) {
+                text = String.valueOf(attr);
+            } else if (attr instanceof TycoValue) {
+                text = ((TycoValue) attr).toUnrenderedString();
+            } else {
+                text = ((TycoArray) attr).toUnrenderedString();
+            }
+            kwargs.add(entry.getKey() + "=" + text);
+        }
+        return "TycoInstance(" + typeName + ", " + kwargs + ")";
     }
     
     // Static method for creating objects dynamically
@@ -0,0 +1,144 @@
+package io.typedconfig.tyco;
+
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool that makes equal rendered values share one object: strings, boxed numbers
+ * and decimals, as well as the attribute and type names read by the lexer. Enable
+ * it with {@link TycoParserOptions#setInterning} for a pool per context, or with
+ * {@link TycoParserOptions#setInternPool} to share a pool between loads.
+ *
+ * <p>A pool holds its values strongly, for as long as the pool is used, unless it
+ * is weak: a weak pool, like {@link #shared()}, drops values that nothing else
+ * uses any more. Pools are safe to use from several threads.
+ */
+public final class TycoInternPool {
+    private static final TycoInternPool SHARED = new TycoInternPool(true);
+
+    private final Map<Object, Object> values;
+    private final Map<Object, WeakReference<Object>> weakValues;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    public TycoInternPool() {
+        this(false);
+    }
+
+    /**
+     * @param weak drop values that are no longer used elsewhere
+     */
+    public TycoInternPool(boolean weak) {
+        this.values = weak ? null : new ConcurrentHashMap<>();
+        this.weakValues = weak ? new WeakHashMap<>() : null;
+    }
+
+    /**
+     * The process-wide weak pool.
+     */
+    public static TycoInternPool shared() {
+        return SHARED;
+    }
+
+    public boolean isWeak() {
+        return weakValues != null;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Estimated heap taken by the duplicates that hits replaced, assuming
+     * compressed object pointers.
+     */
+    public long getSavedBytes() {
+        return savedBytes.sum();
+    }
+
+    public int size() {
+        if (weakValues != null) {
+            synchronized (weakValues) {
+                return weakValues.size();
+            }
+        }
+        return values.size();
+    }
+
+    public void clear() {
+        if (weakValues != null) {
+            synchronized (weakValues) {
+                weakValues.clear();
+            }
+        } else {
+            values.clear();
+        }
+    }
+
+    /**
+     * The pooled value equal to {@code value}, which is pooled first if there is
+     * none. Values of other types than strings and numbers are returned as is.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T intern(T value) {
+        if (!(value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Double || value instanceof BigDecimal)) {
+            return value;
+        }
+        Object pooled;
+        if (weakValues != null) {
+            synchronized (weakValues) {
+                WeakReference<Object> reference = weakValues.get(value);
+                pooled = reference == null ? null : reference.get();
+                if (pooled == null) {
+                    weakValues.put(value, new WeakReference<>(value));
+                }
+            }
+        } else {
+            pooled = values.putIfAbsent(value, value);
+        }
+        if (pooled == null) {
+            misses.increment();
+            return value;
+        }
+        if (pooled != value) {
+            hits.increment();
+            savedBytes.add(sizeOf(value));
+        }
+        return (T) pooled;
+    }
+
+    private static long sizeOf(Object value) {
+        if (value instanceof String) {
+            // String with its byte array, one byte per char unless it needs two
+            String text = (String) value;
+            boolean latin1 = true;
+            for (int i = 0; i < text.length() && latin1; i++) {
+                latin1 = text.charAt(i) < 0x100;
+            }
+            return 24 + align(16 + (long) text.length() * (latin1 ? 1 : 2));
+        }
+        if (value instanceof BigDecimal) {
+            return 40;
+        }
+        return value instanceof Integer ? 16 : 24;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    @Override
+    public String toString() {
+        return "TycoInternPool(" + size() + " values, " + getHits() + " hits, " + getMisses() + " misses)";
+    }
+}
@@ -3,147 +3,266 @@ package io.typedconfig.tyco;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Lexer/loader responsible for turning Tyco source into structured attributes.
  * Closely follows the Python reference implementation.
+ *
+ * <p>The whole source is kept in one buffer that is walked with integer offsets.
+ * The cursor (current line plus a position inside it) stands in for the line
+ * queue of the reference implementation: popping a line moves to the next one and
+ * pushing back a remainder just moves the position. Values are {@link CharSequence}
+ * views into the buffer, so nothing is copied until a value is rendered. Lines are
+ * recognised by {@link LineClassifier} rather than regular expressions.
+ *
+ * <p>With {@link TycoParserOptions#isMemoryMapped()} files are mapped and lexed as
+ * raw UTF-8 bytes (see {@link ByteSource}); only the spans that end up rendered are
+ * decoded.
  */
 public class TycoLexer {
 
-    private static final String IRE = "((?!\\d)\\w+)";
-    private static final String ATTR_IRE = "((?!\\d)[\\w\\.]+)";
-    private static final Pattern INCLUDE_REGEX = Pattern.compile("^#include\\s+(\\S.*)$");
-    private static final Pattern GLOBAL_SCHEMA_REGEX = Pattern.compile("^([?])?" + IRE + "(\\[\\])?\\s+" + ATTR_IRE + "\\s*:");
-    private static final Pattern STRUCT_BLOCK_REGEX = Pattern.compile("^" + IRE + ":");
-    private static final Pattern STRUCT_SCHEMA_REGEX = Pattern.compile("^\\s+([*?])?" + IRE + "(\\[\\])?\\s+" + ATTR_IRE + "\\s*:");
-    private static final Pattern STRUCT_DEFAULTS_REGEX = Pattern.compile("^\\s+" + ATTR_IRE + "\\s*:");
-    private static final Pattern STRUCT_INSTANCE_REGEX = Pattern.compile("^\\s*-");
-    private static final Pattern IDENTIFIER_COLON_REGEX = Pattern.compile("^" + ATTR_IRE + "\\s*:\\s*");
-    private static final String EOL = "\n";
+    private static final String EOL = DelimiterTable.EOL;
 
     private final TycoContext context;
-    private final Deque<SourceLine> lines;
+    private final CharSequence source;
+    private final ByteSource bytes;
+    private final int length;
     private final String path;
-    private final int numLines;
     private final Map<String, Map<String, TycoAttribute>> defaults = new HashMap<>();
+    private final LineClassifier classifier = new LineClassifier();
+    private final SourcePositions positions;
+    private final int fileId;
+    private final EventEmitter events;
+
+    // struct block whose defaults and instances are being read, if any
+    private TycoStruct openStruct;
+
+    // cursor: the current line is [lineStart, lineEnd] (lineEnd is its '\n') and
+    // the unconsumed part of it is [pos, lineEnd + 1)
+    private int lineNo = 1;
+    private int lineStart;
+    private int lineEnd;
+    private int pos;
 
     public static TycoLexer fromPath(TycoContext context, String filePath) {
         TycoLexer cached = context.getCachedLexer(filePath);
         if (cached != null) {
             return cached;
         }
+        TycoLexer lexer = open(context, filePath);
+        lexer.process();
+        context.cacheLexer(filePath, lexer);
+        return lexer;
+    }
+
+    /**
+     * Read a file into a new lexer without processing it.
+     */
+    static TycoLexer open(TycoContext context, String filePath) {
         Path path = Path.of(filePath);
         if (!Files.exists(path) || !Files.isRegularFile(path)) {
             throw new TycoParseException("Can only load path if it is a regular file: " + filePath);
         }
         try {
-            List<String> fileLines = Files.readAllLines(path);
-            List<SourceLine> sourceLines = new ArrayList<>(fileLines.size());
-            for (int i = 0; i < fileLines.size(); i++) {
-                String raw = fileLines.get(i);
-                String withNewline = raw + EOL;
-                SourceLocation location = new SourceLocation(filePath, i + 1, 1, raw);
-                sourceLines.add(new SourceLine(withNewline, location));
-            }
-            TycoLexer lexer = new TycoLexer(context, sourceLines, filePath);
-            lexer.process();
-            context.cacheLexer(filePath, lexer);
-            return lexer;
+            CharSequence content = null;
+            if (context.getOptions().isMemoryMapped()) {
+                ByteSource mapped = ByteSource.map(path);
+                if (!mapped.hasCarriageReturns()) {
+                    content = mapped;
+                }
+            }
+            if (content == null) {
+                content = normalizeLineEndings(Files.readString(path));
+            }
+            return new TycoLexer(context, content, filePath);
         } catch (IOException e) {
             throw new TycoParseException("Cannot read file: " + filePath, e);
         }
     }
 
     public TycoLexer(TycoContext context, List<SourceLine> lines, String path) {
+        this(context, joinLines(lines), path);
+    }
+
+    /**
+     * Create a lexer over a complete source buffer. Lines are separated by {@code '\n'};
+     * a missing trailing newline is added.
+     */
+    public TycoLexer(TycoContext context, CharSequence source, String path) {
+        this(context, withEol(source), path, true);
+    }
+
+    private TycoLexer(TycoContext context, CharSequence source, String path, boolean register) {
         this.context = context;
-        this.lines = new ArrayDeque<>(lines);
+        this.source = source;
+        this.bytes = source instanceof ByteSource ? (ByteSource) source : null;
+        this.length = source.length();
         this.path = path;
-        this.numLines = lines.size();
+        this.lineEnd = findLineEnd(0);
+        this.positions = context.getSourcePositions();
+        this.fileId = register ? positions.register(path, source) : -1;
+        this.events = context.getEvents();
+    }
+
+    /**
+     * Lex {@code text} as the value of attribute {@code attrName}, e.g. for
+     * {@link TycoContext#updateGlobal}. The text is not kept as a source of the
+     * context, so the value has no location.
+     */
+    static TycoAttribute lexValue(TycoContext context, CharSequence text, String attrName) {
+        TycoLexer lexer = new TycoLexer(context, withEol(text), "<update>", false);
+        int valueStart = lexer.hasLine() ? lexer.skipIndent(0) : 0;
+        if (!lexer.hasLine() || lexer.contentEnd(valueStart) == valueStart) {
+            throw new TycoParseException("Must provide a value for " + attrName);
+        }
+        lexer.pos = valueStart;
+        AttrResult result = lexer.loadTycoAttr(DelimiterTable.LINE, true, attrName);
+        while (lexer.hasLine()) {
+            int start = lexer.skipIndent(lexer.pos);
+            if (lexer.contentEnd(start) > start) {
+                throw new TycoParseException("Unexpected content after value of " + attrName + ": " + lexer.text(start, lexer.contentEnd(start)));
+            }
+            lexer.nextLine();
+        }
+        return result.attribute;
+    }
+
+    /**
+     * Processed copy of this lexer for another context (see {@link TycoContext#adopt}).
+     */
+    private TycoLexer(TycoLexer lexed, TycoContext context, int fileOffset) {
+        this.context = context;
+        this.source = lexed.source;
+        this.bytes = lexed.bytes;
+        this.length = lexed.length;
+        this.path = lexed.path;
+        this.positions = context.getSourcePositions();
+        this.fileId = lexed.fileId + fileOffset;
+        this.events = context.getEvents();
+        for (Map.Entry<String, Map<String, TycoAttribute>> entry : lexed.defaults.entrySet()) {
+            Map<String, TycoAttribute> copied = new HashMap<>();
+            for (Map.Entry<String, TycoAttribute> attr : entry.getValue().entrySet()) {
+                copied.put(attr.getKey(), TycoContext.copyInto(attr.getValue(), context, fileOffset));
+            }
+            this.defaults.put(entry.getKey(), copied);
+        }
+        this.lineNo = lexed.lineNo;
+        this.lineStart = length;
+        this.lineEnd = length;
+        this.pos = length;
+    }
+
+    TycoLexer copyInto(TycoContext context, int fileOffset) {
+        return new TycoLexer(this, context, fileOffset);
     }
 
     public void process() {
-        while (!lines.isEmpty()) {
-            SourceLine lineEntry = popLineEntry();
-            if (lineEntry == null) {
-                break;
+        while (step()) {
+            // keep going
+        }
+    }
+
+    /**
+     * Lex the next top-level item, or the next default or instance of the struct
+     * block being read. Returns false once the source is exhausted.
+     */
+    boolean step() {
+        if (openStruct != null) {
+            if (hasLine() && loadLocalDefaultOrInstance(openStruct)) {
+                return true;
             }
-            String line = lineEntry.getText();
-            SourceLocation lineLocation = lineEntry.getLocation();
+            openStruct = null;
+        }
+        if (!hasLine()) {
+            return false;
+        }
 
-            Matcher includeMatcher = INCLUDE_REGEX.matcher(rstrip(line));
-            if (includeMatcher.matches()) {
-                String includePath = includeMatcher.group(1).trim();
-                if (!Path.of(includePath).isAbsolute()) {
-                    Path relDir = path != null ? Path.of(path).getParent() : Path.of(System.getProperty("user.dir"));
-                    includePath = relDir.resolve(includePath).normalize().toString();
-                }
-                TycoLexer lexer = TycoLexer.fromPath(context, includePath);
-                lexer.process();
-                for (Map.Entry<String, Map<String, TycoAttribute>> entry : lexer.defaults.entrySet()) {
-                    if (this.defaults.containsKey(entry.getKey())) {
-                        throw new TycoParseException("Duplicate struct defaults for " + entry.getKey(), lineLocation);
-                    }
-                    this.defaults.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        int start = pos;
+        LineClassifier.Kind kind = classifier.classify(source, start, textEnd());
+
+        String includePath = kind == LineClassifier.Kind.INCLUDE ? includePath() : null;
+        if (includePath != null) {
+            if (!Path.of(includePath).isAbsolute()) {
+                Path relDir = path != null ? Path.of(path).getParent() : Path.of(System.getProperty("user.dir"));
+                includePath = relDir.resolve(includePath).normalize().toString();
+            }
+            if (events != null) {
+                events.include(includePath);
+            }
+            TycoLexer lexer = include(includePath);
+            lexer.process();
+            for (Map.Entry<String, Map<String, TycoAttribute>> entry : lexer.defaults.entrySet()) {
+                if (this.defaults.containsKey(entry.getKey())) {
+                    throw new TycoParseException("Duplicate struct defaults for " + entry.getKey(), locationAt(start));
                 }
-                continue;
+                this.defaults.put(entry.getKey(), new HashMap<>(entry.getValue()));
             }
+            nextLine();
+            return true;
+        }
 
-            Matcher globalMatcher = GLOBAL_SCHEMA_REGEX.matcher(line);
-            if (globalMatcher.find()) {
-                loadGlobal(lineEntry, globalMatcher);
-                continue;
-            }
+        if (kind == LineClassifier.Kind.GLOBAL) {
+            loadGlobal();
+            return true;
+        }
 
-            Matcher structMatcher = STRUCT_BLOCK_REGEX.matcher(line);
-            if (structMatcher.find()) {
-                String typeName = structMatcher.group(1);
-                TycoStruct struct = context.getStruct(typeName);
-                if (struct == null) {
-                    struct = context.addStruct(typeName);
-                    loadSchema(struct);
+        if (kind == LineClassifier.Kind.STRUCT_BLOCK) {
+            String typeName = name(classifier.typeStart, classifier.typeEnd);
+            nextLine();
+            TycoStruct struct = context.getStruct(typeName);
+            if (struct == null) {
+                struct = context.addStruct(typeName);
+                loadSchema(struct);
+                if (events != null) {
+                    events.schema(struct);
                 }
-                loadLocalDefaultsAndInstances(struct);
-                continue;
             }
+            openStruct = struct;
+            return true;
+        }
 
-            if (TycoUtils.stripComments(line, lineLocation).isEmpty()) {
-                continue;
-            }
+        if (contentEnd(start) == start) {
+            nextLine();
+            return true;
+        }
 
-            throw new TycoParseException("Malformatted config file", lineLocation);
+        throw new TycoParseException("Malformatted config file", locationAt(start));
+    }
+
+    private TycoLexer include(String includePath) {
+        TycoIncludeCache includeCache = context.getOptions().getIncludeCache();
+        if (includeCache != null && events == null && context.getCachedLexer(includePath) == null) {
+            TycoLexer cached = includeCache.include(context, includePath);
+            if (cached != null) {
+                return cached;
+            }
         }
+        return TycoLexer.fromPath(context, includePath);
     }
 
-    private void loadGlobal(SourceLine lineEntry, Matcher match) {
-        String line = lineEntry.getText();
-        String option = match.group(1);
-        String typeName = match.group(2);
-        String arrayFlag = match.group(3);
-        String attrName = match.group(4);
-        boolean isArray = "[]".equals(arrayFlag);
-        boolean isNullable = "?".equals(option);
+    private void loadGlobal() {
+        String typeName = name(classifier.typeStart, classifier.typeEnd);
+        String attrName = name(classifier.attrStart, classifier.attrEnd);
+        boolean isArray = classifier.array;
+        boolean isNullable = classifier.option == '?';
 
-        SourceLine defaultSlice = lineEntry.sliceFrom(match.end()).trimLeadingWhitespace();
-        if (defaultSlice.getText().isEmpty()) {
-            throw new TycoParseException("Must provide a value when setting globals", defaultSlice.getLocation());
+        int valueStart = skipIndent(classifier.end);
+        if (valueStart >= textEnd()) {
+            throw new TycoParseException("Must provide a value when setting globals", locationAt(valueStart));
         }
 
-        pushFront(defaultSlice);
-        AttrResult result = loadTycoAttr(List.of(EOL), List.of(), true, attrName);
+        pos = valueStart;
+        AttrResult result = loadTycoAttr(DelimiterTable.LINE, true, attrName);
         result.attribute.applySchemaInfo(typeName, attrName, isNullable, isArray);
         context.setGlobalAttr(attrName, result.attribute);
+        if (events != null) {
+            events.global(attrName, result.attribute);
+        }
     }
 
     private void loadSchema(TycoStruct struct) {
@@ -152,255 +271,193 @@ public class TycoLexer {
         }
         defaults.put(struct.getTypeName(), new HashMap<>());
 
-        while (!lines.isEmpty()) {
-            SourceLine peekEntry = peekLineEntry();
-            if (peekEntry == null) {
-                break;
-            }
-            String peek = peekEntry.getText();
-            SourceLocation peekLocation = peekEntry.getLocation();
-            String content = TycoUtils.stripComments(peek, peekLocation);
-            if (content.isEmpty()) {
-                popLineEntry();
+        while (hasLine()) {
+            int start = pos;
+            int contentEnd = contentEnd(start);
+            if (contentEnd == start) {
+                nextLine();
                 continue;
             }
 
-            Matcher matcher = STRUCT_SCHEMA_REGEX.matcher(peek);
-            if (!matcher.find()) {
-                if (content.matches("^\\s+\\w+\\s+\\w+")) {
-                    throw new TycoParseException("Schema attribute missing trailing colon: " + content, peekLocation);
+            if (classifier.classify(source, start, textEnd()) != LineClassifier.Kind.SCHEMA) {
+                if (LineClassifier.isMissingColon(source, start, contentEnd)) {
+                    throw new TycoParseException("Schema attribute missing trailing colon: " + text(start, contentEnd), locationAt(start));
                 }
                 break;
             }
 
-            SourceLine lineEntry = popLineEntry();
-            if (lineEntry == null) {
-                break;
-            }
-
-            String option = matcher.group(1);
-            String typeName = matcher.group(2);
-            String arrayFlag = matcher.group(3);
-            String attrName = matcher.group(4);
+            String typeName = name(classifier.typeStart, classifier.typeEnd);
+            String attrName = name(classifier.attrStart, classifier.attrEnd);
 
             if (struct.hasAttribute(attrName)) {
-                throw new TycoParseException("Duplicate attribute " + attrName + " in " + struct.getTypeName(), lineEntry.getLocation());
+                throw new TycoParseException("Duplicate attribute " + attrName + " in " + struct.getTypeName(), locationAt(start));
             }
 
-            boolean isArray = "[]".equals(arrayFlag);
-            boolean isNullable = "?".equals(option);
-            boolean isPrimary = "*".equals(option);
+            boolean isArray = classifier.array;
+            boolean isNullable = classifier.option == '?';
+            boolean isPrimary = classifier.option == '*';
 
             struct.addAttribute(attrName, typeName, isPrimary, isNullable, isArray);
 
-            SourceLine defaultSlice = lineEntry.sliceFrom(matcher.end()).trimLeadingWhitespace();
-            if (!TycoUtils.stripComments(defaultSlice.getText(), defaultSlice.getLocation()).isEmpty()) {
-                pushFront(defaultSlice);
-                AttrResult attrResult = loadTycoAttr(List.of(EOL), List.of(), true, attrName);
+            int defaultStart = skipIndent(classifier.end);
+            if (contentEnd(defaultStart) > defaultStart) {
+                pos = defaultStart;
+                AttrResult attrResult = loadTycoAttr(DelimiterTable.LINE, true, attrName);
                 defaults.get(struct.getTypeName()).put(attrName, attrResult.attribute);
+            } else {
+                nextLine();
             }
         }
     }
 
-    private void loadLocalDefaultsAndInstances(TycoStruct struct) {
-        while (!lines.isEmpty()) {
-            SourceLine peekEntry = peekLineEntry();
-            if (peekEntry == null) {
-                break;
-            }
-            String peek = peekEntry.getText();
-            SourceLocation peekLocation = peekEntry.getLocation();
-            String content = TycoUtils.stripComments(peek, peekLocation);
-            if (content.isEmpty()) {
-                popLineEntry();
-                continue;
-            }
-            if (!peek.startsWith(" ") && !peek.startsWith("\t")) {
-                if (!STRUCT_INSTANCE_REGEX.matcher(peek).find()) {
-                    break;
-                }
-            }
-            if (peek.startsWith("#include ")) {
-                break;
+    /**
+     * Lex one line inside a struct block: a blank line, a local default or an
+     * instance. Returns false, without consuming anything, at the end of the block.
+     */
+    private boolean loadLocalDefaultOrInstance(TycoStruct struct) {
+        int start = pos;
+        if (contentEnd(start) == start) {
+            nextLine();
+            return true;
+        }
+        LineClassifier.Kind kind = classifier.classify(source, start, textEnd());
+        char first = source.charAt(start);
+        if (first != ' ' && first != '\t') {
+            if (kind != LineClassifier.Kind.INSTANCE) {
+                return false;
             }
+        }
+        if (startsWith(start, "#include ")) {
+            return false;
+        }
 
-            if (STRUCT_SCHEMA_REGEX.matcher(peek).find()) {
-                throw new TycoParseException("Cannot add schema attributes after initial construction", peekLocation);
-            }
+        if (kind == LineClassifier.Kind.SCHEMA) {
+            throw new TycoParseException("Cannot add schema attributes after initial construction", locationAt(start));
+        }
 
-            Matcher defaultMatcher = STRUCT_DEFAULTS_REGEX.matcher(peek);
-            if (defaultMatcher.find()) {
-                SourceLine lineEntry = popLineEntry();
-                if (lineEntry == null) {
-                    break;
-                }
-                String attrName = defaultMatcher.group(1);
-                if (!struct.hasAttribute(attrName)) {
-                    throw new TycoParseException("Setting invalid default of " + attrName + " for " + struct.getTypeName(), lineEntry.getLocation());
-                }
-                SourceLine defaultSlice = lineEntry.sliceFrom(defaultMatcher.end()).trimLeadingWhitespace();
-                if (!TycoUtils.stripComments(defaultSlice.getText(), defaultSlice.getLocation()).isEmpty()) {
-                    pushFront(defaultSlice);
-                    AttrResult attrResult = loadTycoAttr(List.of(EOL), List.of(), true, attrName);
-                    defaults.get(struct.getTypeName()).put(attrName, attrResult.attribute);
-                } else {
-                    defaults.get(struct.getTypeName()).remove(attrName);
-                }
-                continue;
+        if (kind == LineClassifier.Kind.DEFAULT) {
+            String attrName = name(classifier.attrStart, classifier.attrEnd);
+            if (!struct.hasAttribute(attrName)) {
+                throw new TycoParseException("Setting invalid default of " + attrName + " for " + struct.getTypeName(), locationAt(start));
+            }
+            int defaultStart = skipIndent(classifier.end);
+            if (contentEnd(defaultStart) > defaultStart) {
+                pos = defaultStart;
+                AttrResult attrResult = loadTycoAttr(DelimiterTable.LINE, true, attrName);
+                defaults.get(struct.getTypeName()).put(attrName, attrResult.attribute);
+            } else {
+                nextLine();
+                defaults.get(struct.getTypeName()).remove(attrName);
             }
+            return true;
+        }
 
-            if (STRUCT_INSTANCE_REGEX.matcher(peek).find()) {
-                SourceLine lineEntry = popLineEntry();
-                if (lineEntry == null) {
+        if (kind == LineClassifier.Kind.INSTANCE) {
+            pos = skipIndent(classifier.end);
+
+            List<TycoAttribute> instArgs = new ArrayList<>();
+            while (hasLine()) {
+                int instStart = pos;
+                int instContentEnd = contentEnd(instStart);
+                if (instContentEnd == instStart) {
+                    nextLine();
                     break;
                 }
-                String line = lineEntry.getText();
-                Matcher instanceMatcher = STRUCT_INSTANCE_REGEX.matcher(line);
-                if (!instanceMatcher.find()) {
-                    throw new TycoParseException("Invalid struct instance line: " + line, lineEntry.getLocation());
-                }
-                SourceLine remainder = lineEntry.sliceFrom(instanceMatcher.end()).trimLeadingWhitespace();
-                pushFront(remainder);
-
-                List<TycoAttribute> instArgs = new ArrayList<>();
-                while (true) {
-                    if (lines.isEmpty()) {
-                        break;
-                    }
-                    SourceLine instEntry = peekLineEntry();
-                    if (instEntry == null) {
-                        break;
-                    }
-                    String instContent = TycoUtils.stripComments(instEntry.getText(), instEntry.getLocation());
-                    if (instContent.isEmpty()) {
-                        popLineEntry();
-                        break;
-                    }
 
-                    if ("\\".equals(instContent)) {
-                        popLineEntry();
-                        if (!lines.isEmpty()) {
-                            SourceLine nextEntry = peekLineEntry();
-                            if (nextEntry != null) {
-                                SourceLine trimmed = nextEntry.trimLeadingWhitespace();
-                                if (trimmed != nextEntry) {
-                                    replaceCurrentLine(trimmed);
-                                }
-                            }
-                        }
-                        continue;
+                if (instContentEnd == instStart + 1 && source.charAt(instStart) == '\\') {
+                    nextLine();
+                    if (hasLine()) {
+                        pos = skipIndent(pos);
                     }
+                    continue;
+                }
 
-                    AttrResult attrResult = loadTycoAttr(List.of(",", EOL), List.of(), false, null);
-                    instArgs.add(attrResult.attribute);
-                    if (EOL.equals(attrResult.delimiter)) {
-                        break;
-                    }
+                AttrResult attrResult = loadTycoAttr(DelimiterTable.INSTANCE, false, null);
+                instArgs.add(attrResult.attribute);
+                if (EOL.equals(attrResult.delimiter)) {
+                    break;
                 }
+            }
 
+            if (events != null) {
+                events.instance(struct.createInlineInstance(instArgs, defaults.get(struct.getTypeName())));
+            } else {
                 struct.createInstance(instArgs, defaults.get(struct.getTypeName()));
-                continue;
             }
-
-            break;
+            return true;
         }
-    }
 
-    private AttrResult loadTycoAttr(Collection<String> goodDelim, Collection<String> badDelim,
-                                    boolean popEmptyLines, String attrName) {
-        Set<String> good = new HashSet<>(goodDelim);
-        Set<String> bad = new HashSet<>(badDelim);
-        bad.add("(");
-        bad.add(")");
-        bad.add("[");
-        bad.add("]");
-        bad.add(",");
-        bad.removeAll(good);
-        return loadTycoAttrWithSets(good, bad, popEmptyLines, attrName);
+        return false;
     }
 
-    private AttrResult loadTycoAttrWithSets(Set<String> goodDelim, Set<String> badDelim,
-                                            boolean popEmptyLines, String attrName) {
-        if (lines.isEmpty()) {
+    private AttrResult loadTycoAttr(DelimiterTable delimiters, boolean popEmptyLines, String attrName) {
+        if (!hasLine()) {
             throw new TycoParseException("Syntax error: no content found");
         }
 
-        SourceLine currentEntry = peekLineEntry();
-        if (currentEntry == null) {
-            throw new TycoParseException("Syntax error: no content found");
-        }
-        SourceLine lstrippedEntry = currentEntry.trimLeadingWhitespace();
-        if (lstrippedEntry != currentEntry) {
-            replaceCurrentLine(lstrippedEntry);
-            currentEntry = lstrippedEntry;
-        }
-        String current = currentEntry.getText();
-        SourceLocation currentLocation = currentEntry.getLocation();
+        pos = skipIndent(pos);
+        int start = pos;
 
-        Matcher colonMatch = IDENTIFIER_COLON_REGEX.matcher(current);
-        if (colonMatch.find()) {
+        if (classifier.matchIdentifierColon(source, start, textEnd())) {
             if (attrName != null) {
-                SourceLocation errorLocation = currentLocation.advance(colonMatch.start());
-                throw new TycoParseException("Colon found inside content - wrap string in quotes: " + colonMatch.group(1), errorLocation);
+                throw new TycoParseException("Colon found inside content - wrap string in quotes: " + text(classifier.attrStart, classifier.attrEnd), locationAt(start));
             }
-            attrName = colonMatch.group(1);
-            SourceLine remainder = currentEntry.sliceFrom(colonMatch.end());
-            replaceCurrentLine(remainder);
-            return loadTycoAttrWithSets(goodDelim, badDelim, popEmptyLines, attrName);
+            attrName = name(classifier.attrStart, classifier.attrEnd);
+            pos = classifier.end;
+            return loadTycoAttr(delimiters, popEmptyLines, attrName);
+        }
+
+        if (start == textEnd()) {
+            throw new TycoParseException("Unexpected empty line when parsing attribute", locationAt(start));
         }
 
         TycoAttribute attr;
         String delim;
-        currentEntry = peekLineEntry();
-        if (currentEntry == null) {
-            throw new TycoParseException("Unexpected empty line when parsing attribute");
-        }
-        current = currentEntry.getText();
-        currentLocation = currentEntry.getLocation();
-        if (current.isEmpty()) {
-            throw new TycoParseException("Unexpected empty line when parsing attribute", currentLocation);
-        }
-        char ch = current.charAt(0);
+        char ch = source.charAt(start);
 
         if (ch == '[') {
-            replaceCurrentLine(currentEntry.sliceFrom(1));
+            long position = positionAt(start);
+            pos = start + 1;
             List<TycoAttribute> arrayContent = loadArray(']');
             attr = new TycoArray(context, arrayContent);
-            attr.setLocation(currentLocation);
-            delim = stripNextDelim(goodDelim);
+            attr.setPosition(position);
+            delim = stripNextDelim(delimiters);
         } else if (Character.isLetterOrDigit(ch) || ch == '_') {
-            Matcher instMatcher = Pattern.compile("^(\\w+)\\(").matcher(current);
-            if (instMatcher.find()) {
-                String typeName = instMatcher.group(1);
-                replaceCurrentLine(currentEntry.sliceFrom(instMatcher.end()));
+            if (classifier.matchCall(source, start, textEnd())) {
+                long position = positionAt(start);
+                String typeName = name(classifier.typeStart, classifier.typeEnd);
+                pos = classifier.end;
                 List<TycoAttribute> instArgs = loadArray(')');
                 TycoStruct struct = context.getStruct(typeName);
                 if (struct == null || !struct.getPrimaryKeys().isEmpty()) {
+                    if (events != null) {
+                        throw new TycoParseException("References are not resolved when scanning: " + typeName + "(...)", positions.resolve(position));
+                    }
                     attr = new TycoReference(context, instArgs, typeName);
                 } else {
                     Map<String, TycoAttribute> defaultKwargs = defaults.getOrDefault(typeName, new HashMap<>());
                     attr = struct.createInlineInstance(instArgs, defaultKwargs);
                 }
-                attr.setLocation(currentLocation);
-                delim = stripNextDelim(goodDelim);
+                attr.setPosition(position);
+                delim = stripNextDelim(delimiters);
             } else {
-                AttrResult next = stripNextAttrAndDelim(goodDelim, badDelim);
+                AttrResult next = stripNextAttrAndDelim(delimiters);
                 attr = next.attribute;
                 delim = next.delimiter;
             }
         } else if (ch == '"' || ch == '\'') {
-            String triple = String.valueOf(ch).repeat(3);
-            if (current.startsWith(triple)) {
-                String tripleString = loadTripleString(triple, currentLocation);
-                attr = new TycoValue(context, tripleString);
+            long position = positionAt(start);
+            CharSequence text;
+            if (startsWith(start + 1, ch) && startsWith(start + 2, ch)) {
+                text = loadTripleString(ch, position);
             } else {
-                String singleString = loadSingleString(String.valueOf(ch), currentLocation);
-                attr = new TycoValue(context, singleString);
+                text = loadSingleString(ch, position);
             }
-            attr.setLocation(currentLocation);
-            delim = stripNextDelim(goodDelim);
+            attr = new TycoValue(context, text);
+            attr.setPosition(position);
+            delim = stripNextDelim(delimiters);
         } else {
-            AttrResult next = stripNextAttrAndDelim(goodDelim, badDelim);
+            AttrResult next = stripNextAttrAndDelim(delimiters);
             attr = next.attribute;
             delim = next.delimiter;
         }
@@ -411,34 +468,28 @@ public class TycoLexer {
 
     private List<TycoAttribute> loadArray(char closingChar) {
         List<TycoAttribute> array = new ArrayList<>();
-        List<String> goodDelims = List.of(String.valueOf(closingChar), ",");
-        List<String> badDelims = closingChar == ']' ? List.of(")") : List.of("]");
+        String closing = String.valueOf(closingChar);
+        DelimiterTable delimiters = closingChar == ']' ? DelimiterTable.ARRAY : DelimiterTable.CALL;
 
         while (true) {
-            if (lines.isEmpty()) {
-                throw new TycoParseException("Could not find " + closingChar, peekLineLocation());
+            if (!hasLine()) {
+                throw new TycoParseException("Could not find " + closingChar, (SourceLocation) null);
             }
 
-            SourceLine peekEntry = peekLineEntry();
-            if (peekEntry == null) {
-                throw new TycoParseException("Could not find " + closingChar, SourceLocation.unknown());
-            }
-            String peek = peekEntry.getText();
-            SourceLocation peekLocation = peekEntry.getLocation();
-            if (TycoUtils.stripComments(peek, peekLocation).isEmpty()) {
-                popLineEntry();
+            int start = pos;
+            if (contentEnd(start) == start) {
+                nextLine();
                 continue;
             }
 
-            if (peek.startsWith(String.valueOf(closingChar))) {
-                SourceLine remainder = peekEntry.sliceFrom(1);
-                replaceCurrentLine(remainder);
+            if (source.charAt(start) == closingChar) {
+                pos = start + 1;
                 break;
             }
 
-            AttrResult attrResult = loadTycoAttr(goodDelims, badDelims, true, null);
+            AttrResult attrResult = loadTycoAttr(delimiters, true, null);
             array.add(attrResult.attribute);
-            if (String.valueOf(closingChar).equals(attrResult.delimiter)) {
+            if (closing.equals(attrResult.delimiter)) {
                 break;
             }
         }
@@ -446,260 +497,373 @@ public class TycoLexer {
         return array;
     }
 
-    private String loadTripleString(String triple, SourceLocation startLocation) {
-        boolean isLiteral = "'''".equals(triple);
-        int start = 3;
-        List<String> contents = new ArrayList<>();
+    /**
+     * Consume a triple quoted string starting at the cursor. The result is a view
+     * into the buffer unless a line continuation forced pieces to be joined.
+     */
+    private CharSequence loadTripleString(char quote, long startPosition) {
+        boolean isLiteral = quote == '\'';
+        int contentStart = pos;
+        int searchFrom = pos + 3;
+        StringBuilder joined = null;
+        int pieceStart = contentStart;
+        int contentEnd;
 
         while (true) {
-            if (lines.isEmpty()) {
-                throw new TycoParseException("Unclosed triple quote", startLocation);
+            if (!hasLine()) {
+                throw new TycoParseException("Unclosed triple quote", positions.resolve(startPosition));
             }
-            SourceLine lineEntry = popLineEntry();
-            if (lineEntry == null) {
-                throw new TycoParseException("Unclosed triple quote", startLocation);
-            }
-            String line = lineEntry.getText();
-            int end = line.indexOf(triple, start);
-
-            if (end != -1) {
-                int endIdx = end + 3;
-                String content = line.substring(0, endIdx);
-                contents.add(content);
+            int end = textEnd();
+            int close = indexOfTriple(quote, searchFrom, end);
 
-                SourceLine remainderEntry = lineEntry.sliceFrom(endIdx);
-                String remainder = remainderEntry.getText();
-                char tripleChar = triple.charAt(0);
-                int consumed = 0;
+            if (close != -1) {
+                contentEnd = close + 3;
                 for (int i = 0; i < 2; i++) {
-                    if (!remainder.isEmpty() && remainder.charAt(0) == tripleChar) {
-                        int lastIdx = contents.size() - 1;
-                        contents.set(lastIdx, contents.get(lastIdx) + tripleChar);
-                        remainder = remainder.substring(1);
-                        consumed++;
+                    if (contentEnd < end && source.charAt(contentEnd) == quote) {
+                        contentEnd++;
                     } else {
                         break;
                     }
                 }
-                if (consumed > 0) {
-                    remainderEntry = remainderEntry.sliceFrom(consumed);
+                pos = contentEnd;
+                break;
+            }
+
+            if (!isLiteral && end - pos >= 2 && source.charAt(end - 2) == '\\') {
+                if (joined == null) {
+                    joined = new StringBuilder();
                 }
-                if (!remainderEntry.getText().isEmpty()) {
-                    pushFront(remainderEntry);
+                joined.append(new SourceSpan(source, pieceStart, end - 2));
+                nextLine();
+                if (hasLine()) {
+                    pos = skipIndent(pos);
                 }
-                break;
+                pieceStart = pos;
             } else {
-                if (!isLiteral && line.endsWith("\\" + EOL)) {
-                    int cut = line.length() - (1 + EOL.length());
-                    if (cut < 0) {
-                        cut = 0;
-                    }
-                    contents.add(line.substring(0, cut));
-                    while (!lines.isEmpty()) {
-                        SourceLine nextEntry = peekLineEntry();
-                        if (nextEntry == null) {
-                            break;
-                        }
-                        SourceLine trimmed = nextEntry.trimLeadingWhitespace();
-                        if (trimmed != nextEntry) {
-                            replaceCurrentLine(trimmed);
-                            nextEntry = trimmed;
-                        }
-                        if (nextEntry.getText().isEmpty()) {
-                            popLineEntry();
-                        } else {
-                            break;
-                        }
-                    }
-                } else {
-                    contents.add(line);
-                }
+                nextLine();
             }
-
-            start = 0;
+            searchFrom = pos;
         }
 
-        StringBuilder finalContent = new StringBuilder();
-        for (String part : contents) {
-            finalContent.append(part);
+        CharSequence content;
+        if (joined == null) {
+            content = new SourceSpan(source, contentStart, contentEnd);
+        } else {
+            content = joined.append(new SourceSpan(source, pieceStart, contentEnd)).toString();
         }
-        for (int i = 0; i < finalContent.length(); i++) {
-            char ch = finalContent.charAt(i);
+        for (int i = 0; i < content.length(); i++) {
+            char ch = content.charAt(i);
             if (TycoUtils.ILLEGAL_STR_CHARS_MULTILINE.contains(ch)) {
-                throw new TycoParseException("Invalid characters found in literal multiline string: " + ch, startLocation);
+                throw new TycoParseException("Invalid characters found in literal multiline string: " + ch, positions.resolve(startPosition));
             }
         }
-        return finalContent.toString();
+        return content;
     }
 
-    private String loadSingleString(String quote, SourceLocation startLocation) {
-        boolean isLiteral = "'".equals(quote);
-        int start = 1;
-        SourceLine lineEntry = popLineEntry();
-        if (lineEntry == null) {
-            throw new TycoParseException("Unclosed single-line string for " + quote, startLocation);
-        }
-        String line = lineEntry.getText();
+    private CharSequence loadSingleString(char quote, long startPosition) {
+        boolean isLiteral = quote == '\'';
+        int start = pos;
+        int end = textEnd();
+        int searchFrom = start + 1;
 
         while (true) {
-            int end = line.indexOf(quote, start);
-            if (end == -1) {
-                throw new TycoParseException("Unclosed single-line string for " + quote + ": " + line, startLocation);
+            int close = indexOf(quote, searchFrom, end);
+            if (close == -1) {
+                throw new TycoParseException("Unclosed single-line string for " + quote + ": " + source.subSequence(start, end), positions.resolve(startPosition));
             }
 
-            if (isLiteral || line.charAt(end - 1) != '\\') {
-                String finalContent = line.substring(0, end + 1);
-                for (int i = 0; i < finalContent.length(); i++) {
-                    char ch = finalContent.charAt(i);
+            if (isLiteral || source.charAt(close - 1) != '\\') {
+                for (int i = start; i <= close; i++) {
+                    char ch = source.charAt(i);
                     if (TycoUtils.ILLEGAL_STR_CHARS.contains(ch)) {
-                        throw new TycoParseException("Invalid characters found in literal string: " + ch, startLocation);
+                        throw new TycoParseException("Invalid characters found in literal string: " + ch, positions.resolve(startPosition));
                     }
                 }
-                SourceLine remainderEntry = lineEntry.sliceFrom(end + 1);
-                if (!remainderEntry.getText().isEmpty()) {
-                    pushFront(remainderEntry);
-                }
-                return finalContent;
+                pos = close + 1;
+                return new SourceSpan(source, start, close + 1);
             }
 
-            start = end + 1;
+            searchFrom = close + 1;
         }
     }
 
-    private AttrResult stripNextAttrAndDelim(Set<String> goodDelim, Set<String> badDelim) {
-        SourceLine currentEntry = peekLineEntry();
-        if (currentEntry == null) {
-            throw new TycoParseException("Unexpected end of input");
-        }
-        String current = currentEntry.getText();
-        SourceLocation baseLocation = currentEntry.getLocation();
-
-        String searchSpace = current;
-        int commentIdx = current.indexOf('#');
-        if (commentIdx >= 0) {
-            searchSpace = current.substring(0, commentIdx);
-        }
-
-        Set<String> allDelims = union(goodDelim, badDelim);
+    /**
+     * Cut an unquoted value at the first delimiter in a single pass over the line.
+     * Scanning stops at a comment, which counts as the end of the line.
+     */
+    private AttrResult stripNextAttrAndDelim(DelimiterTable delimiters) {
+        int start = pos;
+        int end = textEnd();
         int bestIndex = -1;
         String bestDelim = null;
-        for (String delim : allDelims) {
-            int idx = EOL.equals(delim) ? searchSpace.length() : searchSpace.indexOf(delim);
-            if (idx >= 0 && (bestIndex == -1 || idx < bestIndex)) {
-                bestIndex = idx;
-                bestDelim = delim;
+        for (int i = start; i < end; i++) {
+            char ch = source.charAt(i);
+            if (ch == '#') {
+                if (delimiters.acceptsEol()) {
+                    bestIndex = i;
+                    bestDelim = EOL;
+                }
+                break;
+            }
+            if (delimiters.isDelimiter(ch)) {
+                bestIndex = i;
+                bestDelim = delimiters.delimiter(ch);
+                break;
+            }
+        }
+        if (bestDelim == null && delimiters.acceptsEol()) {
+            if (bestIndex < 0) {
+                bestIndex = end;
             }
+            bestDelim = EOL;
         }
 
         if (bestDelim == null) {
-            throw new TycoParseException("Should have found some delimiter " + allDelims + ": " + current, baseLocation);
+            throw new TycoParseException("Should have found some delimiter " + delimiters.describeAll() + ": " + source.subSequence(start, end), locationAt(start));
         }
-        if (badDelim.contains(bestDelim)) {
-            throw new TycoParseException("Bad delimiter encountered: " + bestDelim, baseLocation.advance(bestIndex));
+        if (!EOL.equals(bestDelim) && delimiters.isBad(bestDelim.charAt(0))) {
+            throw new TycoParseException("Bad delimiter encountered: " + bestDelim, locationAt(bestIndex));
         }
 
-        String rawText = searchSpace.substring(0, bestIndex);
-        int leading = 0;
-        while (leading < rawText.length() && Character.isWhitespace(rawText.charAt(leading))) {
-            leading++;
-        }
-        int trailing = rawText.length();
-        while (trailing > leading && Character.isWhitespace(rawText.charAt(trailing - 1))) {
-            trailing--;
-        }
-        String text = rawText.substring(leading, trailing);
-        SourceLocation valueLocation = baseLocation.advance(leading);
+        int valueStart = skipWhitespace(start, bestIndex);
+        int valueEnd = trimWhitespace(valueStart, bestIndex);
 
-        TycoValue attr = new TycoValue(context, text);
-        attr.setLocation(valueLocation);
+        TycoValue attr = new TycoValue(context, new SourceSpan(source, valueStart, valueEnd));
+        attr.setPosition(positionAt(valueStart));
 
         if (EOL.equals(bestDelim)) {
-            lines.pollFirst();
+            nextLine();
         } else {
-            int advance = bestIndex + bestDelim.length();
-            if (advance > current.length()) {
-                advance = current.length();
-            }
-            SourceLine remainder = currentEntry.sliceFrom(advance);
-            replaceCurrentLine(remainder);
+            pos = Math.min(bestIndex + 1, end);
         }
         return new AttrResult(attr, bestDelim);
     }
 
-    private String stripNextDelim(Set<String> goodDelim) {
-        if (lines.isEmpty()) {
-            throw new TycoParseException("Unexpected end of input looking for delimiters " + goodDelim);
+    private String stripNextDelim(DelimiterTable delimiters) {
+        if (!hasLine()) {
+            throw new TycoParseException("Unexpected end of input looking for delimiters " + delimiters.describeGood());
         }
-        SourceLine currentEntry = peekLineEntry();
-        if (currentEntry == null) {
-            throw new TycoParseException("Unexpected end of input looking for delimiters " + goodDelim);
+        int start = pos;
+        if (start < textEnd() && delimiters.isGood(source.charAt(start))) {
+            pos = start + 1;
+            return delimiters.delimiter(source.charAt(start));
+        }
+
+        if (delimiters.acceptsEol() && contentEnd(start) == start) {
+            nextLine();
+            return EOL;
         }
-        String current = currentEntry.getText();
-        SourceLocation location = currentEntry.getLocation();
-        for (String delim : goodDelim) {
-            if (current.startsWith(delim)) {
-                SourceLine remainder = currentEntry.sliceFrom(delim.length());
-                replaceCurrentLine(remainder);
-                return delim;
+
+        throw new TycoParseException("Should have found next delimiter " + delimiters.describeGood() + ": " + source.subSequence(start, textEnd()), locationAt(start));
+    }
+
+    // --- cursor ---
+
+    private boolean hasLine() {
+        return lineStart < length;
+    }
+
+    /** End (exclusive) of the current line text, including its newline. */
+    private int textEnd() {
+        return lineEnd + 1;
+    }
+
+    private void nextLine() {
+        lineStart = lineEnd + 1;
+        pos = lineStart;
+        lineNo++;
+        lineEnd = findLineEnd(lineStart);
+    }
+
+    private int findLineEnd(int from) {
+        for (int i = from; i < length; i++) {
+            if (source.charAt(i) == '\n') {
+                return i;
             }
         }
+        return length;
+    }
 
-        if (goodDelim.contains(EOL) && TycoUtils.stripComments(current, location).isEmpty()) {
-            popLineEntry();
-            return EOL;
+    private int skipIndent(int from) {
+        int end = textEnd();
+        while (from < end) {
+            char ch = source.charAt(from);
+            if (ch != ' ' && ch != '\t') {
+                break;
+            }
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * End of the content in {@code [from, textEnd())} once the comment and trailing
+     * whitespace are stripped; equals {@code from} when nothing is left. Comment
+     * characters are validated the same way as {@link TycoUtils#stripComments}.
+     */
+    private int contentEnd(int from) {
+        int end = textEnd();
+        int hash = indexOf('#', from, end);
+        if (hash >= 0) {
+            int commentEnd = end;
+            if (commentEnd > hash + 1 && source.charAt(commentEnd - 1) == '\n') {
+                commentEnd--;
+                if (commentEnd > hash + 1 && source.charAt(commentEnd - 1) == '\r') {
+                    commentEnd--;
+                }
+            }
+            for (int i = hash + 1; i < commentEnd; i++) {
+                char ch = source.charAt(i);
+                if (TycoUtils.ILLEGAL_STR_CHARS.contains(ch)) {
+                    throw new TycoParseException("Invalid characters in comments: " + ch, locationAt(i));
+                }
+            }
+            end = hash;
+        }
+        return rstrip(from, end);
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to) {
+            char ch = source.charAt(from);
+            if (bytes == null || ch < 0x80) {
+                if (!Character.isWhitespace(ch)) {
+                    break;
+                }
+                from++;
+            } else {
+                if (!Character.isWhitespace(bytes.codePointAt(from))) {
+                    break;
+                }
+                from += ByteSource.sequenceLength(ch);
+            }
         }
+        return from;
+    }
 
-        throw new TycoParseException("Should have found next delimiter " + goodDelim + ": " + current, location);
+    private int trimWhitespace(int from, int end) {
+        while (end > from) {
+            char ch = source.charAt(end - 1);
+            if (bytes == null || ch < 0x80) {
+                if (!Character.isWhitespace(ch)) {
+                    break;
+                }
+                end--;
+            } else {
+                int charStart = bytes.characterStart(end);
+                if (!Character.isWhitespace(bytes.codePointAt(charStart))) {
+                    break;
+                }
+                end = charStart;
+            }
+        }
+        return end;
     }
 
-    private static String rstrip(String value) {
-        int end = value.length();
-        while (end > 0) {
-            char ch = value.charAt(end - 1);
+    private int rstrip(int from, int end) {
+        while (end > from) {
+            char ch = source.charAt(end - 1);
             if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') {
                 end--;
             } else {
                 break;
             }
         }
-        return value.substring(0, end);
+        return end;
+    }
+
+    private boolean startsWith(int at, char ch) {
+        return at < textEnd() && source.charAt(at) == ch;
+    }
+
+    private boolean startsWith(int at, String prefix) {
+        if (at + prefix.length() > textEnd()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (source.charAt(at + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private SourceLine popLineEntry() {
-        return lines.pollFirst();
+    private int indexOf(char ch, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == ch) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private void pushFront(SourceLine line) {
-        if (line != null) {
-            lines.addFirst(line);
+    private int indexOfTriple(char quote, int from, int to) {
+        for (int i = from; i + 3 <= to; i++) {
+            if (source.charAt(i) == quote && source.charAt(i + 1) == quote && source.charAt(i + 2) == quote) {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    private String text(int start, int end) {
+        return source.subSequence(start, end).toString();
     }
 
-    private void replaceCurrentLine(SourceLine line) {
-        lines.pollFirst();
-        if (line != null) {
-            lines.addFirst(line);
+    /** A type or attribute name, interned as configured */
+    private String name(int start, int end) {
+        return context.intern(text(start, end));
+    }
+
+    /**
+     * Path of the include line just classified, or null if it contains a line
+     * separator (which the include syntax does not allow).
+     */
+    private String includePath() {
+        String includePath = text(classifier.attrStart, classifier.attrEnd);
+        for (int i = 1; i < includePath.length(); i++) {
+            char ch = includePath.charAt(i);
+            if (ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029') {
+                return null;
+            }
         }
+        return includePath.trim();
     }
 
-    private SourceLine peekLineEntry() {
-        return lines.peekFirst();
+    /** Packed position of {@code offset} on the current line */
+    private long positionAt(int offset) {
+        int column = bytes != null ? bytes.charCount(lineStart, offset) : offset - lineStart;
+        return SourcePositions.pack(fileId, lineNo, column + 1);
     }
 
-    private String peekLineText() {
-        SourceLine entry = lines.peekFirst();
-        return entry != null ? entry.getText() : null;
+    private SourceLocation locationAt(int offset) {
+        return positions.resolve(positionAt(offset));
     }
 
-    private SourceLocation peekLineLocation() {
-        SourceLine entry = lines.peekFirst();
-        return entry != null ? entry.getLocation() : null;
+    private static CharSequence withEol(CharSequence source) {
+        if (source.length() > 0 && source.charAt(source.length() - 1) != '\n') {
+            return source + EOL;
+        }
+        return source;
+    }
+
+    private static String normalizeLineEndings(String content) {
+        if (content.indexOf('\r') >= 0) {
+            return content.replace("\r\n", EOL).replace('\r', '\n');
+        }
+        return content;
     }
 
-    private static Set<String> union(Set<String> a, Set<String> b) {
-        Set<String> result = new HashSet<>(a);
-        result.addAll(b);
-        return result;
+    private static String joinLines(List<SourceLine> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (SourceLine line : lines) {
+            String text = line.getText();
+            builder.append(text);
+            if (!text.endsWith(EOL)) {
+                builder.append(EOL);
+            }
+        }
+        return builder.toString();
     }
 
     private static final class AttrResult {
@@ -9,7 +9,12 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Entry point for parsing Tyco configuration files.
@@ -27,31 +32,39 @@ public final class TycoParser {
      * @return parsed representation as nested Maps/Lists
      */
     public static Map<String, Object> load(String path) {
-        TycoContext context = new TycoContext();
-        File file = new File(path);
-        List<String> paths = new ArrayList<>();
+        return load(path, new TycoParserOptions());
+    }
 
-        try {
-            if (file.isDirectory()) {
-                try (Stream<Path> stream = Files.walk(Paths.get(path))) {
-                    stream.filter(p -> p.toString().endsWith(".tyco"))
-                          .sorted(Comparator.naturalOrder())
-                          .forEach(p -> paths.add(p.toString()));
-                }
-            } else {
-                paths.add(path);
-            }
-        } catch (IOException e) {
-            throw new TycoParseException("Error reading path: " + path, e);
-        }
+    /**
+     * Load Tyco configuration from a file or directory with custom options.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param options parser options
+     * @return parsed representation as nested Maps/Lists
+     */
+    public static Map<String, Object> load(String path, TycoParserOptions options) {
+        return loadContext(path, options).toObject();
+    }
 
-        for (String filePath : paths) {
-            TycoLexer lexer = TycoLexer.fromPath(context, filePath);
-            lexer.process();
+    /**
+     * Lex and render a file or directory like {@link #load(String, TycoParserOptions)}
+     * and return the rendered context.
+     */
+    static TycoContext loadContext(String path, TycoParserOptions options) {
+        TycoContext context = new TycoContext(options);
+        List<String> paths = listPaths(path);
+
+        if (paths.size() > 1 && (options.getParallelism() > 1 || options.getExecutor() != null)) {
+            lexInParallel(context, paths);
+        } else {
+            for (String filePath : paths) {
+                TycoLexer lexer = TycoLexer.fromPath(context, filePath);
+                lexer.process();
+            }
         }
 
         context.renderContent();
-        return context.toObject();
+        return context;
     }
 
     /**
@@ -62,13 +75,104 @@ public final class TycoParser {
      */
     public static Map<String, Object> loads(String content) {
         TycoContext context = new TycoContext();
-        List<SourceLine> lines = splitContentIntoLines(content);
-        TycoLexer lexer = new TycoLexer(context, lines, null);
+        TycoLexer lexer = new TycoLexer(context, content.replace("\r\n", "\n"), null);
         lexer.process();
         context.renderContent();
         return context.toObject();
     }
 
+    /**
+     * Scan a Tyco file or directory and push its content to a handler without
+     * building the full context. See {@link TycoEventHandler} for what is in scope.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param handler receives globals, schemas and instances as they are read
+     */
+    public static void scan(String path, TycoEventHandler handler) {
+        scan(path, new TycoParserOptions(), handler);
+    }
+
+    /**
+     * Scan a Tyco file or directory with custom options.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param options parser options
+     * @param handler receives globals, schemas and instances as they are read
+     */
+    public static void scan(String path, TycoParserOptions options, TycoEventHandler handler) {
+        TycoContext context = new TycoContext(options);
+        context.setEvents(new EventEmitter(context, handler));
+        for (String filePath : listPaths(path)) {
+            TycoLexer.fromPath(context, filePath);
+        }
+        context.getEvents().end();
+    }
+
+    /**
+     * Scan raw string content and push it to a handler.
+     *
+     * @param content Tyco configuration text
+     * @param handler receives globals, schemas and instances as they are read
+     */
+    public static void scans(String content, TycoEventHandler handler) {
+        TycoContext context = new TycoContext();
+        context.setEvents(new EventEmitter(context, handler));
+        new TycoLexer(context, content.replace("\r\n", "\n"), null).process();
+        context.getEvents().end();
+    }
+
+    /**
+     * Stream the instances of one struct from a Tyco file or directory. Instances are
+     * parsed, with the struct's defaults applied, only as the stream is consumed.
+     * Like {@link #scan}, references are not supported.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param typeName struct whose instances are returned
+     * @return lazily evaluated, ordered stream of instances as nested Maps/Lists
+     */
+    public static Stream<Map<String, Object>> streamInstances(String path, String typeName) {
+        return streamInstances(path, typeName, new TycoParserOptions());
+    }
+
+    /**
+     * Stream the instances of one struct with custom options.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param typeName struct whose instances are returned
+     * @param options parser options
+     * @return lazily evaluated, ordered stream of instances as nested Maps/Lists
+     */
+    public static Stream<Map<String, Object>> streamInstances(String path, String typeName, TycoParserOptions options) {
+        TycoContext context = new TycoContext(options);
+        return StreamSupport.stream(new InstanceSpliterator(context, listPaths(path), typeName), false);
+    }
+
+    /**
+     * Load the instances of one struct from a Tyco file or directory straight into
+     * columns. Each instance is rendered on its own, appended to the columns and
+     * dropped, so the instances are never held together; {@link TycoColumns#getRow}
+     * materializes one again. Like {@link #scan}, references are not supported.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param typeName struct whose instances are loaded
+     * @return the instances column by column
+     */
+    public static TycoColumns loadColumns(String path, String typeName) {
+        return loadColumns(path, typeName, new TycoParserOptions());
+    }
+
+    /**
+     * Load the instances of one struct into columns with custom options.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param typeName struct whose instances are loaded
+     * @param options parser options
+     * @return the instances column by column
+     */
+    public static TycoColumns loadColumns(String path, String typeName, TycoParserOptions options) {
+        return TycoColumns.load(new TycoContext(options), listPaths(path), typeName);
+    }
+
     /**
      * Convenience method for callers expecting an instance API.
      *
@@ -79,25 +183,70 @@ public final class TycoParser {
         return loads(content);
     }
 
-    private static List<SourceLine> splitContentIntoLines(String content) {
-        String normalized = content.replace("\r\n", "\n");
-        List<SourceLine> lines = new ArrayList<>();
-        int start = 0;
-        int lineNumber = 1;
-        for (int i = 0; i < normalized.length(); i++) {
-            if (normalized.charAt(i) == '\n') {
-                String line = normalized.substring(start, i + 1);
-                String raw = line.endsWith("\n") ? line.substring(0, line.length() - 1) : line;
-                lines.add(new SourceLine(line, new SourceLocation(null, lineNumber++, 1, raw)));
-                start = i + 1;
+    /**
+     * Lex every file into its own {@link ForkedContext} in parallel, then merge them
+     * in order. A file whose result could depend on the files before it is lexed
+     * again into the shared context at its turn, which gives the same content and
+     * the same first error as lexing the files one by one.
+     */
+    private static void lexInParallel(TycoContext context, List<String> paths) {
+        TycoParserOptions options = context.getOptions();
+        ExecutorService pool = options.getExecutor() == null ? new ForkJoinPool(options.getParallelism()) : null;
+        Executor executor = pool != null ? pool : options.getExecutor();
+        try {
+            List<CompletableFuture<ForkedContext>> forks = new ArrayList<>();
+            for (String filePath : paths) {
+                forks.add(CompletableFuture.supplyAsync(() -> lexFork(context, filePath), executor));
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                String filePath = paths.get(i);
+                ForkedContext fork = forks.get(i).join();
+                if (context.getCachedLexer(filePath) != null) {
+                    // already included by an earlier file
+                    continue;
+                }
+                if (fork.needsRelex(context)) {
+                    TycoLexer.fromPath(context, filePath);
+                } else {
+                    context.merge(fork);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
             }
         }
-        if (start < normalized.length()) {
-            String remainder = normalized.substring(start);
-            lines.add(new SourceLine(remainder + "\n", new SourceLocation(null, lineNumber, 1, remainder)));
-        } else if (lines.isEmpty()) {
-            lines.add(new SourceLine("\n", new SourceLocation(null, 1, 1, "")));
+    }
+
+    private static ForkedContext lexFork(TycoContext context, String filePath) {
+        ForkedContext fork = new ForkedContext(context);
+        try {
+            TycoLexer lexer = TycoLexer.open(fork, filePath);
+            lexer.process();
+            fork.cacheLexer(filePath, lexer);
+        } catch (RuntimeException e) {
+            fork.fail(e);
+        }
+        return fork;
+    }
+
+    static List<String> listPaths(String path) {
+        File file = new File(path);
+        List<String> paths = new ArrayList<>();
+
+        try {
+            if (file.isDirectory()) {
+                try (Stream<Path> stream = Files.walk(Paths.get(path))) {
+                    stream.filter(p -> p.toString().endsWith(".tyco"))
+                          .sorted(Comparator.naturalOrder())
+                          .forEach(p -> paths.add(p.toString()));
+                }
+            } else {
+                paths.add(path);
+            }
+        } catch (IOException e) {
+            throw new TycoParseException("Error reading path: " + path, e);
         }
-        return lines;
+        return paths;
     }
 }
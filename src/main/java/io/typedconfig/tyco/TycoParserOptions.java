@@ -1,11 +1,23 @@
 package io.typedconfig.tyco;
 
+import java.util.concurrent.Executor;
+
 /**
  * Parser options for customizing Tyco parsing behavior
  */
 public class TycoParserOptions {
     private boolean strict = true;
     private int templateIterations = 10;
+    private boolean memoryMapped = false;
+    private boolean retainLocations = true;
+    private int parallelism = 1;
+    private Executor executor;
+    private boolean parallelRender = false;
+    private int parallelRenderThreshold = 10_000;
+    private TycoIncludeCache includeCache;
+    private boolean interning = false;
+    private TycoInternPool internPool;
+    private boolean sharedMaterialization = false;
 
     /**
      * Default constructor with default options
@@ -23,6 +35,24 @@ public class TycoParserOptions {
         this.templateIterations = templateIterations;
     }
 
+    /**
+     * A copy of these options, for loads that change some of them
+     */
+    TycoParserOptions copy() {
+        TycoParserOptions copy = new TycoParserOptions(strict, templateIterations);
+        copy.memoryMapped = memoryMapped;
+        copy.retainLocations = retainLocations;
+        copy.parallelism = parallelism;
+        copy.executor = executor;
+        copy.parallelRender = parallelRender;
+        copy.parallelRenderThreshold = parallelRenderThreshold;
+        copy.includeCache = includeCache;
+        copy.interning = interning;
+        copy.internPool = internPool;
+        copy.sharedMaterialization = sharedMaterialization;
+        return copy;
+    }
+
     public boolean isStrict() {
         return strict;
     }
@@ -38,4 +68,144 @@ public class TycoParserOptions {
     public void setTemplateIterations(int templateIterations) {
         this.templateIterations = templateIterations;
     }
-}
\ No newline at end of file
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Memory-map files and lex their bytes directly instead of reading them into
+     * strings first. Text is only decoded for the values that get rendered.
+     * @param memoryMapped Enable memory-mapped loading
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public boolean isRetainLocations() {
+        return retainLocations;
+    }
+
+    /**
+     * Keep source locations after the content has been rendered. When disabled they
+     * are dropped once rendering (and with it validation) succeeded, and
+     * {@link TycoAttribute#getLocation()} returns null from then on.
+     * @param retainLocations Keep locations after rendering
+     */
+    public void setRetainLocations(boolean retainLocations) {
+        this.retainLocations = retainLocations;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Number of files of a directory that are lexed at the same time. The results are
+     * merged in sorted file order, so output and errors do not depend on it.
+     * @param parallelism Threads used for directory loads, 1 to lex files one by one
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Executor for parallel directory loads and rendering. When not set, a {@link java.util.concurrent.ForkJoinPool}
+     * with {@link #getParallelism()} threads is created for each load.
+     * @param executor Executor to lex and render on, or null
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public boolean isParallelRender() {
+        return parallelRender;
+    }
+
+    /**
+     * Render the instances of large configurations in parallel, one render phase at
+     * a time. Primary keys are still loaded in order, and templates are rendered in
+     * order when one of them reads a value through a reference that templates may
+     * still change, so output and errors are the same as with sequential rendering.
+     * Runs on {@link #getExecutor()} if set, otherwise on a pool of
+     * {@link #getParallelism()} threads or the common pool.
+     * @param parallelRender Enable parallel rendering
+     */
+    public void setParallelRender(boolean parallelRender) {
+        this.parallelRender = parallelRender;
+    }
+
+    public int getParallelRenderThreshold() {
+        return parallelRenderThreshold;
+    }
+
+    /**
+     * Minimum number of instances for {@link #setParallelRender parallel rendering};
+     * smaller configurations are rendered sequentially.
+     * @param parallelRenderThreshold Instance count from which rendering runs in parallel
+     */
+    public void setParallelRenderThreshold(int parallelRenderThreshold) {
+        this.parallelRenderThreshold = parallelRenderThreshold;
+    }
+
+    public TycoIncludeCache getIncludeCache() {
+        return includeCache;
+    }
+
+    /**
+     * Cache to share lexed include files with other loads, e.g.
+     * {@link TycoIncludeCache#shared()}. Off (null) by default.
+     * @param includeCache Cache for included files, or null
+     */
+    public void setIncludeCache(TycoIncludeCache includeCache) {
+        this.includeCache = includeCache;
+    }
+
+    public boolean isInterning() {
+        return interning || internPool != null;
+    }
+
+    /**
+     * Make equal rendered strings and numbers, and equal names, share one object
+     * through a {@link TycoInternPool} of each context's own.
+     * @param interning Enable interning
+     */
+    public void setInterning(boolean interning) {
+        this.interning = interning;
+    }
+
+    public TycoInternPool getInternPool() {
+        return internPool;
+    }
+
+    /**
+     * Pool to intern into instead of one per context, e.g. the weak
+     * {@link TycoInternPool#shared()}; enables interning when not null.
+     * @param internPool Pool shared by contexts, or null
+     */
+    public void setInternPool(TycoInternPool internPool) {
+        this.internPool = internPool;
+    }
+
+    public boolean isSharedMaterialization() {
+        return sharedMaterialization;
+    }
+
+    /**
+     * Materialize each struct instance once for {@link TycoContext#toObject()} and
+     * {@link TycoAttribute#toJson()}, and give every reference to it the same
+     * unmodifiable map, until the next update. When disabled each reference gets a
+     * copy of its own that can be changed freely.
+     * @param sharedMaterialization Share materialized instances between references
+     */
+    public void setSharedMaterialization(boolean sharedMaterialization) {
+        this.sharedMaterialization = sharedMaterialization;
+    }
+}
@@ -0,0 +1,135 @@
+package io.typedconfig.tyco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Query over the rendered instances of a struct, e.g.
+ * {@code context.query("Host").where("os", "Fedora").list()}.
+ *
+ * <p>Every condition is answered from an index on its attribute: a hash index for
+ * {@link #where}, a sorted index for {@link #whereBetween} and
+ * {@link #whereStartsWith}. Indexes are built on first use and kept by the struct
+ * until the context is updated. Results are in instance order. Queries are
+ * immutable: each condition returns a new query.
+ */
+public final class TycoQuery {
+    private final TycoStruct struct;
+    private final List<Condition> conditions;
+
+    TycoQuery(TycoStruct struct) {
+        this(struct, List.of());
+    }
+
+    private TycoQuery(TycoStruct struct, List<Condition> conditions) {
+        this.struct = struct;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Instances whose attribute equals {@code value}: a string, number or bool as
+     * rendered (integral numbers match whatever their boxed type), a list for
+     * arrays, the referenced {@link TycoInstance} for references, or null.
+     */
+    public TycoQuery where(String attrName, Object value) {
+        return with(attrName, indexes -> indexes.equal(attrName, value));
+    }
+
+    /**
+     * Instances whose attribute is from {@code from} to {@code to}, both included;
+     * a null bound is open. Numbers compare by value, strings lexicographically.
+     */
+    public TycoQuery whereBetween(String attrName, Object from, Object to) {
+        return with(attrName, indexes -> indexes.between(attrName, from, to));
+    }
+
+    /** Instances whose string attribute starts with {@code prefix} */
+    public TycoQuery whereStartsWith(String attrName, String prefix) {
+        return with(attrName, indexes -> indexes.startingWith(attrName, prefix));
+    }
+
+    public List<TycoInstance> list() {
+        QueryIndexes indexes = struct.queryIndexes();
+        int[] rows = rows(indexes);
+        List<TycoInstance> result = new ArrayList<>(rows == null ? indexes.size() : rows.length);
+        if (rows == null) {
+            for (int row = 0; row < indexes.size(); row++) {
+                result.add(indexes.instance(row));
+            }
+        } else {
+            for (int row : rows) {
+                result.add(indexes.instance(row));
+            }
+        }
+        return result;
+    }
+
+    /** The first matching instance, or null */
+    public TycoInstance first() {
+        QueryIndexes indexes = struct.queryIndexes();
+        int[] rows = rows(indexes);
+        if (rows == null) {
+            return indexes.size() == 0 ? null : indexes.instance(0);
+        }
+        return rows.length == 0 ? null : indexes.instance(rows[0]);
+    }
+
+    public int count() {
+        QueryIndexes indexes = struct.queryIndexes();
+        int[] rows = rows(indexes);
+        return rows == null ? indexes.size() : rows.length;
+    }
+
+    @Override
+    public String toString() {
+        return "TycoQuery(" + struct.getTypeName() + ", " + conditions.size() + " conditions)";
+    }
+
+    private TycoQuery with(String attrName, Condition condition) {
+        if (!struct.hasAttribute(attrName)) {
+            throw new TycoParseException("Invalid attribute " + attrName + " for " + struct);
+        }
+        List<Condition> extended = new ArrayList<>(conditions);
+        extended.add(condition);
+        return new TycoQuery(struct, List.copyOf(extended));
+    }
+
+    /** Ascending rows matching all conditions, null for all rows */
+    private int[] rows(QueryIndexes indexes) {
+        if (conditions.isEmpty()) {
+            return null;
+        }
+        int[][] matches = new int[conditions.size()][];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = conditions.get(i).rows(indexes);
+        }
+        Arrays.sort(matches, (a, b) -> Integer.compare(a.length, b.length));
+        int[] result = matches[0];
+        for (int i = 1; i < matches.length && result.length > 0; i++) {
+            result = intersect(result, matches[i]);
+        }
+        return result;
+    }
+
+    /** Rows in both, looking those of the smaller one up in the larger one */
+    private static int[] intersect(int[] smaller, int[] larger) {
+        int[] result = new int[smaller.length];
+        int count = 0;
+        int from = 0;
+        for (int row : smaller) {
+            int found = Arrays.binarySearch(larger, from, larger.length, row);
+            if (found >= 0) {
+                result[count++] = row;
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private interface Condition {
+        int[] rows(QueryIndexes indexes);
+    }
+}
@@ -16,7 +16,7 @@ public class TycoReference implements TycoAttribute {
     private Boolean isArray;
     private Object parent;
     private Object rendered = UNRENDERED;
-    private SourceLocation location;
+    private long position;
     
     public TycoReference(TycoContext context, List<TycoAttribute> instArgs, String typeName) {
         this.context = context;
@@ -34,33 +34,47 @@ public class TycoReference implements TycoAttribute {
     
     @Override
     public TycoAttribute makeCopy() {
+        return copyInto(context, 0);
+    }
+
+    TycoReference copyInto(TycoContext context, int fileOffset) {
         List<TycoAttribute> copiedArgs = new ArrayList<>();
         for (TycoAttribute arg : instArgs) {
-            copiedArgs.add(arg.makeCopy());
+            copiedArgs.add(TycoContext.copyInto(arg, context, fileOffset));
         }
         TycoReference copy = new TycoReference(context, copiedArgs, typeName);
         copy.attrName = this.attrName;
         copy.isNullable = this.isNullable;
         copy.isArray = this.isArray;
         copy.parent = this.parent;
-        copy.location = this.location;
+        copy.position = SourcePositions.relocate(this.position, fileOffset);
         return copy;
     }
 
     @Override
     public void setLocation(SourceLocation location) {
-        this.location = location;
+        this.position = context.getSourcePositions().pack(location);
     }
 
     @Override
     public SourceLocation getLocation() {
-        return location;
+        return context.getSourcePositions().resolve(position);
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void setPosition(long position) {
+        this.position = position;
     }
     
     @Override
     public void applySchemaInfo(String typeName, String attrName, Boolean isNullable, Boolean isArray) {
         if (typeName != null && !this.typeName.equals(typeName)) {
-            throw new TycoParseException("Expected " + typeName + " for " + parent + "." + attrName + " and instead have " + this, location);
+            throw new TycoParseException("Expected " + typeName + " for " + parent + "." + attrName + " and instead have " + this, getLocation());
         }
         if (attrName != null) {
             this.attrName = attrName;
@@ -73,10 +87,15 @@ public class TycoReference implements TycoAttribute {
         }
         
         if (Boolean.TRUE.equals(this.isArray)) {
-            throw new TycoParseException("Expected array for " + parent + "." + attrName + ", instead have " + this, location);
+            throw new TycoParseException("Expected array for " + parent + "." + attrName + ", instead have " + this, getLocation());
         }
     }
     
+    /** Apply the schema info of this reference to one replacing it */
+    void applySchemaInfoTo(TycoAttribute replacement) {
+        replacement.applySchemaInfo(typeName, attrName, isNullable, isArray);
+    }
+
     @Override
     public void setParent(Object parent) {
         this.parent = parent;
@@ -91,15 +110,15 @@ public class TycoReference implements TycoAttribute {
     @Override
     public void renderReferences() {
         if (rendered != UNRENDERED) {
-            throw new TycoParseException("Rendered multiple times " + this, location);
+            throw new TycoParseException("Rendered multiple times " + this, getLocation());
         }
 
         TycoStruct struct = context.getStruct(typeName);
         if (struct == null) {
-            throw new TycoParseException("Bad type name for reference: " + typeName + " " + instArgs, location);
+            throw new TycoParseException("Bad type name for reference: " + typeName + " " + instArgs, getLocation());
         }
         
-        rendered = struct.loadReference(instArgs, location);
+        rendered = struct.loadReference(instArgs, getLocation());
     }
     
     @Override
@@ -131,6 +150,16 @@ public class TycoReference implements TycoAttribute {
         return rendered;
     }
     
+    /** Forget the resolved instance, so that references can be rendered again */
+    void unrender() {
+        rendered = UNRENDERED;
+    }
+
+    /** The instance this reference resolved to, or null before rendering */
+    TycoInstance getTarget() {
+        return rendered instanceof TycoInstance ? (TycoInstance) rendered : null;
+    }
+
     /**
      * Access attributes by name (for template resolution)
      */
@@ -138,7 +167,7 @@ public class TycoReference implements TycoAttribute {
         if (rendered instanceof TycoInstance) {
             return ((TycoInstance) rendered).get(attrName);
         }
-        throw new TycoParseException("Cannot access attribute on unrendered reference", location);
+        throw new TycoParseException("Cannot access attribute on unrendered reference", getLocation());
     }
     
     @Override
@@ -0,0 +1,510 @@
+package io.typedconfig.tyco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshot (.tycob) of a rendered context, so a configuration can be read
+ * back without lexing and rendering it again.
+ *
+ * <p>Reading a snapshot gives the same content as {@link TycoContext#toObject()}
+ * did when it was written, as a read-only view. A reference becomes the very map
+ * of the instance it resolved to, instead of a copy of it.
+ *
+ * <p>Layout, big-endian: a 16 byte header (magic {@code TYCB}, format version,
+ * flags, payload length and CRC32C of the payload), then the payload:
+ * <ul>
+ *   <li>string table: every name and string value once, as UTF-8</li>
+ *   <li>shape table: the attribute names of instances, as string indices</li>
+ *   <li>struct directory: name, whether it is part of the output, instance count</li>
+ *   <li>per struct, either one typed column per attribute (int, long, double,
+ *       bool, string or tagged values) or, when its instances differ in shape,
+ *       one tagged row per instance</li>
+ *   <li>globals: name and tagged value</li>
+ * </ul>
+ * Tagged values are null, booleans, numbers, strings, lists, instances (by shape)
+ * and references as (struct, instance) indices.
+ */
+public final class TycoSnapshot {
+    static final int MAGIC = 0x54594342; // "TYCB"
+    static final short VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+    private static final byte REF = 9;
+
+    private static final byte INT_COLUMN = 1;
+    private static final byte LONG_COLUMN = 2;
+    private static final byte DOUBLE_COLUMN = 3;
+    private static final byte BOOL_COLUMN = 4;
+    private static final byte STRING_COLUMN = 5;
+    private static final byte VALUE_COLUMN = 6;
+
+    private TycoSnapshot() {
+        // utility
+    }
+
+    /**
+     * Load a Tyco file or directory and write its snapshot.
+     *
+     * @param sourcePath path to a .tyco file or directory containing .tyco files
+     * @param options parser options
+     * @param snapshotPath file to write the snapshot to
+     */
+    public static void compile(String sourcePath, TycoParserOptions options, Path snapshotPath) {
+        write(TycoParser.loadContext(sourcePath, options), snapshotPath);
+    }
+
+    /**
+     * Write the snapshot of a context whose content has been rendered.
+     */
+    public static void write(TycoContext context, Path snapshotPath) {
+        try (OutputStream out = Files.newOutputStream(snapshotPath)) {
+            write(context, out);
+        } catch (IOException e) {
+            throw new TycoParseException("Cannot write snapshot: " + snapshotPath, e);
+        }
+    }
+
+    /**
+     * Write the snapshot of a context whose content has been rendered.
+     */
+    public static void write(TycoContext context, OutputStream out) throws IOException {
+        ByteBuffer payload = new Writer(context).payload();
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+        header.putInt(payload.remaining()).putInt((int) crc.getValue());
+        out.write(header.array());
+        out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+    }
+
+    /**
+     * Map a snapshot file and return its content, as {@link TycoContext#toObject()}
+     * returned it when it was written.
+     */
+    public static Map<String, Object> read(Path snapshotPath) {
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), snapshotPath.toString());
+        } catch (IOException e) {
+            throw new TycoParseException("Cannot read snapshot: " + snapshotPath, e);
+        }
+    }
+
+    /**
+     * Read a snapshot from a buffer holding the whole file.
+     */
+    public static Map<String, Object> read(ByteBuffer snapshot) {
+        return read(snapshot, "buffer");
+    }
+
+    private static Map<String, Object> read(ByteBuffer snapshot, String name) {
+        ByteBuffer buffer = snapshot.duplicate();
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new TycoParseException("Not a Tyco snapshot: " + name);
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new TycoParseException("Unsupported snapshot version " + version + " (expected " + VERSION + "): " + name);
+        }
+        buffer.getShort();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length != buffer.remaining()) {
+            throw new TycoParseException("Truncated snapshot: " + name);
+        }
+        ByteBuffer payload = buffer.slice();
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new TycoParseException("Snapshot checksum mismatch: " + name);
+        }
+        return new Reader(payload).read();
+    }
+
+    private static final class Writer {
+        private final TycoContext context;
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<List<String>, Integer> shapes = new LinkedHashMap<>();
+        private final Map<TycoInstance, int[]> instanceIds = new IdentityHashMap<>();
+        private ByteBuffer body = ByteBuffer.allocate(1 << 16);
+
+        Writer(TycoContext context) {
+            this.context = context;
+        }
+
+        ByteBuffer payload() {
+            List<TycoStruct> structs = new ArrayList<>(context.structs());
+            for (int s = 0; s < structs.size(); s++) {
+                List<TycoInstance> instances = structs.get(s).instances();
+                for (int i = 0; i < instances.size(); i++) {
+                    instanceIds.put(instances.get(i), new int[] {s, i});
+                }
+            }
+
+            for (TycoStruct struct : structs) {
+                writeStruct(struct.instances());
+            }
+            putInt(context.globals().size());
+            for (Map.Entry<String, TycoAttribute> entry : context.globals().entrySet()) {
+                putInt(string(entry.getKey()));
+                writeAttribute(entry.getValue());
+            }
+            for (TycoStruct struct : structs) {
+                string(struct.getTypeName());
+            }
+
+            ByteBuffer bodyBytes = body.flip();
+            body = ByteBuffer.allocate(1 << 12);
+            putInt(strings.size());
+            for (String value : strings.keySet()) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                putInt(bytes.length);
+                ensure(bytes.length).put(bytes);
+            }
+            putInt(shapes.size());
+            for (List<String> shape : shapes.keySet()) {
+                putInt(shape.size());
+                for (String key : shape) {
+                    putInt(strings.get(key));
+                }
+            }
+            putInt(structs.size());
+            for (TycoStruct struct : structs) {
+                putInt(strings.get(struct.getTypeName()));
+                ensure(1).put((byte) (struct.getPrimaryKeys().isEmpty() ? 0 : 1));
+                putInt(struct.instances().size());
+            }
+            ensure(bodyBytes.remaining()).put(bodyBytes);
+            return body.flip();
+        }
+
+        private void writeStruct(List<TycoInstance> instances) {
+            List<String> shape = instances.isEmpty() ? List.of() : new ArrayList<>(instances.get(0).attributes().keySet());
+            for (TycoInstance inst : instances) {
+                if (!new ArrayList<>(inst.attributes().keySet()).equals(shape)) {
+                    putInt(-1);
+                    for (TycoInstance row : instances) {
+                        writeAttribute(row);
+                    }
+                    return;
+                }
+            }
+            putInt(shape(shape));
+            for (String key : shape) {
+                writeColumn(instances, key);
+            }
+        }
+
+        private void writeColumn(List<TycoInstance> instances, String key) {
+            Class<?> type = null;
+            for (TycoInstance inst : instances) {
+                TycoAttribute attr = inst.attributes().get(key);
+                Object value = attr instanceof TycoValue ? attr.toJson() : null;
+                Class<?> valueType = value == null ? Void.class : value.getClass();
+                if (type == null) {
+                    type = valueType;
+                } else if (type != valueType) {
+                    type = Void.class;
+                    break;
+                }
+            }
+            byte kind = type == Integer.class ? INT_COLUMN
+                : type == Long.class ? LONG_COLUMN
+                : type == Double.class ? DOUBLE_COLUMN
+                : type == Boolean.class ? BOOL_COLUMN
+                : type == String.class ? STRING_COLUMN
+                : VALUE_COLUMN;
+            ensure(1).put(kind);
+            for (TycoInstance inst : instances) {
+                TycoAttribute attr = inst.attributes().get(key);
+                switch (kind) {
+                    case INT_COLUMN:
+                        putInt((Integer) attr.toJson());
+                        break;
+                    case LONG_COLUMN:
+                        ensure(8).putLong((Long) attr.toJson());
+                        break;
+                    case DOUBLE_COLUMN:
+                        ensure(8).putDouble((Double) attr.toJson());
+                        break;
+                    case BOOL_COLUMN:
+                        ensure(1).put((byte) ((Boolean) attr.toJson() ? 1 : 0));
+                        break;
+                    case STRING_COLUMN:
+                        putInt(string((String) attr.toJson()));
+                        break;
+                    default:
+                        writeAttribute(attr);
+                }
+            }
+        }
+
+        private void writeAttribute(TycoAttribute attr) {
+            if (attr instanceof TycoReference) {
+                int[] id = instanceIds.get(((TycoReference) attr).getTarget());
+                if (id != null) {
+                    ensure(9).put(REF).putInt(id[0]).putInt(id[1]);
+                    return;
+                }
+            } else if (attr instanceof TycoArray) {
+                List<TycoAttribute> items = ((TycoArray) attr).items();
+                ensure(5).put(LIST).putInt(items.size());
+                for (TycoAttribute item : items) {
+                    writeAttribute(item);
+                }
+                return;
+            } else if (attr instanceof TycoInstance) {
+                Map<String, TycoAttribute> attributes = ((TycoInstance) attr).attributes();
+                ensure(5).put(MAP).putInt(shape(new ArrayList<>(attributes.keySet())));
+                for (TycoAttribute value : attributes.values()) {
+                    writeAttribute(value);
+                }
+                return;
+            }
+            writeValue(attr.toJson());
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                ensure(1).put(NULL);
+            } else if (value instanceof Boolean) {
+                ensure(1).put((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Integer) {
+                ensure(5).put(INT).putInt((Integer) value);
+            } else if (value instanceof Long) {
+                ensure(9).put(LONG).putLong((Long) value);
+            } else if (value instanceof Double) {
+                ensure(9).put(DOUBLE).putDouble((Double) value);
+            } else if (value instanceof String) {
+                ensure(5).put(STRING).putInt(string((String) value));
+            } else if (value instanceof List) {
+                List<?> items = (List<?>) value;
+                ensure(5).put(LIST).putInt(items.size());
+                for (Object item : items) {
+                    writeValue(item);
+                }
+            } else if (value instanceof Map) {
+                List<String> shape = new ArrayList<>();
+                for (Object key : ((Map<?, ?>) value).keySet()) {
+                    shape.add(String.valueOf(key));
+                }
+                ensure(5).put(MAP).putInt(shape(shape));
+                for (Object item : ((Map<?, ?>) value).values()) {
+                    writeValue(item);
+                }
+            } else {
+                throw new TycoParseException("Cannot write " + value.getClass().getSimpleName() + " to a snapshot: " + value);
+            }
+        }
+
+        private int string(String value) {
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.put(value, index);
+            }
+            return index;
+        }
+
+        private int shape(List<String> keys) {
+            Integer index = shapes.get(keys);
+            if (index == null) {
+                for (String key : keys) {
+                    string(key);
+                }
+                index = shapes.size();
+                shapes.put(keys, index);
+            }
+            return index;
+        }
+
+        private void putInt(int value) {
+            ensure(4).putInt(value);
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (body.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + bytes));
+                grown.put(body.flip());
+                body = grown;
+            }
+            return body;
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private String[] strings;
+        private String[][] shapes;
+        private List<List<Map<String, Object>>> instanceMaps;
+        private List<List<Map<String, Object>>> instanceViews;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> read() {
+            strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = in.getInt();
+                strings[i] = new String(bytes(length), StandardCharsets.UTF_8);
+            }
+            shapes = new String[in.getInt()][];
+            for (int i = 0; i < shapes.length; i++) {
+                String[] shape = new String[in.getInt()];
+                for (int k = 0; k < shape.length; k++) {
+                    shape[k] = strings[in.getInt()];
+                }
+                shapes[i] = shape;
+            }
+
+            int structCount = in.getInt();
+            String[] structNames = new String[structCount];
+            boolean[] listed = new boolean[structCount];
+            instanceMaps = new ArrayList<>(structCount);
+            instanceViews = new ArrayList<>(structCount);
+            for (int s = 0; s < structCount; s++) {
+                structNames[s] = strings[in.getInt()];
+                listed[s] = in.get() != 0;
+                int count = in.getInt();
+                List<Map<String, Object>> maps = new ArrayList<>(count);
+                List<Map<String, Object>> views = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    maps.add(map);
+                    views.add(Collections.unmodifiableMap(map));
+                }
+                instanceMaps.add(maps);
+                instanceViews.add(Collections.unmodifiableList(views));
+            }
+
+            for (int s = 0; s < structCount; s++) {
+                readStruct(instanceMaps.get(s));
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            int globalCount = in.getInt();
+            for (int g = 0; g < globalCount; g++) {
+                String globalName = strings[in.getInt()];
+                result.put(globalName, readValue());
+            }
+            for (int s = 0; s < structCount; s++) {
+                if (listed[s]) {
+                    result.put(structNames[s], instanceViews.get(s));
+                }
+            }
+            return Collections.unmodifiableMap(result);
+        }
+
+        private void readStruct(List<Map<String, Object>> maps) {
+            int shapeIndex = in.getInt();
+            if (shapeIndex < 0) {
+                for (Map<String, Object> map : maps) {
+                    in.get();
+                    readInto(map, shapes[in.getInt()]);
+                }
+                return;
+            }
+            for (String key : shapes[shapeIndex]) {
+                byte kind = in.get();
+                for (Map<String, Object> map : maps) {
+                    Object value;
+                    switch (kind) {
+                        case INT_COLUMN:
+                            value = in.getInt();
+                            break;
+                        case LONG_COLUMN:
+                            value = in.getLong();
+                            break;
+                        case DOUBLE_COLUMN:
+                            value = in.getDouble();
+                            break;
+                        case BOOL_COLUMN:
+                            value = in.get() != 0;
+                            break;
+                        case STRING_COLUMN:
+                            value = strings[in.getInt()];
+                            break;
+                        default:
+                            value = readValue();
+                    }
+                    map.put(key, value);
+                }
+            }
+        }
+
+        private Object readValue() {
+            byte tag = in.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case INT:
+                    return in.getInt();
+                case LONG:
+                    return in.getLong();
+                case DOUBLE:
+                    return in.getDouble();
+                case STRING:
+                    return strings[in.getInt()];
+                case LIST: {
+                    Object[] items = new Object[in.getInt()];
+                    for (int i = 0; i < items.length; i++) {
+                        items[i] = readValue();
+                    }
+                    return Collections.unmodifiableList(Arrays.asList(items));
+                }
+                case MAP: {
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    readInto(map, shapes[in.getInt()]);
+                    return Collections.unmodifiableMap(map);
+                }
+                case REF:
+                    return instanceViews.get(in.getInt()).get(in.getInt());
+                default:
+                    throw new TycoParseException("Corrupt snapshot: unknown value tag " + tag);
+            }
+        }
+
+        private void readInto(Map<String, Object> map, String[] shape) {
+            for (String key : shape) {
+                map.put(key, readValue());
+            }
+        }
+
+        private byte[] bytes(int length) {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -13,7 +13,12 @@ public class TycoStruct {
     private Set<String> nullableKeys;                // {attrName,...}
     private Set<String> arrayKeys;                   // {attrName,...}
     private List<TycoInstance> instances;            // [TycoInstance(),...]
-    private Map<List<Object>, TycoInstance> mappedInstances; // {primaryKeyValues : TycoInstance}
+    private PrimaryKeyIndex keyIndex;                // {primaryKeyValues : TycoInstance}, once loaded
+    private final ReferenceMemo referenceMemo = new ReferenceMemo();
+    private TycoColumns columns;                     // built on demand, until the next update
+    private int columnsVersion;
+    private QueryIndexes queryIndexes;               // likewise
+    private int queryIndexesVersion;
     
     public TycoStruct(TycoContext context, String typeName) {
         this.context = context;
@@ -23,7 +28,6 @@ public class TycoStruct {
         this.nullableKeys = new HashSet<>();
         this.arrayKeys = new HashSet<>();
         this.instances = new ArrayList<>();
-        this.mappedInstances = new HashMap<>();
     }
     
     public String getTypeName() {
@@ -45,7 +49,87 @@ public class TycoStruct {
     public List<TycoInstance> getInstances() {
         return new ArrayList<>(instances);
     }
+
+    /**
+     * The rendered instances stored column by column, see {@link TycoColumns}.
+     * Built on first use and kept until the context is updated.
+     */
+    public TycoColumns toColumns() {
+        if (columns == null || columnsVersion != context.getRenderVersion()) {
+            columnsVersion = context.getRenderVersion();
+            TycoColumns.Builder builder = columnsBuilder();
+            for (TycoInstance instance : instances) {
+                builder.add(instance);
+            }
+            columns = builder.build();
+        }
+        return columns;
+    }
+
+    TycoColumns.Builder columnsBuilder() {
+        return new TycoColumns.Builder(typeName, attrTypes, arrayKeys);
+    }
+
+    /**
+     * Query over the rendered instances, see {@link TycoQuery}
+     */
+    public TycoQuery query() {
+        return new TycoQuery(this);
+    }
+
+    /** Indexes for queries over the rendered instances, kept until the context is updated */
+    synchronized QueryIndexes queryIndexes() {
+        if (queryIndexes == null || queryIndexesVersion != context.getRenderVersion()) {
+            queryIndexesVersion = context.getRenderVersion();
+            queryIndexes = new QueryIndexes(new ArrayList<>(instances));
+        }
+        return queryIndexes;
+    }
+
+    /** The instance list itself, for iterating without a copy */
+    List<TycoInstance> instances() {
+        return instances;
+    }
     
+    /**
+     * Copy of the schema and instances for another context, before rendering
+     */
+    TycoStruct copyInto(TycoContext context, int fileOffset) {
+        TycoStruct copy = new TycoStruct(context, typeName);
+        copy.copySchemaFrom(this);
+        copy.adoptInstances(this, fileOffset);
+        return copy;
+    }
+
+    /**
+     * Take the attributes and keys of {@code other}, a struct of another context
+     */
+    void copySchemaFrom(TycoStruct other) {
+        attrTypes.putAll(other.attrTypes);
+        primaryKeys.addAll(other.primaryKeys);
+        nullableKeys.addAll(other.nullableKeys);
+        arrayKeys.addAll(other.arrayKeys);
+    }
+
+    /**
+     * Whether {@code other} has the same attributes, in the same order, and keys
+     */
+    boolean hasSchemaOf(TycoStruct other) {
+        return getAttrNames().equals(other.getAttrNames()) && attrTypes.equals(other.attrTypes)
+            && primaryKeys.equals(other.primaryKeys) && nullableKeys.equals(other.nullableKeys)
+            && arrayKeys.equals(other.arrayKeys);
+    }
+
+    /**
+     * Append copies of the instances of {@code lexed}, a struct with this schema
+     * lexed in another context, before rendering
+     */
+    void adoptInstances(TycoStruct lexed, int fileOffset) {
+        for (TycoInstance inst : lexed.instances) {
+            instances.add(inst.copyInto(context, fileOffset));
+        }
+    }
+
     /**
      * Add an attribute to the schema
      */
@@ -89,14 +173,13 @@ public class TycoStruct {
         for (int i = 0; i < instArgs.size(); i++) {
             TycoAttribute attr = instArgs.get(i);
             String attrName = attr.getAttrName();
-            SourceLocation attrLocation = attr.getLocation();
 
             if (attrName == null) {
                 if (kwargsOnly) {
-                    throw new TycoParseException("Cannot use positional values after keyed values: " + instArgs, attrLocation);
+                    throw new TycoParseException("Cannot use positional values after keyed values: " + instArgs, attr.getLocation());
                 }
                 if (i >= attrNames.size()) {
-                    throw new TycoParseException("Too many positional arguments for " + typeName, attrLocation);
+                    throw new TycoParseException("Too many positional arguments for " + typeName, attr.getLocation());
                 }
                 attrName = attrNames.get(i);
                 attr.setAttrName(attrName);
@@ -109,7 +192,7 @@ public class TycoStruct {
 
         Map<String, TycoAttribute> completeKwargs = resolveCompleteKwargs(instKwargs, defaultKwargs);
         TycoInstance instance = new TycoInstance(context, typeName, completeKwargs);
-        instance.setLocation(firstLocation(instArgs, null));
+        instance.setPosition(firstPosition(instArgs));
         return instance;
     }
     
@@ -121,37 +204,169 @@ public class TycoStruct {
             return;
         }
         
+        if (keyIndex == null) {
+            keyIndex = PrimaryKeyIndex.of(primaryKeys, attrTypes);
+        }
+        referenceMemo.clear();
         for (TycoInstance inst : instances) {
-            List<Object> key = new ArrayList<>();
-            for (String keyAttr : primaryKeys) {
-                key.add(inst.getAttribute(keyAttr).getRendered());
+            TycoInstance existing = keyIndex.putIfAbsent(inst);
+            if (existing != null) {
+                throw new TycoParseException(keyIndex.keyOf(inst) + " already found for " + typeName + ": " + existing, inst.getLocation());
             }
+        }
+    }
+    
+    /**
+     * The instance with the given rendered primary key values, or null
+     */
+    TycoInstance findInstance(List<?> primaryKey) {
+        return keyIndex == null ? null : keyIndex.get(primaryKey.toArray());
+    }
+
+    /**
+     * The rendered instance whose single primary key has the given value, or null.
+     * Int keys match any integral boxed number.
+     *
+     * @throws IllegalArgumentException if the struct has no single primary key
+     */
+    public TycoInstance findByKey(Object key) {
+        checkKeyCount(1);
+        return keyIndex == null ? null : keyIndex.get(key);
+    }
+
+    /**
+     * The rendered instance whose single int primary key has the given value, or null
+     */
+    public TycoInstance findByKey(long key) {
+        checkKeyCount(1);
+        return keyIndex == null ? null : keyIndex.get(key);
+    }
+
+    /**
+     * The rendered instance with the given primary key values, in key order, or null
+     *
+     * @throws IllegalArgumentException if the number of values does not match the primary keys
+     */
+    public TycoInstance findByKey(Object... key) {
+        checkKeyCount(key.length);
+        return keyIndex == null ? null : keyIndex.get(key);
+    }
 
-            if (mappedInstances.containsKey(key)) {
-                throw new TycoParseException(key + " already found for " + typeName + ": " + mappedInstances.get(key), inst.getLocation());
+    private void checkKeyCount(int count) {
+        if (primaryKeys.size() != count) {
+            throw new IllegalArgumentException(typeName + " has " + primaryKeys.size() + " primary keys, not " + count);
+        }
+    }
+
+    /**
+     * Copy of {@code inst} with some of its attributes replaced, not added to the
+     * instances list
+     */
+    TycoInstance replaceAttributes(TycoInstance inst, Map<String, TycoAttribute> replaced) {
+        Map<String, TycoAttribute> instKwargs = new LinkedHashMap<>();
+        for (String attrName : attrTypes.keySet()) {
+            TycoAttribute attr = replaced.get(attrName);
+            if (attr == null) {
+                attr = inst.getAttribute(attrName);
+                attr = isShared(attr) ? attr : attr.makeCopy();
+            }
+            instKwargs.put(attrName, attr);
+        }
+        for (String attrName : replaced.keySet()) {
+            if (!attrTypes.containsKey(attrName)) {
+                throw new TycoParseException("Invalid attribute " + attrName + " for " + this);
             }
-            mappedInstances.put(key, inst);
         }
+        TycoInstance replacement = new TycoInstance(context, typeName, resolveCompleteKwargs(instKwargs, null));
+        replacement.setPosition(inst.getPosition());
+        return replacement;
     }
-    
+
+    /**
+     * Put a rendered instance in the place of another one, also under its primary key
+     */
+    void replaceInstance(TycoInstance inst, TycoInstance replacement) {
+        referenceMemo.clear();
+        keyIndex.remove(inst);
+        TycoInstance existing = keyIndex.putIfAbsent(replacement);
+        if (existing != null) {
+            keyIndex.putIfAbsent(inst);
+            throw new TycoParseException(keyIndex.keyOf(replacement) + " already found for " + typeName + ": " + existing, replacement.getLocation());
+        }
+        for (int i = 0; i < instances.size(); i++) {
+            if (instances.get(i) == inst) {
+                instances.set(i, replacement);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Forget the loaded primary keys, so that they can be loaded again
+     */
+    void clearPrimaryKeys() {
+        referenceMemo.clear();
+        if (keyIndex != null) {
+            keyIndex.clear();
+        }
+    }
+
     /**
      * Load reference by primary key arguments
      */
     public TycoInstance loadReference(List<TycoAttribute> instArgs, SourceLocation referenceLocation) {
-        Map<String, TycoAttribute> instKwargs = new HashMap<>();
+        // the same argument text always resolves the same way, until the keys change
+        ReferenceMemo.Key memoKey = referenceMemo.keyOf(instArgs);
+        ReferenceMemo.Resolved memo = referenceMemo.get(memoKey);
+        if (memo != null) {
+            nameArguments(instArgs, memo.rendered);
+            return memo.target;
+        }
+
+        Object[] rendered = nameArguments(instArgs, null);
+        // rendered primary key values in key order; other attributes are rendered but not used
+        Object[] key = new Object[primaryKeys.size()];
+        boolean[] found = new boolean[primaryKeys.size()];
+        for (int i = 0; i < instArgs.size(); i++) {
+            int keyPosition = primaryKeys.indexOf(instArgs.get(i).getAttrName());
+            if (keyPosition >= 0) {
+                key[keyPosition] = rendered[i];
+                found[keyPosition] = true;
+            }
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (!found[i]) {
+                throw new TycoParseException("Missing primary key " + primaryKeys.get(i) + " in reference to " + typeName, firstLocation(instArgs, referenceLocation));
+            }
+        }
+        
+        TycoInstance result = keyIndex == null ? null : keyIndex.get(key);
+        if (result == null) {
+            throw new TycoParseException("Unable to find reference of " + typeName + "(" + Arrays.asList(key) + ")", firstLocation(instArgs, referenceLocation));
+        }
+        referenceMemo.put(memoKey, rendered, result);
+        return result;
+    }
+
+    /**
+     * Name the positional arguments of a reference after the primary keys, apply
+     * their schema info and render them, or give them the values {@code rendered}
+     * before for the same text; returns the rendered values.
+     */
+    private Object[] nameArguments(List<TycoAttribute> instArgs, Object[] rendered) {
+        Object[] result = rendered != null ? rendered : new Object[instArgs.size()];
         boolean kwargsOnly = false;
 
         for (int i = 0; i < instArgs.size(); i++) {
             TycoAttribute attr = instArgs.get(i);
             String attrName = attr.getAttrName();
-            SourceLocation attrLocation = attr.getLocation();
 
             if (attrName == null) {
                 if (kwargsOnly) {
-                    throw new TycoParseException("Cannot use positional values after keyed values: " + instArgs, attrLocation);
+                    throw new TycoParseException("Cannot use positional values after keyed values: " + instArgs, attr.getLocation());
                 }
                 if (i >= primaryKeys.size()) {
-                    throw new TycoParseException("Too many arguments for reference to " + typeName, attrLocation);
+                    throw new TycoParseException("Too many arguments for reference to " + typeName, attr.getLocation());
                 }
                 attrName = primaryKeys.get(i);
                 attr.setAttrName(attrName);
@@ -164,18 +379,12 @@ public class TycoStruct {
             boolean isArray = arrayKeys.contains(attrName);
             
             attr.applySchemaInfo(fieldTypeName, attrName, isNullable, isArray);
-            attr.renderBaseContent();
-            instKwargs.put(attrName, attr);
-        }
-        
-        List<Object> key = new ArrayList<>();
-        for (String keyAttr : primaryKeys) {
-            key.add(instKwargs.get(keyAttr).getRendered());
-        }
-        
-        TycoInstance result = mappedInstances.get(key);
-        if (result == null) {
-            throw new TycoParseException("Unable to find reference of " + typeName + "(" + key + ")", firstLocation(instArgs, referenceLocation));
+            if (rendered != null) {
+                ((TycoValue) attr).renderAs(rendered[i]);
+            } else {
+                attr.renderBaseContent();
+                result[i] = attr.getRendered();
+            }
         }
         return result;
     }
@@ -188,7 +397,13 @@ public class TycoStruct {
             if (instKwargs.containsKey(attrName)) {
                 attr = instKwargs.get(attrName);
             } else if (defaultKwargs != null && defaultKwargs.containsKey(attrName)) {
-                attr = defaultKwargs.get(attrName).makeCopy();
+                attr = defaultKwargs.get(attrName);
+                if (isShared(attr)) {
+                    // schema info was applied when it was first used
+                    completeKwargs.put(attrName, attr);
+                    continue;
+                }
+                attr = resolveDefault(attr);
             } else {
                 throw new TycoParseException("Invalid attribute " + attrName + " for " + this);
             }
@@ -204,13 +419,44 @@ public class TycoStruct {
         return completeKwargs;
     }
 
+    /**
+     * The attribute to use for a default: the default itself when it renders the same
+     * for every instance (values without templates, and arrays of them), otherwise a
+     * copy. A shared default is rendered once, by the first instance that gets to it
+     * (see {@link TycoInstance#renderBaseContent()}).
+     */
+    private static TycoAttribute resolveDefault(TycoAttribute defaultAttr) {
+        if (defaultAttr instanceof TycoValue && ((TycoValue) defaultAttr).isConstant()) {
+            ((TycoValue) defaultAttr).share();
+            return defaultAttr;
+        }
+        if (defaultAttr instanceof TycoArray && ((TycoArray) defaultAttr).isConstant()) {
+            ((TycoArray) defaultAttr).share();
+            return defaultAttr;
+        }
+        return defaultAttr.makeCopy();
+    }
+
+    /** Whether {@code attr} is a default shared by instances, see {@link #resolveDefault} */
+    static boolean isShared(TycoAttribute attr) {
+        if (attr instanceof TycoValue) {
+            return ((TycoValue) attr).isShared();
+        }
+        return attr instanceof TycoArray && ((TycoArray) attr).isShared();
+    }
+
     private SourceLocation firstLocation(List<TycoAttribute> attrs, SourceLocation fallback) {
+        long position = firstPosition(attrs);
+        return position != SourcePositions.NONE ? context.getSourcePositions().resolve(position) : fallback;
+    }
+
+    private long firstPosition(List<TycoAttribute> attrs) {
         for (TycoAttribute attr : attrs) {
-            if (attr != null && attr.getLocation() != null) {
-                return attr.getLocation();
+            if (attr != null && attr.getPosition() != SourcePositions.NONE) {
+                return attr.getPosition();
             }
         }
-        return fallback;
+        return SourcePositions.NONE;
     }
     
     @Override
@@ -14,6 +14,13 @@ final class TycoUtils {
 
     private static final Pattern BASIC_STR_ESCAPE_PATTERN;
 
+    private static final int FRACTION_DIGITS = 6;
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] EXACT_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     static {
         Set<Character> ascii = new HashSet<>();
         for (int i = 0; i < 32; i++) {
@@ -139,60 +146,251 @@ final class TycoUtils {
         }
     }
 
-    static String normalizeTimeLiteral(String value) {
-        String trimmed = value.trim();
-        Matcher matcher = Pattern.compile("^(\\d{2}:\\d{2}:\\d{2})(\\.(\\d+))?$").matcher(trimmed);
-        if (!matcher.matches()) {
-            return trimmed;
+    /**
+     * Decode an int literal ({@code [+-]} followed by decimal digits or a {@code 0x},
+     * {@code 0o} or {@code 0b} prefixed number) straight from the source text.
+     * Malformed input fails with the {@link NumberFormatException} that
+     * {@link Long#parseLong(String, int)} gives for the digits after the prefix.
+     */
+    static long decodeInt(CharSequence raw) {
+        int start = 0;
+        int end = raw.length();
+        int sign = 1;
+        if (start < end && raw.charAt(start) == '-') {
+            sign = -1;
+            start++;
+        } else if (start < end && raw.charAt(start) == '+') {
+            start++;
+        }
+        int base = 10;
+        if (end - start >= 2 && raw.charAt(start) == '0') {
+            char prefix = raw.charAt(start + 1);
+            if (prefix == 'x' || prefix == 'X') {
+                base = 16;
+            } else if (prefix == 'o' || prefix == 'O') {
+                base = 8;
+            } else if (prefix == 'b' || prefix == 'B') {
+                base = 2;
+            }
+            if (base != 10) {
+                start += 2;
+            }
+        }
+        try {
+            return sign * Long.parseLong(raw, start, end, base);
+        } catch (NumberFormatException e) {
+            // the CharSequence overload names neither the text nor, when it is empty, anything at all
+            return sign * Long.parseLong(raw.subSequence(start, end).toString(), base);
+        }
+    }
+
+    /**
+     * Decode a float literal. Plain decimal literals with at most 15 significant
+     * digits and a small exponent are computed exactly from the digits (one
+     * correctly rounded multiplication or division); everything else goes through
+     * {@link Double#parseDouble}.
+     */
+    static double decodeFloat(CharSequence raw) {
+        int len = raw.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < len && (raw.charAt(i) == '-' || raw.charAt(i) == '+')) {
+            negative = raw.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < len; i++) {
+            char ch = raw.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                digits++;
+                if (fraction) {
+                    scale--;
+                }
+                if (significant > 0 || ch != '0') {
+                    if (++significant > MAX_EXACT_DIGITS) {
+                        return Double.parseDouble(raw.toString());
+                    }
+                    mantissa = mantissa * 10 + (ch - '0');
+                }
+            } else if (ch == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(raw.toString());
         }
-        String base = matcher.group(1);
-        String fraction = matcher.group(3);
-        if (fraction == null) {
-            return base;
+        if (i < len) {
+            char ch = raw.charAt(i);
+            if (ch != 'e' && ch != 'E') {
+                return Double.parseDouble(raw.toString());
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < len && (raw.charAt(i) == '-' || raw.charAt(i) == '+')) {
+                negativeExponent = raw.charAt(i) == '-';
+                i++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            for (; i < len; i++) {
+                ch = raw.charAt(i);
+                if (ch < '0' || ch > '9' || ++exponentDigits > 3) {
+                    return Double.parseDouble(raw.toString());
+                }
+                exponent = exponent * 10 + (ch - '0');
+            }
+            if (exponentDigits == 0) {
+                return Double.parseDouble(raw.toString());
+            }
+            scale += negativeExponent ? -exponent : exponent;
         }
-        String padded = padFraction(fraction);
-        return base + "." + padded;
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (scale >= 0 && scale < EXACT_POWERS_OF_TEN.length) {
+            value = mantissa * EXACT_POWERS_OF_TEN[scale];
+        } else if (scale < 0 && -scale < EXACT_POWERS_OF_TEN.length) {
+            value = mantissa / EXACT_POWERS_OF_TEN[-scale];
+        } else {
+            return Double.parseDouble(raw.toString());
+        }
+        return negative ? -value : value;
     }
 
-    static String normalizeDateTimeLiteral(String value) {
-        String normalized = value.trim();
-        int spaceIdx = normalized.indexOf(' ');
-        if (spaceIdx >= 0) {
-            normalized = normalized.substring(0, spaceIdx) + "T" + normalized.substring(spaceIdx + 1);
+    /**
+     * The text of a span over the bytes of a non-ASCII mapped file, which would
+     * otherwise be copied one byte per char; other sequences are used in place.
+     */
+    private static CharSequence decoded(CharSequence value) {
+        return value instanceof SourceSpan && ((SourceSpan) value).isEncoded() ? value.toString() : value;
+    }
+
+    /**
+     * Normalize a time literal to {@code HH:MM:SS[.ffffff]} in a single pass.
+     * Anything that is not of that shape is returned trimmed but otherwise as is.
+     */
+    static String normalizeTimeLiteral(CharSequence value) {
+        value = decoded(value);
+        int start = trimStart(value);
+        int end = trimEnd(value, start);
+        int len = end - start;
+        boolean isTime = len >= 8
+            && isDigits(value, start, start + 2) && value.charAt(start + 2) == ':'
+            && isDigits(value, start + 3, start + 5) && value.charAt(start + 5) == ':'
+            && isDigits(value, start + 6, start + 8)
+            && (len == 8 || (len > 9 && value.charAt(start + 8) == '.' && isDigits(value, start + 9, end)));
+        if (!isTime || len == 8 || len == 9 + FRACTION_DIGITS) {
+            return value.subSequence(start, end).toString();
         }
+        StringBuilder builder = new StringBuilder(9 + FRACTION_DIGITS);
+        builder.append(value, start, start + 9);
+        appendFraction(builder, value, start + 9, end);
+        return builder.toString();
+    }
+
+    /**
+     * Normalize a datetime literal in a single pass: the first space becomes
+     * {@code T}, a trailing {@code Z} becomes {@code +00:00} and a fractional second
+     * is padded or cut to six digits.
+     */
+    static String normalizeDateTimeLiteral(CharSequence value) {
+        value = decoded(value);
+        int start = trimStart(value);
+        int end = trimEnd(value, start);
 
-        String tz = "";
-        if (normalized.endsWith("Z")) {
-            tz = "+00:00";
-            normalized = normalized.substring(0, normalized.length() - 1);
+        String zulu = null;
+        int offsetStart = -1;
+        int offsetEnd = -1;
+        int bodyEnd = end;
+        if (end > start && value.charAt(end - 1) == 'Z') {
+            zulu = "+00:00";
+            bodyEnd = end - 1;
         } else {
-            Matcher tzMatcher = Pattern.compile("([+-]\\d{2}:\\d{2})$").matcher(normalized);
-            if (tzMatcher.find()) {
-                tz = tzMatcher.group(1);
-                normalized = normalized.substring(0, normalized.length() - tz.length());
+            // same positions as "([+-]\d{2}:\d{2})$", where $ may also sit before a final line separator
+            int stop = end > start && isLineSeparator(value.charAt(end - 1)) ? end - 1 : end;
+            int candidate = stop - 6;
+            if (candidate >= start && (value.charAt(candidate) == '+' || value.charAt(candidate) == '-')
+                    && isDigits(value, candidate + 1, candidate + 3) && value.charAt(candidate + 3) == ':'
+                    && isDigits(value, candidate + 4, stop)) {
+                offsetStart = candidate;
+                offsetEnd = stop;
+                bodyEnd = end - 6;
             }
         }
 
-        int dotIndex = normalized.lastIndexOf('.');
-        if (dotIndex >= 0) {
-            String fraction = normalized.substring(dotIndex + 1);
-            if (fraction.matches("\\d+")) {
-                String padded = padFraction(fraction);
-                normalized = normalized.substring(0, dotIndex) + "." + padded;
+        int dot = -1;
+        for (int i = bodyEnd - 1; i >= start; i--) {
+            if (value.charAt(i) == '.') {
+                dot = i;
+                break;
             }
         }
+        boolean padFraction = dot >= 0 && dot + 1 < bodyEnd && isDigits(value, dot + 1, bodyEnd);
 
-        return normalized + tz;
+        StringBuilder builder = new StringBuilder(end - start + 6);
+        int copyEnd = padFraction ? dot + 1 : bodyEnd;
+        boolean spaceReplaced = false;
+        for (int i = start; i < copyEnd; i++) {
+            char ch = value.charAt(i);
+            if (ch == ' ' && !spaceReplaced) {
+                ch = 'T';
+                spaceReplaced = true;
+            }
+            builder.append(ch);
+        }
+        if (padFraction) {
+            appendFraction(builder, value, dot + 1, bodyEnd);
+        }
+        if (zulu != null) {
+            builder.append(zulu);
+        } else if (offsetStart >= 0) {
+            builder.append(value, offsetStart, offsetEnd);
+        }
+        return builder.toString();
     }
 
-    private static String padFraction(String fraction) {
-        if (fraction.length() >= 6) {
-            return fraction.substring(0, 6);
-        }
-        StringBuilder builder = new StringBuilder(fraction);
-        while (builder.length() < 6) {
+    private static void appendFraction(StringBuilder builder, CharSequence value, int start, int end) {
+        int count = Math.min(end - start, FRACTION_DIGITS);
+        builder.append(value, start, start + count);
+        for (int i = count; i < FRACTION_DIGITS; i++) {
             builder.append('0');
         }
-        return builder.toString();
+    }
+
+    private static boolean isDigits(CharSequence value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char ch = value.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLineSeparator(char ch) {
+        return ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+
+    /** Same boundaries as {@link String#trim()} */
+    private static int trimStart(CharSequence value) {
+        int start = 0;
+        while (start < value.length() && value.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(CharSequence value, int start) {
+        int end = value.length();
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
     }
 }
@@ -1,14 +1,11 @@
 package io.typedconfig.tyco;
 
 import java.math.BigDecimal;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Represents primitive values (str/int/bool/...) with template interpolation.
@@ -16,12 +13,11 @@ import java.util.regex.Pattern;
 public class TycoValue implements TycoAttribute {
 
     private static final Set<String> BASE_TYPES = Set.of("str", "int", "bool", "float", "decimal", "date", "time", "datetime");
-    private static final Pattern TEMPLATE_REGEX = Pattern.compile("\\{([\\w\\.]+)\\}");
     private static final Object UNRENDERED = new Object();
 
     private final TycoContext context;
-    private final String content;
-    private SourceLocation location;
+    private final CharSequence content;
+    private long position;
 
     private String typeName;
     private String attrName;
@@ -30,42 +26,67 @@ public class TycoValue implements TycoAttribute {
     private Object parent;
     private boolean isLiteralStr;
     private Object rendered = UNRENDERED;
+    // compiled from the text before templates, shared with copies
+    private TemplateProgram program;
+    // a struct default that instances use as is (see TycoStruct#resolveDefault)
+    private boolean shared;
 
-    public TycoValue(TycoContext context, String content) {
+    public TycoValue(TycoContext context, CharSequence content) {
         this.context = context;
         this.content = content;
     }
 
     @Override
     public TycoAttribute makeCopy() {
+        TycoValue copy = copyInto(context, 0);
+        copy.program = program();
+        return copy;
+    }
+
+    /**
+     * Copy for another context whose source files were adopted at {@code fileOffset}
+     * (see {@link SourcePositions#adopt}).
+     */
+    TycoValue copyInto(TycoContext context, int fileOffset) {
         TycoValue copy = new TycoValue(context, content);
         copy.typeName = this.typeName;
         copy.attrName = this.attrName;
         copy.isNullable = this.isNullable;
         copy.isArray = this.isArray;
         copy.isLiteralStr = this.isLiteralStr;
+        copy.program = this.program;
         if (this.rendered != UNRENDERED) {
             copy.rendered = this.rendered;
         }
-        copy.location = this.location;
+        copy.position = SourcePositions.relocate(this.position, fileOffset);
         return copy;
     }
 
     @Override
     public void setLocation(SourceLocation location) {
-        this.location = location;
+        this.position = context.getSourcePositions().pack(location);
     }
 
     @Override
     public SourceLocation getLocation() {
-        return location;
+        return context.getSourcePositions().resolve(position);
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void setPosition(long position) {
+        this.position = position;
     }
 
     @Override
     public void applySchemaInfo(String typeName, String attrName, Boolean isNullable, Boolean isArray) {
         if (typeName != null) {
             if (!BASE_TYPES.contains(typeName) && !"null".equals(typeName)) {
-                throw new TycoParseException(typeName + " expected for " + content + ", likely needs " + typeName + "(" + content + ")", location);
+                throw new TycoParseException(typeName + " expected for " + content + ", likely needs " + typeName + "(" + content + ")", getLocation());
             }
             this.typeName = typeName;
         }
@@ -79,8 +100,8 @@ public class TycoValue implements TycoAttribute {
             this.isArray = isArray;
         }
 
-        if (Boolean.TRUE.equals(this.isArray) && !(Boolean.TRUE.equals(this.isNullable) && "null".equals(content))) {
-            throw new TycoParseException("Array expected for " + parent + "." + attrName + ": " + this, location);
+        if (Boolean.TRUE.equals(this.isArray) && !(Boolean.TRUE.equals(this.isNullable) && "null".contentEquals(content))) {
+            throw new TycoParseException("Array expected for " + parent + "." + attrName + ": " + this, getLocation());
         }
     }
 
@@ -102,78 +123,76 @@ public class TycoValue implements TycoAttribute {
     @Override
     public void renderBaseContent() {
         if (typeName == null || attrName == null) {
-            throw new TycoParseException("Attributes not set for " + attrName + ": " + this, location);
+            throw new TycoParseException("Attributes not set for " + attrName + ": " + this, getLocation());
         }
 
-        String raw = this.content;
+        CharSequence raw = this.content;
         Object baseRendered;
 
-        if (Boolean.TRUE.equals(isNullable) && "null".equals(raw)) {
+        if (Boolean.TRUE.equals(isNullable) && "null".contentEquals(raw)) {
             baseRendered = null;
         } else if ("str".equals(typeName)) {
-            isLiteralStr = raw.startsWith("'");
-            String text = raw;
-            if (raw.startsWith("'''") || raw.startsWith("\"\"\"")) {
-                text = raw.substring(3, raw.length() - 3);
-                if (text.startsWith("\n")) {
-                    text = text.substring(1);
-                }
-            } else if (raw.startsWith("'") || raw.startsWith("\"")) {
-                text = raw.substring(1, raw.length() - 1);
-            }
-            baseRendered = text;
+            String text = raw.toString();
+            isLiteralStr = text.startsWith("'");
+            baseRendered = unquote(text);
         } else if ("int".equals(typeName)) {
-            String digits = raw;
-            int sign = 1;
-            if (digits.startsWith("-")) {
-                sign = -1;
-                digits = digits.substring(1);
-            } else if (digits.startsWith("+")) {
-                digits = digits.substring(1);
-            }
-            int base = 10;
-            if (digits.startsWith("0x") || digits.startsWith("0X")) {
-                base = 16;
-                digits = digits.substring(2);
-            } else if (digits.startsWith("0o") || digits.startsWith("0O")) {
-                base = 8;
-                digits = digits.substring(2);
-            } else if (digits.startsWith("0b") || digits.startsWith("0B")) {
-                base = 2;
-                digits = digits.substring(2);
-            }
-            long parsed = Long.parseLong(digits, base);
-            long value = sign * parsed;
+            long value = TycoUtils.decodeInt(raw);
             if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
                 baseRendered = (int) value;
             } else {
                 baseRendered = value;
             }
         } else if ("float".equals(typeName)) {
-            baseRendered = Double.parseDouble(raw);
+            baseRendered = TycoUtils.decodeFloat(raw);
         } else if ("decimal".equals(typeName)) {
-            baseRendered = new BigDecimal(raw);
+            baseRendered = new BigDecimal(raw.toString());
         } else if ("bool".equals(typeName)) {
-            if ("true".equals(raw)) {
+            if ("true".contentEquals(raw)) {
                 baseRendered = Boolean.TRUE;
-            } else if ("false".equals(raw)) {
+            } else if ("false".contentEquals(raw)) {
                 baseRendered = Boolean.FALSE;
             } else {
-                throw new TycoParseException("Boolean " + attrName + " for " + parent + " not in (true, false): " + raw, location);
+                throw new TycoParseException("Boolean " + attrName + " for " + parent + " not in (true, false): " + raw, getLocation());
             }
         } else if ("date".equals(typeName)) {
-            baseRendered = raw;
+            baseRendered = raw.toString();
         } else if ("time".equals(typeName)) {
             baseRendered = TycoUtils.normalizeTimeLiteral(raw);
         } else if ("datetime".equals(typeName)) {
             baseRendered = TycoUtils.normalizeDateTimeLiteral(raw);
         } else {
-            throw new TycoParseException("Unknown type: " + typeName, location);
+            throw new TycoParseException("Unknown type: " + typeName, getLocation());
         }
 
+        this.rendered = context.intern(baseRendered);
+    }
+
+    /** The value as written, before rendering */
+    CharSequence content() {
+        return content;
+    }
+
+    /**
+     * Take the result of rendering the base content of an equal value, see
+     * {@link ReferenceMemo}
+     */
+    void renderAs(Object baseRendered) {
+        isLiteralStr = "str".equals(typeName) && content.length() > 0 && content.charAt(0) == '\'';
         this.rendered = baseRendered;
     }
 
+    private static String unquote(String text) {
+        if (text.startsWith("'''") || text.startsWith("\"\"\"")) {
+            text = text.substring(3, text.length() - 3);
+            if (text.startsWith("\n")) {
+                text = text.substring(1);
+            }
+        } else if (text.startsWith("'") || text.startsWith("\"")) {
+            text = text.substring(1, text.length() - 1);
+        }
+        return text;
+    }
+
     @Override
     public void renderReferences() {
         // primitives do not reference other objects
@@ -185,79 +204,176 @@ public class TycoValue implements TycoAttribute {
             return;
         }
 
-        String renderedStr = String.valueOf(rendered);
-        Matcher matcher = TEMPLATE_REGEX.matcher(renderedStr);
-        StringBuffer buffer = new StringBuffer();
-
-        while (matcher.find()) {
-            String templateVar = matcher.group(1);
-            Object obj = parent;
-
-            if (templateVar.startsWith("..")) {
-                templateVar = templateVar.substring(1);
-                while (templateVar.startsWith(".")) {
-                    if (obj instanceof TycoInstance) {
-                        obj = ((TycoInstance) obj).parent;
-                    } else {
-                        obj = null;
-                    }
-                    if (obj == null) {
-                        throw new TycoParseException("Traversing parents hit base instance", location);
-                    }
-                    templateVar = templateVar.substring(1);
-                }
-            }
-
-            String[] parts = templateVar.split("\\.");
-            if (parts.length == 0) {
-                throw new TycoParseException("Empty template content", location);
-            }
-            Deque<String> queue = new ArrayDeque<>();
-            for (String part : parts) {
-                if (!part.isEmpty()) {
-                    queue.addLast(part);
-                }
-            }
-            if (queue.isEmpty()) {
-                throw new TycoParseException("Empty template content", location);
-            }
-            String firstSegment = queue.peekFirst();
-            while (!queue.isEmpty()) {
-                String attr = queue.peekFirst();
-                Object next = tryGetAttribute(obj, attr);
-                if (next != null) {
-                    obj = next;
-                    queue.removeFirst();
-                    continue;
-                }
-                if (queue.size() > 1) {
-                    String merged = queue.removeFirst() + "." + queue.removeFirst();
-                    queue.addFirst(merged);
-                    continue;
-                }
-                if ("global".equals(attr) && Objects.equals(firstSegment, "global")) {
-                    obj = context.getGlobals();
-                    queue.removeFirst();
-                    continue;
-                }
-                throw new TycoParseException("Cannot access attribute " + attr + " on " + obj, location);
-            }
+        TemplateProgram program = program();
+        if (!program.isTemplate()) {
+            return;
+        }
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < program.size(); i++) {
+            buffer.append(program.literal(i));
+            Object obj = resolveTemplate(program.placeholder(i), null).target;
 
             String replacement;
             if (obj instanceof TycoAttribute) {
                 Object attrRendered = ((TycoAttribute) obj).getRendered();
                 if (!(attrRendered instanceof String || attrRendered instanceof Number)) {
-                    throw new TycoParseException("Can not templatize objects other than strings or ints: " + obj + " (" + this + ")", location);
+                    throw new TycoParseException("Can not templatize objects other than strings or ints: " + obj + " (" + this + ")", getLocation());
                 }
                 replacement = String.valueOf(attrRendered);
             } else {
                 replacement = String.valueOf(obj);
             }
-            matcher.appendReplacement(buffer, Matcher.quoteReplacement(replacement));
+            buffer.append(replacement);
+        }
+        buffer.append(program.literal(program.size()));
+
+        String text = buffer.toString();
+        this.rendered = context.intern(text.indexOf('\\') >= 0 ? TycoUtils.subEscapeSequences(text) : text);
+    }
+
+    /**
+     * The templates of the text before template rendering; compiled on first use
+     */
+    private TemplateProgram program() {
+        if (program == null) {
+            program = TemplateProgram.compile(unquote(content.toString()));
+        }
+        return program;
+    }
+
+    /**
+     * Whether rendering the templates of this value reads a value of another
+     * instance (through a reference) that template rendering itself may still
+     * change, or that cannot be resolved. The result then depends on the order in
+     * which instances are rendered.
+     */
+    boolean hasOrderDependentTemplates() {
+        if (!"str".equals(typeName) || isLiteralStr || rendered == null) {
+            return false;
+        }
+        TemplateProgram program = program();
+        for (int i = 0; i < program.size(); i++) {
+            TemplateTarget target;
+            try {
+                target = resolveTemplate(program.placeholder(i), null);
+            } catch (TycoParseException e) {
+                return true;
+            }
+            if (target.viaReference && (!(target.target instanceof TycoValue) || ((TycoValue) target.target).changesWithTemplates())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether {@link #renderTemplates()} can change the rendered value */
+    private boolean changesWithTemplates() {
+        if (!"str".equals(typeName) || isLiteralStr || rendered == null) {
+            return false;
+        }
+        String text = String.valueOf(rendered);
+        return text.indexOf('{') >= 0 || text.indexOf('\\') >= 0;
+    }
+
+    /**
+     * Whether {@link #renderTemplates()} changes this value once base content is
+     * rendered, judged by its text before templates are substituted
+     */
+    boolean hasTemplates() {
+        if (!"str".equals(typeName) || isLiteralStr || rendered == null) {
+            return false;
+        }
+        return program().isTemplate();
+    }
+
+    /**
+     * Everything the templates of this value read: each attribute (or reference)
+     * along the template paths, and the globals table for {@code {global}}.
+     */
+    List<Object> templateReads() {
+        if (!hasTemplates()) {
+            return List.of();
+        }
+        List<Object> reads = new ArrayList<>();
+        TemplateProgram program = program();
+        for (int i = 0; i < program.size(); i++) {
+            resolveTemplate(program.placeholder(i), reads);
+        }
+        return reads;
+    }
+
+    /** Whether this value renders the same for every parent: it has no templates */
+    boolean isConstant() {
+        return !program().isTemplate();
+    }
+
+    boolean isShared() {
+        return shared;
+    }
+
+    void share() {
+        shared = true;
+    }
+
+    boolean isBaseRendered() {
+        return rendered != UNRENDERED;
+    }
+
+    /** Apply the schema info of this value to one replacing it */
+    void applySchemaInfoTo(TycoAttribute replacement) {
+        replacement.applySchemaInfo(typeName, attrName, isNullable, isArray);
+    }
+
+    private TemplateTarget resolveTemplate(TemplateProgram.Placeholder placeholder, List<Object> reads) {
+        Object obj = parent;
+        boolean viaReference = false;
+
+        for (int i = 0; i < placeholder.parents; i++) {
+            if (obj instanceof TycoInstance) {
+                obj = ((TycoInstance) obj).parent;
+            } else {
+                obj = null;
+            }
+            if (obj == null) {
+                throw new TycoParseException("Traversing parents hit base instance", getLocation());
+            }
         }
 
-        matcher.appendTail(buffer);
-        this.rendered = TycoUtils.subEscapeSequences(buffer.toString());
+        String[] path = placeholder.path;
+        if (path.length == 0) {
+            throw new TycoParseException("Empty template content", getLocation());
+        }
+        // a segment that is not found is retried merged with the next one
+        int next = 0;
+        String attr = path[next++];
+        while (true) {
+            viaReference |= obj instanceof TycoReference;
+            Object found = tryGetAttribute(obj, attr);
+            if (found != null) {
+                obj = found;
+                if (reads != null) {
+                    reads.add(found);
+                }
+                if (next == path.length) {
+                    break;
+                }
+                attr = path[next++];
+                continue;
+            }
+            if (next < path.length) {
+                attr = attr + "." + path[next++];
+                continue;
+            }
+            if ("global".equals(attr) && path[0].equals("global")) {
+                obj = context.getGlobals();
+                if (reads != null) {
+                    reads.add(obj);
+                }
+                break;
+            }
+            throw new TycoParseException("Cannot access attribute " + attr + " on " + obj, getLocation());
+        }
+        return new TemplateTarget(obj, viaReference);
     }
 
     private Object tryGetAttribute(Object target, String attr) {
@@ -301,8 +417,23 @@ public class TycoValue implements TycoAttribute {
         return value;
     }
 
+    /** How {@link #toString()} reads before base content is rendered */
+    String toUnrenderedString() {
+        return "TycoValue(" + typeName + ", " + content + ")";
+    }
+
     @Override
     public String toString() {
         return "TycoValue(" + typeName + ", " + content + (rendered == UNRENDERED ? "" : ", " + rendered) + ")";
     }
+
+    private static final class TemplateTarget {
+        final Object target;
+        final boolean viaReference;
+
+        TemplateTarget(Object target, boolean viaReference) {
+            this.target = target;
+            this.viaReference = viaReference;
+        }
+    }
 }
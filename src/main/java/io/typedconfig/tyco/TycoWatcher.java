@@ -0,0 +1,368 @@
+package io.typedconfig.tyco;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a loaded Tyco file or directory up to date while its files change.
+ *
+ * <p>Every file is lexed on its own against the struct schemas of the files
+ * before it, and the result is kept. When files change, only the files that are or
+ * include a changed file, or whose structs the earlier files now define
+ * differently, are lexed again; the others are copied into the new context from
+ * what was kept, with the rows they add to structs of other files. The context is
+ * then rendered and published as a new snapshot, which {@link #get()} returns from
+ * then on. Changes that arrive within {@link #setDebounceMillis debounce} of each
+ * other are handled as one reload, up to ten debounce periods after the first one.
+ * Only changes to .tyco files and to files that were read count, so a busy log
+ * file next to a config is ignored. When a reload fails, the previous snapshot stays current and the error goes to
+ * the error handler.
+ */
+public final class TycoWatcher implements AutoCloseable {
+    // longest wait for changes to settle, in debounce periods from the first change
+    private static final int MAX_DEBOUNCE_PERIODS = 10;
+
+    private final String path;
+    private final TycoParserOptions options;
+    private final TycoParserOptions lexOptions;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Map<String, ForkedContext> lexedFiles = new HashMap<>();
+    // the watched file, or the watched directory with isDirectory
+    private final Path root;
+    private final boolean isDirectory;
+    // every file read by the last rebuild, see isRelevant
+    private volatile Set<Path> readPaths = Set.of();
+    private final List<Consumer<Map<String, Object>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Consumer<RuntimeException> errorHandler = e -> { };
+    private volatile Map<String, Object> snapshot;
+    private volatile long debounceMillis = 100;
+    private volatile boolean closed;
+    private Thread thread;
+    // files of the last rebuild that were copied from what was kept, or read again
+    private int reusedCount;
+    private int lexedCount;
+
+    public TycoWatcher(String path) {
+        this(path, new TycoParserOptions());
+    }
+
+    /**
+     * Load {@code path} and watch it; call {@link #start()} to begin reloading.
+     *
+     * @param path path to a .tyco file or directory containing .tyco files
+     * @param options parser options
+     */
+    public TycoWatcher(String path, TycoParserOptions options) {
+        this.path = path;
+        this.options = options;
+        // kept files are read onto the heap, so no mapping outlives a change
+        this.lexOptions = options.copy();
+        this.lexOptions.setMemoryMapped(false);
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new TycoParseException("Cannot watch path: " + path, e);
+        }
+        this.root = Path.of(path).toAbsolutePath().normalize();
+        this.isDirectory = Files.isDirectory(root);
+        try {
+            register(isDirectory ? root : root.getParent(), isDirectory);
+            rebuild();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * The current content, as returned by {@link TycoParser#load(String, TycoParserOptions)}.
+     */
+    public Map<String, Object> get() {
+        return snapshot;
+    }
+
+    /**
+     * Number of files the last reload copied from what earlier ones kept.
+     */
+    public synchronized int getReusedFiles() {
+        return reusedCount;
+    }
+
+    /**
+     * Number of files the last reload read and lexed again.
+     */
+    public synchronized int getLexedFiles() {
+        return lexedCount;
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    /**
+     * How long to wait for further changes before reloading.
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Called with every new snapshot, on the watcher thread.
+     */
+    public void addListener(Consumer<Map<String, Object>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Called, on the watcher thread, when a reload fails.
+     */
+    public void setErrorHandler(Consumer<RuntimeException> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Start reloading on changes, on a daemon thread.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::watch, "tyco-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Lex all files again and publish the result, whether or not they changed.
+     */
+    public synchronized void reload() {
+        lexedFiles.clear();
+        rebuild();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    private synchronized void rebuild() {
+        Map<String, ForkedContext> previous = new HashMap<>(lexedFiles);
+        lexedFiles.clear();
+        reusedCount = 0;
+        lexedCount = 0;
+        TycoContext context = new TycoContext(options);
+        for (String filePath : TycoParser.listPaths(path)) {
+            ForkedContext lexed = previous.get(filePath);
+            // a result that failed is left to the fallback below, one lexed against
+            // structs that earlier files now define differently is lexed again
+            boolean reused = lexed != null && (lexed.isFailed() || !lexed.dependsOnStructsOf(context));
+            if (!reused) {
+                lexed = lex(filePath, context);
+            }
+            lexedFiles.put(filePath, lexed);
+            if (lexed.canBeAdoptedBy(context)) {
+                context.adopt(lexed);
+            } else {
+                TycoLexer.fromPath(context, filePath);
+                reused = false;
+            }
+            if (reused) {
+                reusedCount++;
+            } else {
+                lexedCount++;
+            }
+        }
+        context.renderContent();
+        Map<String, Object> loaded = context.toObject();
+        snapshot = loaded;
+        Set<Path> read = new HashSet<>();
+        for (ForkedContext lexed : lexedFiles.values()) {
+            watchIncludes(lexed);
+            for (String filePath : lexed.getCachedPaths()) {
+                read.add(Path.of(filePath).toAbsolutePath().normalize());
+            }
+        }
+        readPaths = read;
+        for (Consumer<Map<String, Object>> listener : listeners) {
+            listener.accept(loaded);
+        }
+    }
+
+    /**
+     * Lex a file on its own against the struct schemas {@code context} has so far
+     */
+    private ForkedContext lex(String filePath, TycoContext context) {
+        ForkedContext lexed = new ForkedContext(new TycoContext(lexOptions));
+        lexed.borrowSchemas(context.structs());
+        try {
+            TycoLexer lexer = TycoLexer.open(lexed, filePath);
+            lexer.process();
+            lexed.cacheLexer(filePath, lexer);
+        } catch (RuntimeException e) {
+            lexed.fail(e);
+        }
+        return lexed;
+    }
+
+    private void watch() {
+        while (!closed) {
+            try {
+                Set<Path> changed = new HashSet<>();
+                while (!collect(watchService.take(), changed)) {
+                    // nothing that was read or could be read changed
+                }
+                long now = System.nanoTime();
+                long debounce = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+                long deadline = now + MAX_DEBOUNCE_PERIODS * debounce;
+                long quietUntil = now + debounce;
+                while (true) {
+                    long wait = Math.min(quietUntil, deadline) - System.nanoTime();
+                    WatchKey key = wait > 0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (key == null) {
+                        break;
+                    }
+                    if (collect(key, changed)) {
+                        quietUntil = System.nanoTime() + debounce;
+                    }
+                }
+                synchronized (this) {
+                    forget(changed);
+                    rebuild();
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                errorHandler.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Add the relevant paths of the events of {@code key} to {@code changed}; null
+     * stands for lost events. Returns whether there was any.
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        Path dir;
+        synchronized (this) {
+            dir = watchedDirs.get(key);
+        }
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                changed.add(null);
+                relevant = true;
+                continue;
+            }
+            Path changedPath = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isDirectory
+                && changedPath.startsWith(root) && Files.isDirectory(changedPath)) {
+                synchronized (this) {
+                    register(changedPath, true);
+                }
+                if (hasTycoFiles(changedPath)) {
+                    changed.add(changedPath);
+                    relevant = true;
+                }
+            } else if (isRelevant(changedPath)) {
+                changed.add(changedPath);
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    /**
+     * Whether a change of {@code changedPath} can change the content: it was read
+     * (a loaded file or an include), or it is a .tyco file a load would read
+     */
+    private boolean isRelevant(Path changedPath) {
+        if (readPaths.contains(changedPath)) {
+            return true;
+        }
+        if (isDirectory) {
+            return changedPath.startsWith(root) && changedPath.getFileName().toString().endsWith(".tyco");
+        }
+        return changedPath.equals(root);
+    }
+
+    private static boolean hasTycoFiles(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.anyMatch(file -> file.getFileName().toString().endsWith(".tyco"));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Drop the kept files that failed to lex, or that are or include one of the
+     * changed paths; null stands for lost events and drops everything.
+     */
+    private void forget(Set<Path> changed) {
+        if (changed.contains(null)) {
+            lexedFiles.clear();
+            return;
+        }
+        lexedFiles.values().removeIf(lexed -> {
+            if (lexed.isFailed()) {
+                return true;
+            }
+            for (String filePath : lexed.getCachedPaths()) {
+                if (changed.contains(Path.of(filePath).toAbsolutePath().normalize())) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private void watchIncludes(ForkedContext lexed) {
+        for (String filePath : lexed.getCachedPaths()) {
+            Path parent = Path.of(filePath).toAbsolutePath().normalize().getParent();
+            if (parent != null && !watchedDirs.containsValue(parent)) {
+                register(parent, false);
+            }
+        }
+    }
+
+    private void register(Path dir, boolean recursive) {
+        try {
+            if (recursive) {
+                try (Stream<Path> dirs = Files.walk(dir)) {
+                    for (Path sub : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                        register(sub, false);
+                    }
+                }
+                return;
+            }
+            if (!watchedDirs.containsValue(dir)) {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.put(key, dir);
+            }
+        } catch (IOException e) {
+            throw new TycoParseException("Cannot watch path: " + dir, e);
+        }
+    }
+}
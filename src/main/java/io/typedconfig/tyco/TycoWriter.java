@@ -0,0 +1,648 @@
+package io.typedconfig.tyco;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Tyco source as a stream: globals, struct schemas and instance rows, e.g.
+ * <pre>{@code
+ * try (TycoWriter out = new TycoWriter(writer)) {
+ *     out.global("env", "str", "prod");
+ *     out.struct("Host")
+ *        .attribute("name", "str", true, false, false)
+ *        .attribute("cores", "int", false, false, false, 4);
+ *     out.instance("alpha", 8);
+ *     out.struct("Port")
+ *        .attribute("id", "int", true, false, false)
+ *        .attribute("host", "Host", false, false, false);
+ *     out.instance(80, TycoWriter.reference("Host", "alpha"));
+ * }
+ * }</pre>
+ * Values are written for the type of their attribute, so that
+ * {@link TycoParser#load} reads them back as they were given: strings are quoted
+ * and escaped only as needed and never become templates, floats keep every digit.
+ * Instance rows are positional unless given as a map of keyword values.
+ *
+ * <p>Text goes through a fixed buffer; only the attribute types of the structs
+ * written so far are kept, so memory does not grow with the number of instances.
+ */
+public final class TycoWriter implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer writer;
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer bytes;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+
+    // attribute types of the structs written, in declaration order
+    private final Map<String, Map<String, String>> structs = new HashMap<>();
+    private Map<String, String> currentTypes;
+    private Map<String, Boolean> currentNullables;
+    private boolean hasInstances;
+    private boolean empty = true;
+
+    /**
+     * Writer on {@code writer}, which is closed with this writer
+     */
+    public TycoWriter(Writer writer) {
+        this.writer = writer;
+        this.channel = null;
+        this.encoder = null;
+        this.bytes = null;
+    }
+
+    /**
+     * Writer of UTF-8 to {@code channel}, which is closed with this writer
+     */
+    public TycoWriter(WritableByteChannel channel) {
+        this.writer = null;
+        this.channel = channel;
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate(3 * BUFFER_SIZE);
+    }
+
+    /**
+     * Writer of UTF-8 to {@code stream}, which is closed with this writer
+     */
+    public TycoWriter(OutputStream stream) {
+        this(Channels.newChannel(stream));
+    }
+
+    /**
+     * Reference to an instance by its primary key values, or an inline instance of a
+     * struct without primary keys, by its positional values: {@code Type(args)}
+     */
+    public static Call reference(String typeName, Object... args) {
+        return new Call(typeName, List.of(args));
+    }
+
+    /**
+     * A {@code Type(args)} value, see {@link #reference}
+     */
+    public static final class Call {
+        private final String typeName;
+        private final List<Object> args;
+
+        private Call(String typeName, List<Object> args) {
+            checkName(typeName);
+            this.typeName = typeName;
+            this.args = args;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public List<Object> getArgs() {
+            return args;
+        }
+
+        @Override
+        public String toString() {
+            return typeName + args;
+        }
+    }
+
+    /**
+     * Write a global, e.g. {@code global("ports", "int", List.of(80, 443))}; a
+     * collection or array value makes it an array, a null value makes it nullable
+     */
+    public TycoWriter global(String attrName, String typeName, Object value) throws IOException {
+        return global(attrName, typeName, value == null, isArrayValue(value), value);
+    }
+
+    /**
+     * Write a global with its schema info given
+     */
+    public TycoWriter global(String attrName, String typeName, boolean isNullable, boolean isArray, Object value) throws IOException {
+        checkName(attrName);
+        checkName(typeName);
+        if (currentTypes != null) {
+            // a global ends the struct block
+            currentTypes = null;
+            currentNullables = null;
+            newLine();
+        }
+        empty = false;
+        if (isNullable) {
+            append('?');
+        }
+        append(typeName);
+        if (isArray) {
+            append("[]");
+        }
+        append(' ');
+        append(attrName);
+        append(": ");
+        writeAttrValue(attrName, typeName, isNullable, isArray, value);
+        newLine();
+        return this;
+    }
+
+    /**
+     * Start the block of a struct; its attributes follow, then its instances
+     */
+    public TycoWriter struct(String typeName) throws IOException {
+        checkName(typeName);
+        if (structs.containsKey(typeName)) {
+            throw new IllegalStateException("Struct already written: " + typeName);
+        }
+        if (!empty) {
+            newLine();
+        }
+        empty = false;
+        currentTypes = new LinkedHashMap<>();
+        currentNullables = new HashMap<>();
+        structs.put(typeName, currentTypes);
+        hasInstances = false;
+        append(typeName);
+        append(':');
+        newLine();
+        return this;
+    }
+
+    /**
+     * Declare an attribute of the current struct, with the arguments of
+     * {@link TycoStruct#addAttribute}; a primary key is never nullable
+     */
+    public TycoWriter attribute(String attrName, String typeName, boolean isPrimary, boolean isNullable, boolean isArray) throws IOException {
+        writeSchema(attrName, typeName, isPrimary, isNullable, isArray);
+        newLine();
+        return this;
+    }
+
+    /**
+     * Declare an attribute of the current struct with a default value
+     */
+    public TycoWriter attribute(String attrName, String typeName, boolean isPrimary, boolean isNullable, boolean isArray, Object defaultValue) throws IOException {
+        writeSchema(attrName, typeName, isPrimary, isNullable, isArray);
+        append(' ');
+        writeAttrValue(attrName, typeName, isNullable && !isPrimary, isArray, defaultValue);
+        newLine();
+        return this;
+    }
+
+    private void writeSchema(String attrName, String typeName, boolean isPrimary, boolean isNullable, boolean isArray) throws IOException {
+        checkName(attrName);
+        checkName(typeName);
+        if (currentTypes == null) {
+            throw new IllegalStateException("Attributes must follow struct(): " + attrName);
+        }
+        if (hasInstances) {
+            throw new IllegalStateException("Cannot add schema attributes after instances: " + attrName);
+        }
+        if (currentTypes.containsKey(attrName)) {
+            throw new IllegalArgumentException("Duplicate attribute: " + attrName);
+        }
+        if (isPrimary && isArray) {
+            throw new IllegalArgumentException("Cannot set a primary key on an array: " + attrName);
+        }
+        currentTypes.put(attrName, isArray ? typeName + "[]" : typeName);
+        currentNullables.put(attrName, isNullable && !isPrimary);
+        append(isPrimary ? " *" : isNullable ? "  ?" : "  ");
+        append(typeName);
+        if (isArray) {
+            append("[]");
+        }
+        append(' ');
+        append(attrName);
+        append(':');
+    }
+
+    /**
+     * Write an instance row of the current struct with positional values, in
+     * attribute order; attributes left out take their defaults
+     */
+    public TycoWriter instance(Object... values) throws IOException {
+        List<String> attrNames = beginInstance();
+        if (values.length > attrNames.size()) {
+            throw new IllegalArgumentException("Too many positional values: " + values.length + " for " + attrNames);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                append(", ");
+            }
+            writeField(attrNames.get(i), values[i]);
+        }
+        newLine();
+        return this;
+    }
+
+    /**
+     * Write an instance row of the current struct with keyword values
+     */
+    public TycoWriter instance(Map<String, ?> values) throws IOException {
+        beginInstance();
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (!currentTypes.containsKey(entry.getKey())) {
+                throw new IllegalArgumentException("Unknown attribute: " + entry.getKey());
+            }
+            if (!first) {
+                append(", ");
+            }
+            first = false;
+            append(entry.getKey());
+            append(": ");
+            writeField(entry.getKey(), entry.getValue());
+        }
+        newLine();
+        return this;
+    }
+
+    private List<String> beginInstance() throws IOException {
+        if (currentTypes == null) {
+            throw new IllegalStateException("Instances must follow struct()");
+        }
+        hasInstances = true;
+        append("  - ");
+        return new ArrayList<>(currentTypes.keySet());
+    }
+
+    private void writeField(String attrName, Object value) throws IOException {
+        String typeName = currentTypes.get(attrName);
+        boolean isArray = typeName.endsWith("[]");
+        if (isArray) {
+            typeName = typeName.substring(0, typeName.length() - 2);
+        }
+        writeAttrValue(attrName, typeName, currentNullables.get(attrName), isArray, value);
+    }
+
+    private void writeAttrValue(String attrName, String typeName, boolean isNullable, boolean isArray, Object value) throws IOException {
+        if (value == null) {
+            if (!isNullable) {
+                throw new IllegalArgumentException("Null value for " + attrName + " which is not nullable");
+            }
+            append("null");
+        } else if (isArray) {
+            if (!isArrayValue(value)) {
+                throw new IllegalArgumentException("Expected an array for " + attrName + ": " + value);
+            }
+            writeArray(typeName, value);
+        } else {
+            writeValue(typeName, value);
+        }
+    }
+
+    private void writeArray(String typeName, Object value) throws IOException {
+        append('[');
+        if (value instanceof Collection<?>) {
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    append(", ");
+                }
+                first = false;
+                writeValue(typeName, item);
+            }
+        } else {
+            for (int i = 0; i < Array.getLength(value); i++) {
+                if (i > 0) {
+                    append(", ");
+                }
+                writeValue(typeName, Array.get(value, i));
+            }
+        }
+        append(']');
+    }
+
+    /**
+     * Write a value of the type {@code typeName}, or of the type its class suggests
+     * when {@code typeName} is null
+     */
+    private void writeValue(String typeName, Object value) throws IOException {
+        if (value == null) {
+            append("null");
+            return;
+        }
+        if (typeName == null) {
+            typeName = typeOf(value);
+        }
+        switch (typeName) {
+            case "str":
+                writeString(value.toString());
+                break;
+            case "int":
+                if (!isReadableInteger(value)) {
+                    throw new IllegalArgumentException("Expected an integer in (" + Long.MIN_VALUE + ", " + Long.MAX_VALUE + "]: " + value);
+                }
+                append(value.toString());
+                break;
+            case "float":
+                if (!(value instanceof Number)) {
+                    throw new IllegalArgumentException("Expected a number: " + value);
+                }
+                // toString() gives the shortest text that parses back to the same value
+                append(value instanceof Float || value instanceof Double ? value.toString() : Double.toString(((Number) value).doubleValue()));
+                break;
+            case "decimal":
+                if (!(value instanceof Number)) {
+                    throw new IllegalArgumentException("Expected a number: " + value);
+                }
+                append(value.toString());
+                break;
+            case "bool":
+                if (!(value instanceof Boolean)) {
+                    throw new IllegalArgumentException("Expected a boolean: " + value);
+                }
+                append(value.toString());
+                break;
+            case "date":
+            case "time":
+            case "datetime":
+                writeBare(value.toString());
+                break;
+            default:
+                if (!(value instanceof Call) || !((Call) value).typeName.equals(typeName)) {
+                    throw new IllegalArgumentException("Expected " + typeName + "(...): " + value);
+                }
+                writeCall((Call) value);
+        }
+    }
+
+    /**
+     * True for the integers the parser reads back: those of a {@code long}, except
+     * {@link Long#MIN_VALUE}, whose magnitude is read before the sign
+     */
+    private static boolean isReadableInteger(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return true;
+        }
+        if (value instanceof Long) {
+            return (Long) value != Long.MIN_VALUE;
+        }
+        if (value instanceof BigInteger) {
+            BigInteger integer = (BigInteger) value;
+            return integer.bitLength() < Long.SIZE && integer.longValue() != Long.MIN_VALUE;
+        }
+        return false;
+    }
+
+    private static String typeOf(Object value) {
+        if (value instanceof CharSequence) {
+            return "str";
+        }
+        if (value instanceof Boolean) {
+            return "bool";
+        }
+        if (value instanceof Float || value instanceof Double) {
+            return "float";
+        }
+        if (value instanceof BigDecimal) {
+            return "decimal";
+        }
+        if (value instanceof Number) {
+            return "int";
+        }
+        if (value instanceof Call) {
+            return ((Call) value).typeName;
+        }
+        return "str";
+    }
+
+    private void writeCall(Call call) throws IOException {
+        Map<String, String> types = structs.get(call.typeName);
+        List<String> attrNames = types == null ? null : new ArrayList<>(types.keySet());
+        append(call.typeName);
+        append('(');
+        for (int i = 0; i < call.args.size(); i++) {
+            if (i > 0) {
+                append(", ");
+            }
+            // positional arguments go to the attributes in order, like instance rows
+            String typeName = attrNames != null && i < attrNames.size() ? types.get(attrNames.get(i)) : null;
+            Object arg = call.args.get(i);
+            if (typeName != null && typeName.endsWith("[]")) {
+                writeAttrValue(attrNames.get(i), typeName.substring(0, typeName.length() - 2), true, true, arg);
+            } else {
+                writeValue(typeName, arg);
+            }
+        }
+        append(')');
+    }
+
+    /** Dates and times, which are read unquoted */
+    private void writeBare(String text) throws IOException {
+        if (text.isEmpty()) {
+            throw new IllegalArgumentException("Empty date or time");
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch < 0x20 || ch == ',' || ch == '(' || ch == ')' || ch == '[' || ch == ']' || ch == '#' || ch == '\'' || ch == '"') {
+                throw new IllegalArgumentException("Cannot write date or time: " + text);
+            }
+        }
+        append(text);
+    }
+
+    /**
+     * Write a string so that it renders back as it is: bare when it is a plain
+     * word, else as a literal {@code '...'}, which has no templates or escapes, and
+     * else double quoted with escapes, where backslashes and braces are escaped as
+     * well so that neither escapes nor templates change the text
+     */
+    private void writeString(String text) throws IOException {
+        if (isBare(text)) {
+            append(text);
+            return;
+        }
+        if (isLiteral(text)) {
+            append('\'');
+            append(text);
+            append('\'');
+            return;
+        }
+        if (hasLineContinuation(text)) {
+            throw new IllegalArgumentException("Cannot write a backslash before a line break: " + text);
+        }
+        append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '"': append("\\\""); break;
+                case '\\': append("\\u005c"); break;
+                case '{': append("\\u007b"); break;
+                case '\b': append("\\b"); break;
+                case '\t': append("\\t"); break;
+                case '\n': append("\\n"); break;
+                case '\f': append("\\f"); break;
+                case '\r': append("\\r"); break;
+                default:
+                    if (ch < 0x20 || ch == 0x7f) {
+                        append("\\u00");
+                        append(HEX[ch >> 4]);
+                        append(HEX[ch & 0xf]);
+                    } else {
+                        append(ch);
+                    }
+            }
+        }
+        append('"');
+    }
+
+    /** A word read back unquoted: no delimiters, comments, templates, escapes or null */
+    private static boolean isBare(String text) {
+        if (text.isEmpty() || "null".equals(text)) {
+            return false;
+        }
+        char first = text.charAt(0);
+        if (!(first >= 'a' && first <= 'z' || first >= 'A' && first <= 'Z' || first >= '0' && first <= '9' || first == '_')) {
+            return false;
+        }
+        for (int i = 1; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (!(ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9'
+                || ch == '_' || ch == '-' || ch == '.' || ch == '/' || ch == '@' || ch == '+')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Fits in a single line {@code '...'}: no quote and no control character but tab */
+    private static boolean isLiteral(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch == '\'' || (ch < 0x20 && ch != '\t') || ch == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether a backslash is followed by a line break, which rendering removes */
+    private static boolean hasLineContinuation(String text) {
+        for (int i = text.indexOf('\\'); i >= 0; i = text.indexOf('\\', i + 1)) {
+            int j = i + 1;
+            while (j < text.length() && Character.isWhitespace(text.charAt(j)) && text.charAt(j) != '\n') {
+                j++;
+            }
+            if (j < text.length() && text.charAt(j) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isArrayValue(Object value) {
+        return value instanceof Collection<?> || (value != null && value.getClass().isArray());
+    }
+
+    private static void checkName(String name) {
+        if (name == null || name.isEmpty() || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_')) {
+            throw new IllegalArgumentException("Invalid name: " + name);
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (!(Character.isLetterOrDigit(ch) || ch == '_')) {
+                throw new IllegalArgumentException("Invalid name: " + name);
+            }
+        }
+    }
+
+    // --- buffer ---
+
+    private void newLine() throws IOException {
+        append('\n');
+    }
+
+    private void append(char ch) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer();
+        }
+        buf[pos++] = ch;
+    }
+
+    private void append(String text) throws IOException {
+        for (int start = 0; start < text.length(); ) {
+            if (pos == buf.length) {
+                flushBuffer();
+            }
+            int end = Math.min(text.length(), start + buf.length - pos);
+            text.getChars(start, end, buf, pos);
+            pos += end - start;
+            start = end;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.write(buf, 0, pos);
+            pos = 0;
+            return;
+        }
+        CharBuffer chars = CharBuffer.wrap(buf, 0, pos);
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, false);
+            drain();
+            if (result.isUnderflow()) {
+                break;
+            }
+        }
+        // a high surrogate at the end waits for the rest of its pair
+        int left = chars.remaining();
+        System.arraycopy(buf, chars.position(), buf, 0, left);
+        pos = left;
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+            if (writer != null) {
+                writer.close();
+                return;
+            }
+            CharBuffer chars = CharBuffer.wrap(buf, 0, pos);
+            encoder.encode(chars, bytes, true);
+            encoder.flush(bytes);
+            drain();
+            pos = 0;
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
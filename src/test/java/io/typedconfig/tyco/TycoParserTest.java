@@ -5,14 +5,26 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * End-to-end tests that replay the shared tyco-test-suite fixtures.
@@ -57,4 +69,611 @@ public class TycoParserTest {
         assertThat(ex.getLocation().getColumn()).isEqualTo(1);
         assertThat(ex.getLine()).isEqualTo("not-valid");
     }
+
+    @Test
+    void reportsMalformedIntsByTheirDigits() {
+        NumberFormatException empty = assertThrows(NumberFormatException.class, () -> TycoParser.loads("int a: 0x\n"));
+        assertThat(empty.getMessage()).isEqualTo(assertThrows(NumberFormatException.class, () -> Long.parseLong("", 16)).getMessage());
+        NumberFormatException trailing = assertThrows(NumberFormatException.class, () -> TycoParser.loads("int a: -12abc\n"));
+        assertThat(trailing.getMessage()).isEqualTo(assertThrows(NumberFormatException.class, () -> Long.parseLong("12abc")).getMessage());
+    }
+
+    @Test
+    void memoryMappedLoadMatchesHeapLoad(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("mapped.tyco");
+        Files.writeString(file, "str city: \"Z\u00fcrich \u6771\u4eac\"\n"
+                + "str[] tags: [caf\u00e9, na\u00efve]\n"
+                + "datetime seen: 2024-01-01 10:00:00 caf\u00e9\n"
+                + "time at: 10:00 \u00e9t\u00e9\n"
+                + "Host:\n *str name:\n  int cores: 4\n  - \u00e9t\u00e9, 8\n  - plain");
+
+        TycoParserOptions options = new TycoParserOptions();
+        options.setMemoryMapped(true);
+
+        Map<String, Object> mapped = TycoParser.load(file.toString(), options);
+        assertThat(mapped).isEqualTo(TycoParser.load(file.toString()));
+        assertThat(mapped.get("city")).isEqualTo("Z\u00fcrich \u6771\u4eac");
+        assertThat(mapped.get("seen")).isEqualTo("2024-01-01T10:00:00 caf\u00e9");
+        assertThat(mapped.get("at")).isEqualTo("10:00 \u00e9t\u00e9");
+
+        Path broken = dir.resolve("broken.tyco");
+        Files.writeString(broken, "str cafe: caf\u00e9\nstr[] xs: [\u00e9\u00e9, x]]\n");
+        TycoParseException ex = assertThrows(TycoParseException.class, () -> TycoParser.load(broken.toString(), options));
+        assertThat(ex.getLocation().getLine()).isEqualTo(2);
+        assertThat(ex.getLocation().getColumn()).isEqualTo(18);
+        assertThat(ex.getLine()).isEqualTo("str[] xs: [\u00e9\u00e9, x]]");
+    }
+
+    @Test
+    void locationsCanBeDroppedAfterRendering() {
+        String source = "Host:\n *str name:\n  int cores: 4\n  - alpha, 8\n  - beta\n";
+
+        TycoContext kept = new TycoContext();
+        new TycoLexer(kept, source, "hosts.tyco").process();
+        kept.renderContent();
+        TycoInstance beta = kept.getStruct("Host").getInstances().get(1);
+        SourceLocation location = beta.getAttribute("name").getLocation();
+        assertThat(location.toString()).isEqualTo("hosts.tyco:5:5");
+        assertThat(location.getLineText()).isEqualTo("  - beta");
+
+        TycoParserOptions options = new TycoParserOptions();
+        options.setRetainLocations(false);
+        TycoContext dropped = new TycoContext(options);
+        new TycoLexer(dropped, source, "hosts.tyco").process();
+        dropped.renderContent();
+        assertThat(dropped.getStruct("Host").getInstances().get(1).getAttribute("name").getLocation()).isNull();
+        assertThat(dropped.toObject()).isEqualTo(kept.toObject());
+    }
+
+    @Test
+    void scanPushesGlobalsSchemasAndInstances() {
+        String source = "str env: prod\n"
+                + "Host:\n *str name:\n  int cores: 4\n  str label: {name}-{cores}\n  - alpha, 8\n  - beta\n";
+        List<String> events = new ArrayList<>();
+        List<Map<String, Object>> hosts = new ArrayList<>();
+
+        TycoParser.scans(source, new TycoEventHandler() {
+            @Override
+            public void onGlobal(String attrName, Object value) {
+                events.add("global " + attrName + "=" + value);
+            }
+
+            @Override
+            public void onStructSchema(TycoStruct struct) {
+                events.add("schema " + struct.getTypeName() + struct.getAttrNames());
+            }
+
+            @Override
+            public void onInstance(String typeName, Map<String, Object> fields) {
+                events.add("instance " + typeName);
+                hosts.add(fields);
+            }
+
+            @Override
+            public void onEnd() {
+                events.add("end");
+            }
+        });
+
+        assertThat(events).containsExactly("global env=prod", "schema Host[name, cores, label]",
+                "instance Host", "instance Host", "end");
+        assertThat(hosts).isEqualTo(TycoParser.loads(source).get("Host"));
+
+        TycoParseException ex = assertThrows(TycoParseException.class, () -> TycoParser.scans(
+                "Host:\n *str name:\n  - a\nLink:\n  Host to:\n  - Host(a)\n", new TycoEventHandler() {}));
+        assertThat(ex.getMessage()).contains("References are not resolved when scanning: Host(...)");
+    }
+
+    @Test
+    void streamInstancesIsLazy(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hosts.tyco");
+        String hosts = "Host:\n *str name:\n  int cores: 4\n  - alpha, 8\n  cores: 2\n  - beta\n"
+                + "Rack:\n *int id:\n  - 1\n";
+        Files.writeString(file, hosts);
+
+        List<Map<String, Object>> streamed = TycoParser.streamInstances(file.toString(), "Host")
+                .collect(Collectors.toList());
+        assertThat(streamed).isEqualTo(TycoParser.loads(hosts).get("Host"));
+        assertThat(streamed.get(1)).containsEntry("cores", 2);
+
+        Files.writeString(file, "Host:\n *str name:\n  - alpha\n  - beta, not-a-field: 1\n");
+        assertThat(TycoParser.streamInstances(file.toString(), "Host").findFirst())
+                .hasValue(Map.of("name", "alpha"));
+    }
+
+    @Test
+    void parallelDirectoryLoadMatchesSequentialLoad(@TempDir Path dir) throws IOException {
+        Files.writeString(dir.resolve("a.tyco"), "Host:\n *str name:\n  int cores: 4\n  - alpha\nPair:\n  int a:\n  int b:\n");
+        Files.writeString(dir.resolve("b.tyco"), "str env: prod\nRack:\n *int id:\n  Host host:\n  Pair size:\n  - 1, Host(alpha), Pair(1, 2)\n");
+        Files.writeString(dir.resolve("c.tyco"), "#include inc.tyco\nHost:\n  - beta, 8\n");
+        Files.writeString(dir.resolve("inc.tyco"), "str label: {env}\n");
+
+        TycoParserOptions parallel = new TycoParserOptions();
+        parallel.setParallelism(4);
+        Map<String, Object> loaded = TycoParser.load(dir.toString(), parallel);
+        assertThat(loaded).isEqualTo(TycoParser.load(dir.toString()));
+        assertThat(loaded.keySet()).containsExactly("env", "label", "Host", "Rack");
+
+        Files.writeString(dir.resolve("d.tyco"), "str env: dev\n");
+        TycoParseException ex = assertThrows(TycoParseException.class, () -> TycoParser.load(dir.toString(), parallel));
+        assertThat(ex.getMessage()).isEqualTo("Duplicate global attribute: env");
+    }
+
+    @Test
+    void parallelRenderMatchesSequentialRender(@TempDir Path dir) throws IOException {
+        StringBuilder content = new StringBuilder("Host:\n *str name:\n  str label: host-{name}\n");
+        for (int i = 0; i < 2000; i++) {
+            content.append("  - h").append(i).append("\n");
+        }
+        content.append("Svc:\n *int id:\n  Host host:\n  str desc: {id}@{host.name}\n");
+        for (int i = 0; i < 2000; i++) {
+            content.append("  - ").append(i).append(", Host(h").append(i % 7).append(")\n");
+        }
+        Path file = dir.resolve("big.tyco");
+        Files.writeString(file, content.toString());
+
+        TycoParserOptions parallel = new TycoParserOptions();
+        parallel.setParallelRender(true);
+        parallel.setParallelRenderThreshold(100);
+        parallel.setParallelism(4);
+        Map<String, Object> expected = TycoParser.load(file.toString());
+        assertThat(TycoParser.load(file.toString(), parallel)).isEqualTo(expected);
+
+        // a template read through a reference from a value that is templated itself
+        Files.writeString(file, content.toString().replace("{id}@{host.name}", "{host.label}"));
+        assertThat(TycoParser.load(file.toString(), parallel)).isEqualTo(TycoParser.load(file.toString()));
+    }
+
+    @Test
+    void includeCacheSharesLexedIncludesBetweenLoads(@TempDir Path dir) throws IOException {
+        Path schema = dir.resolve("schema.tyco");
+        Files.writeString(schema, "str env: prod\nHost:\n *str name:\n  int cores: 4\n  - base\n");
+        Files.writeString(dir.resolve("a.tyco"), "#include schema.tyco\nHost:\n  - alpha, 8\n");
+        Files.writeString(dir.resolve("b.tyco"), "#include schema.tyco\nstr label: {env}\n");
+
+        TycoIncludeCache cache = new TycoIncludeCache(8);
+        TycoParserOptions options = new TycoParserOptions();
+        options.setIncludeCache(cache);
+        for (String file : List.of("a.tyco", "b.tyco", "a.tyco")) {
+            String path = dir.resolve(file).toString();
+            assertThat(TycoParser.load(path, options)).isEqualTo(TycoParser.load(path));
+        }
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(2);
+
+        Files.writeString(schema, "str env: dev\nHost:\n *str name:\n  int cores: 2\n");
+        Files.setLastModifiedTime(schema, FileTime.fromMillis(Files.getLastModifiedTime(schema).toMillis() + 2000));
+        assertThat(TycoParser.load(dir.resolve("a.tyco").toString(), options))
+            .containsEntry("env", "dev")
+            .containsEntry("Host", List.of(Map.of("name", "alpha", "cores", 8)));
+        assertThat(cache.getMisses()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+
+        // lexed again with the options of a load that drops source positions
+        options.setRetainLocations(false);
+        assertThat(TycoParser.load(dir.resolve("a.tyco").toString(), options))
+            .isEqualTo(TycoParser.load(dir.resolve("a.tyco").toString()));
+        assertThat(cache.getMisses()).isEqualTo(3);
+
+        // lexed again with the options of a load that interns
+        TycoInternPool pool = new TycoInternPool();
+        options.setInternPool(pool);
+        TycoContext interned = TycoParser.loadContext(dir.resolve("a.tyco").toString(), options);
+        assertThat(cache.getMisses()).isEqualTo(4);
+        assertThat(interned.getStruct("Host").getAttrNames().get(1)).isSameAs(pool.intern(new String("cores")));
+    }
+
+    @Test
+    void snapshotReadsBackRenderedContent(@TempDir Path dir) throws IOException {
+        Path source = dir.resolve("config.tyco");
+        Files.writeString(source, "str env: prod\nfloat ratio: 0.25\nHost:\n *str name:\n  int cores: 4\n  ?str os: null\n  str label: {name}-{cores}\n"
+            + "  - alpha\n  - beta, 8, 'fedora'\nRack:\n *int id:\n  Host[] hosts:\n  - 1, [Host(alpha), Host(beta)]\n");
+        Path snapshot = dir.resolve("config.tycob");
+        TycoSnapshot.compile(source.toString(), new TycoParserOptions(), snapshot);
+
+        Map<String, Object> read = TycoSnapshot.read(snapshot);
+        assertThat(read).isEqualTo(TycoParser.load(source.toString()));
+        List<?> hosts = (List<?>) read.get("Host");
+        List<?> rackHosts = (List<?>) ((Map<?, ?>) ((List<?>) read.get("Rack")).get(0)).get("hosts");
+        assertThat(rackHosts.get(1)).isSameAs(hosts.get(1));
+
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(snapshot, bytes);
+        TycoParseException ex = assertThrows(TycoParseException.class, () -> TycoSnapshot.read(snapshot));
+        assertThat(ex.getMessage()).startsWith("Snapshot checksum mismatch");
+    }
+
+    @Test
+    void watcherPublishesReloadedContent(@TempDir Path dir) throws Exception {
+        Path schema = dir.resolve("schema.tyco");
+        Files.writeString(schema, "Host:\n *str name:\n  int cores: 4\n");
+        Files.writeString(dir.resolve("hosts.tyco"), "#include schema.tyco\nHost:\n  - alpha\n");
+        Files.writeString(dir.resolve("env.tyco"), "str env: prod\n");
+
+        try (TycoWatcher watcher = new TycoWatcher(dir.toString())) {
+            assertThat(watcher.get()).isEqualTo(TycoParser.load(dir.toString()));
+            BlockingQueue<Map<String, Object>> reloads = new LinkedBlockingQueue<>();
+            watcher.setDebounceMillis(20);
+            watcher.addListener(reloads::add);
+            watcher.start();
+
+            Files.writeString(schema, "Host:\n *str name:\n  int cores: 16\n");
+            Map<String, Object> reloaded = reloads.poll(10, TimeUnit.SECONDS);
+            assertThat(reloaded).isNotNull().isSameAs(watcher.get());
+            assertThat(reloaded.get("Host")).isEqualTo(List.of(Map.of("name", "alpha", "cores", 16)));
+            assertThat(reloaded).isEqualTo(TycoParser.load(dir.toString()));
+
+            // a file written faster than the debounce period neither reloads nor holds back a reload
+            Thread churn = new Thread(() -> {
+                try {
+                    for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                        Files.writeString(dir.resolve("app.log"), "line " + i + "\n");
+                        Thread.sleep(5);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // stopped
+                }
+            });
+            churn.start();
+            try {
+                assertThat(reloads.poll(300, TimeUnit.MILLISECONDS)).isNull();
+                Files.writeString(schema, "Host:\n *str name:\n  int cores: 32\n");
+                reloaded = reloads.poll(10, TimeUnit.SECONDS);
+                assertThat(reloaded).isNotNull();
+                assertThat(reloaded.get("Host")).isEqualTo(List.of(Map.of("name", "alpha", "cores", 32)));
+            } finally {
+                churn.interrupt();
+            }
+        }
+    }
+
+    @Test
+    void watcherReusesFilesThatShareStructs(@TempDir Path dir) throws Exception {
+        Path schema = dir.resolve("a-schema.tyco");
+        Path services = dir.resolve("c-services.tyco");
+        Files.writeString(schema, "str env: prod\nHost:\n *str name:\n  int cores: 4\n  - alpha\n");
+        Files.writeString(dir.resolve("b-hosts.tyco"), "Host:\n  - beta, 8\n");
+        Files.writeString(services, "Service:\n *str name:\n  Host host:\n  - web, Host(alpha)\n");
+
+        try (TycoWatcher watcher = new TycoWatcher(dir.toString())) {
+            assertThat(watcher.getLexedFiles()).isEqualTo(3);
+            BlockingQueue<Map<String, Object>> reloads = new LinkedBlockingQueue<>();
+            watcher.setDebounceMillis(20);
+            watcher.addListener(reloads::add);
+            watcher.start();
+
+            // rows added to, and references to, a struct of another file are kept
+            Files.writeString(services, "Service:\n *str name:\n  Host host:\n  - web, Host(beta)\n");
+            assertThat(reloads.poll(10, TimeUnit.SECONDS)).isEqualTo(TycoParser.load(dir.toString()));
+            assertThat(watcher.getReusedFiles()).isEqualTo(2);
+            assertThat(watcher.getLexedFiles()).isEqualTo(1);
+
+            Files.writeString(schema, "str env: dev\nHost:\n *str name:\n  int cores: 4\n  - alpha\n");
+            assertThat(reloads.poll(10, TimeUnit.SECONDS)).isEqualTo(TycoParser.load(dir.toString()));
+            assertThat(watcher.getReusedFiles()).isEqualTo(2);
+
+            // a different schema is lexed against again
+            Files.writeString(schema, "Host:\n *str name:\n  float cores: 4\n  - alpha\n");
+            Map<String, Object> reloaded = reloads.poll(10, TimeUnit.SECONDS);
+            assertThat(reloaded).isEqualTo(TycoParser.load(dir.toString()));
+            assertThat(reloaded.get("Host")).isEqualTo(List.of(Map.of("name", "alpha", "cores", 4.0),
+                Map.of("name", "beta", "cores", 8.0)));
+            assertThat(watcher.getLexedFiles()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void updatesReRenderDependents(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hosts.tyco");
+        Files.writeString(file, "str tz: UTC\nstr banner: \"{tz} time\"\n"
+            + "Host:\n *str name:\n  str os:\n  - alpha, Fedora\n  - beta, Debian\n"
+            + "Svc:\n *str id:\n  Host host:\n  str desc: \"{id} on {host.os}\"\n  - web, Host(alpha)\n");
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+
+        context.updateGlobal("tz", "CET");
+        context.updateInstance("Host", List.of("alpha"), Map.of("os", "Arch"));
+        Map<String, Object> updated = context.toObject();
+        assertThat(updated.get("banner")).isEqualTo("CET time");
+        assertThat(updated.get("Svc")).isEqualTo(List.of(Map.of("id", "web", "host", Map.of("name", "alpha", "os", "Arch"), "desc", "web on Arch")));
+
+        context.updateInstance("Svc", List.of("web"), Map.of("host", "Host(beta)"));
+        assertThrows(TycoParseException.class, () -> context.updateInstance("Svc", List.of("web"), Map.of("host", "Host(gamma)")));
+        Files.writeString(file, "str tz: CET\nstr banner: \"{tz} time\"\n"
+            + "Host:\n *str name:\n  str os:\n  - alpha, Arch\n  - beta, Debian\n"
+            + "Svc:\n *str id:\n  Host host:\n  str desc: \"{id} on {host.os}\"\n  - web, Host(beta)\n");
+        assertThat(context.toObject()).isEqualTo(TycoParser.load(file.toString()));
+    }
+
+    @Test
+    void defaultsWithoutTemplatesAreShared(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hosts.tyco");
+        Files.writeString(file, "Host:\n *str name:\n  str os: Fedora\n  int[] ports: [80, 443]\n  str label: \"{name}\"\n  - alpha\n  - beta\n");
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+        List<TycoInstance> hosts = context.getStruct("Host").getInstances();
+        assertThat(hosts.get(0).getAttribute("os")).isSameAs(hosts.get(1).getAttribute("os"));
+        assertThat(hosts.get(0).getAttribute("ports")).isSameAs(hosts.get(1).getAttribute("ports"));
+        assertThat(hosts.get(0).getAttribute("label")).isNotSameAs(hosts.get(1).getAttribute("label"));
+
+        context.updateInstance("Host", List.of("alpha"), Map.of("os", "Arch"));
+        assertThat(context.toObject().get("Host")).isEqualTo(List.of(
+            Map.of("name", "alpha", "os", "Arch", "ports", List.of(80, 443), "label", "alpha"),
+            Map.of("name", "beta", "os", "Fedora", "ports", List.of(80, 443), "label", "beta")));
+    }
+
+    @Test
+    void bindsToPojosSharingReferencedInstances(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hosts.tyco");
+        Files.writeString(file, "str env: prod\nint[] ports: [80, 443]\nHost:\n *str name:\n  int cores: 4\n  - alpha\n  - beta, 8\n"
+            + "Svc:\n *str id:\n  Host host:\n  str desc: \"{id} on {host.name}\"\n  - web, Host(alpha)\n  - db, Host(alpha)\n");
+        BoundConfig config = TycoBinder.load(file.toString(), BoundConfig.class);
+        assertThat(config.env).isEqualTo("prod");
+        assertThat(config.ports).containsExactly(80, 443);
+        assertThat(config.host).extracting(h -> h.name + ":" + h.cores).containsExactly("alpha:4", "beta:8");
+        assertThat(config.svc[0].desc).isEqualTo("web on alpha");
+        assertThat(config.svc[0].host).isSameAs(config.host.get(0)).isSameAs(config.svc[1].host);
+
+        assertThrows(TycoParseException.class, () -> TycoBinder.bindInstances(
+            TycoParser.loadContext(file.toString(), new TycoParserOptions()), "Host", BoundPort.class));
+    }
+
+    @Test
+    void scansStructColumns(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("ports.tyco");
+        Files.writeString(file, "Port:\n *int id:\n  str proto: tcp\n  ?int vlan:\n  bool open:\n  int[] peers: []\n"
+            + "  - 1, vlan: 10, open: true\n  - 2, udp, null, false\n  - 3, vlan: 3000000000, open: true\n");
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+        TycoColumns columns = context.getStruct("Port").toColumns();
+        assertThat(columns.getAttrNames()).containsExactly("id", "proto", "vlan", "open");
+        assertThat(columns.get("vlan", 0)).isEqualTo(10);
+        assertThat(columns.get("vlan", 2)).isEqualTo(3000000000L);
+        assertThat(columns.isNull("vlan", 1)).isTrue();
+
+        BitSet open = columns.select("open", true);
+        assertThat(open.stream()).containsExactly(0, 2);
+        assertThat(columns.longStats("vlan", open).getSum()).isEqualTo(3000000010L);
+        assertThat(columns.countBy("proto", null)).isEqualTo(Map.of("tcp", 2, "udp", 1));
+        assertThat(columns.selectLongs("id", id -> id > 1).cardinality()).isEqualTo(2);
+
+        context.updateInstance("Port", List.of(2), Map.of("proto", "tcp"));
+        assertThat(context.getStruct("Port").toColumns().count("proto", "tcp")).isEqualTo(3);
+    }
+
+    @Test
+    void loadsStructsStraightIntoColumns(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("ports.tyco");
+        Files.writeString(file, "Port:\n *int id:\n  str proto: tcp\n  ?int vlan:\n  bool open:\n  decimal cost: 1.50\n  int[] peers: []\n"
+            + "  - 1, vlan: 10, open: true, peers: [2]\n  - 2, udp, null, false\n  - 3, vlan: 3000000000, open: true\n");
+        TycoColumns loaded = TycoParser.loadColumns(file.toString(), "Port");
+        TycoColumns copied = TycoParser.loadContext(file.toString(), new TycoParserOptions()).getStruct("Port").toColumns();
+        assertThat(loaded.getAttrNames()).isEqualTo(copied.getAttrNames()).containsExactly("id", "proto", "vlan", "open", "cost");
+        assertThat(loaded.size()).isEqualTo(3);
+        for (int row = 0; row < loaded.size(); row++) {
+            assertThat(loaded.getRow(row)).isEqualTo(copied.getRow(row));
+        }
+        assertThat(loaded.getRow(0)).containsEntry("peers", List.of(2)).containsEntry("cost", new BigDecimal("1.50"));
+        assertThat(loaded.get("vlan", 2)).isEqualTo(3000000000L);
+        assertThat(loaded.select("open", true).stream()).containsExactly(0, 2);
+        assertThat(loaded.countBy("proto", null)).isEqualTo(Map.of("tcp", 2, "udp", 1));
+
+        assertThat(TycoParser.loadColumns(file.toString(), "Port", new TycoParserOptions()).getRow(1).get("vlan")).isNull();
+        assertThrows(IllegalArgumentException.class, () -> TycoParser.loadColumns(file.toString(), "Host"));
+    }
+
+    @Test
+    void internsEqualValues(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hosts.tyco");
+        Files.writeString(file, "Host:\n *str name:\n  str os:\n  int cores:\n  - alpha, Fedora, 4000\n  - beta, \"Fedora\", 4000\n");
+        TycoParserOptions options = new TycoParserOptions();
+        options.setInterning(true);
+        TycoContext context = TycoParser.loadContext(file.toString(), options);
+        List<TycoInstance> hosts = context.getStruct("Host").getInstances();
+        assertThat(hosts.get(0).getAttribute("os").getRendered()).isSameAs(hosts.get(1).getAttribute("os").getRendered());
+        assertThat(hosts.get(0).getAttribute("cores").getRendered()).isSameAs(hosts.get(1).getAttribute("cores").getRendered());
+        assertThat(context.getInternPool().getHits()).isGreaterThanOrEqualTo(2);
+        assertThat(context.getInternPool().getSavedBytes()).isPositive();
+        assertThat(TycoParser.loadContext(file.toString(), new TycoParserOptions()).getInternPool()).isNull();
+    }
+
+    @Test
+    void findsInstancesByPrimaryKey(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("ports.tyco");
+        Files.writeString(file, "Host:\n *str name:\n  - alpha\n  - beta\nPort:\n *int id:\n  Host host:\n  - 80, Host(alpha)\n  - 3000000000, Host(beta)\n"
+            + "Route:\n *str region:\n *int vlan:\n  - eu, 1\n  - us, 1\n");
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+        TycoStruct ports = context.getStruct("Port");
+        assertThat(ports.findByKey(80).getAttribute("host").getRendered()).isEqualTo(Map.of("name", "alpha"));
+        assertThat(ports.findByKey(3000000000L)).isSameAs(ports.findByKey((Object) 3000000000L));
+        assertThat(ports.findByKey(81)).isNull();
+        assertThat(context.getStruct("Host").findByKey("beta")).isNotNull();
+        assertThat(context.getStruct("Route").findByKey("us", 1).getAttribute("region").getRendered()).isEqualTo("us");
+        assertThrows(IllegalArgumentException.class, () -> context.getStruct("Route").findByKey("us"));
+
+        context.updateInstance("Port", List.of(80), Map.of("id", "81"));
+        assertThat(ports.findByKey(80)).isNull();
+        assertThat(ports.findByKey(81)).isNotNull();
+    }
+
+    @Test
+    void queriesInstancesThroughIndexes(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hosts.tyco");
+        Files.writeString(file, "Host:\n *str name:\n  str os: Fedora\n  int cores: 4\n"
+            + "  - prod-1\n  - prod-2, Debian, 8\n  - dev-1, cores: 16\n  - prod-3, cores: 8\n");
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+        assertThat(names(context.query("Host").where("os", "Fedora").list())).containsExactly("prod-1", "dev-1", "prod-3");
+        assertThat(names(context.query("Host").where("os", "Fedora").where("cores", 8L).list())).containsExactly("prod-3");
+        assertThat(names(context.query("Host").whereBetween("cores", 5, null).list())).containsExactly("prod-2", "dev-1", "prod-3");
+        assertThat(names(context.query("Host").whereStartsWith("name", "prod-").whereBetween("cores", null, 8).list()))
+            .containsExactly("prod-1", "prod-2", "prod-3");
+        assertThat(context.query("Host").where("os", "Arch").first()).isNull();
+        assertThrows(TycoParseException.class, () -> context.query("Host").where("ram", 1));
+
+        context.updateInstance("Host", List.of("dev-1"), Map.of("os", "Arch"));
+        assertThat(names(context.query("Host").where("os", "Arch").list())).containsExactly("dev-1");
+    }
+
+    @Test
+    void resolvesRepeatedReferencesOnce(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("services.tyco");
+        Files.writeString(file, "Host:\n *str name:\n  - alpha\n  - beta\nService:\n *str name:\n  Host host:\n"
+            + "  - web, Host(alpha)\n  - api, Host(alpha)\n  - db, Host(name: alpha)\n  - cache, Host(beta)\n");
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+        TycoStruct services = context.getStruct("Service");
+        TycoReference web = (TycoReference) services.findByKey("web").getAttribute("host");
+        TycoReference api = (TycoReference) services.findByKey("api").getAttribute("host");
+        TycoReference db = (TycoReference) services.findByKey("db").getAttribute("host");
+        assertThat(api.getObject()).isSameAs(web.getObject());
+        assertThat(db.getObject()).isSameAs(web.getObject());
+        assertThat(services.findByKey("cache").getAttribute("host").getRendered()).isEqualTo(Map.of("name", "beta"));
+
+        // the remembered resolution does not outlive the key it was found under
+        assertThrows(TycoParseException.class, () -> context.updateInstance("Host", List.of("alpha"), Map.of("name", "gamma")));
+        assertThat(services.findByKey("api").getAttribute("host").getRendered()).isEqualTo(Map.of("name", "alpha"));
+    }
+
+    @Test
+    void materializesInstancesOnce(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("services.tyco");
+        Files.writeString(file, "Host:\n *str name:\n  str[] tags:\n  - alpha, [web]\nService:\n *str name:\n  Host host:\n"
+            + "  - web, Host(alpha)\n  - api, Host(alpha)\n");
+        TycoParserOptions options = new TycoParserOptions();
+        options.setSharedMaterialization(true);
+        TycoContext context = TycoParser.loadContext(file.toString(), options);
+        Map<String, Object> object = context.toObject();
+        List<?> services = (List<?>) object.get("Service");
+        Object host = ((Map<?, ?>) services.get(0)).get("host");
+        assertThat(((Map<?, ?>) services.get(1)).get("host")).isSameAs(host);
+        assertThat(((List<?>) object.get("Host")).get(0)).isSameAs(host);
+        assertThat(object).isEqualTo(TycoParser.load(file.toString()));
+        assertThrows(UnsupportedOperationException.class, () -> ((Map<String, Object>) host).put("name", "beta"));
+        TycoInstance alpha = context.getStruct("Host").findByKey("alpha");
+        assertThat(alpha.getRendered()).isSameAs(alpha.getRendered());
+        Map<String, Object> rendered = (Map<String, Object>) alpha.getRendered();
+        assertThrows(UnsupportedOperationException.class, () -> rendered.put("name", "beta"));
+        assertThrows(UnsupportedOperationException.class, () -> ((List<Object>) rendered.get("tags")).add("db"));
+
+        context.updateInstance("Host", List.of("alpha"), Map.of("tags", "[db]"));
+        assertThat(context.toObject().get("Host")).isEqualTo(List.of(Map.of("name", "alpha", "tags", List.of("db"))));
+        assertThat(alpha.getRendered()).isNotSameAs(context.getStruct("Host").findByKey("alpha").getRendered());
+    }
+
+    @Test
+    void detectsReferenceCyclesWhenMaterializing() {
+        String source = "Node:\n *str name:\n  Node next:\n  - a, Node(b)\n  - b, Node(a)\n";
+        TycoParseException ex = assertThrows(TycoParseException.class, () -> TycoParser.loads(source));
+        assertThat(ex.getMessage()).contains("Reference cycle: Node(a) -> Node(b) -> Node(a)");
+
+        TycoContext context = new TycoContext();
+        new TycoLexer(context, source, "nodes.tyco").process();
+        context.renderContent();
+        Map<?, ?> a = (Map<?, ?>) context.getStruct("Node").findByKey("a").getObject();
+        assertThat(((Map<?, ?>) ((Map<?, ?>) a.get("next")).get("next"))).isSameAs(a);
+    }
+
+    @Test
+    void writeJsonMatchesToObject(@TempDir Path dir) throws IOException {
+        StringBuilder source = new StringBuilder("str env: \"tab\\there \\\"q\\\" \u00e9t\u00e9 \ud83d\ude80\"\n"
+            + "decimal price: 12.50\nfloat ratio: 1e10\nint big: 3000000000\n?str none: null\nint[] ports: [80, -443]\n"
+            + "Host:\n *str name:\n  float load:\n  - alpha, 0.5\nPort:\n *int id:\n  Host host:\n  str label: {host.name}-{id}\n");
+        for (int i = 0; i < 2000; i++) {
+            source.append("  - ").append(i).append(", Host(alpha)\n");
+        }
+        source.append("Empty:\n *str name:\n");
+        Path file = dir.resolve("ports.tyco");
+        Files.writeString(file, source);
+        TycoContext context = TycoParser.loadContext(file.toString(), new TycoParserOptions());
+
+        String expected = MAPPER.writeValueAsString(context.toObject());
+        StringWriter writer = new StringWriter();
+        context.writeJson(writer);
+        assertThat(writer.toString()).isEqualTo(expected);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        context.writeJson(bytes);
+        assertThat(bytes.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+
+        TycoContext cyclic = new TycoContext();
+        new TycoLexer(cyclic, "Node:\n *str name:\n  Node next:\n  - a, Node(a)\n", "nodes.tyco").process();
+        cyclic.renderContent();
+        assertThrows(TycoParseException.class, () -> cyclic.writeJson(new StringWriter()));
+    }
+
+    @Test
+    void writerRoundTripsThroughParser(@TempDir Path dir) throws IOException {
+        List<String> texts = List.of("plain", "two words", "it's", "{name} and \\u0041", "line\nbreak\ttab \"q\"",
+            "null", "", " padded ", "a, b # c)", "'''", "ends with '", "été 🚀", "back\\slash\\");
+        Path file = dir.resolve("written.tyco");
+        try (TycoWriter out = new TycoWriter(Files.newOutputStream(file))) {
+            out.global("env", "str", "prod");
+            out.global("ratio", "float", 0.1 + 0.2);
+            out.global("ports", "int", List.of(80, 443));
+            out.global("note", "str", true, false, null);
+            out.struct("Host")
+                .attribute("name", "str", true, false, false)
+                .attribute("cores", "int", false, false, false, 4)
+                .attribute("tags", "str", false, true, true)
+                .attribute("price", "decimal", false, false, false, new BigDecimal("12.50"));
+            for (int i = 0; i < texts.size(); i++) {
+                out.instance("h" + i, i, List.of(texts.get(i)));
+            }
+            out.instance(Map.of("name", "kw", "tags", List.of()));
+            out.struct("Port")
+                .attribute("id", "int", true, false, false)
+                .attribute("host", "Host", false, false, false)
+                .attribute("since", "date", false, false, false);
+            out.instance(3000000000L, TycoWriter.reference("Host", "h1"), "2024-01-31");
+        }
+
+        Map<String, Object> loaded = TycoParser.load(file.toString());
+        assertThat(loaded.get("ratio")).isEqualTo(0.1 + 0.2);
+        assertThat(loaded.get("note")).isNull();
+        List<?> hosts = (List<?>) loaded.get("Host");
+        for (int i = 0; i < texts.size(); i++) {
+            assertThat(((Map<?, ?>) hosts.get(i)).get("tags")).isEqualTo(List.of(texts.get(i)));
+        }
+        assertThat(hosts.get(texts.size())).isEqualTo(Map.of("name", "kw", "cores", 4, "tags", List.of(), "price", 12.5));
+        assertThat(loaded.get("Port")).isEqualTo(List.of(Map.of("id", 3000000000L, "since", "2024-01-31",
+            "host", Map.of("name", "h1", "cores", 1, "tags", List.of("two words"), "price", 12.5))));
+
+        StringWriter text = new StringWriter();
+        try (TycoWriter out = new TycoWriter(text)) {
+            out.struct("Host").attribute("name", "str", true, false, false).instance("alpha");
+        }
+        assertThat(text.toString()).isEqualTo("Host:\n *str name:\n  - alpha\n");
+        assertThrows(IllegalArgumentException.class, () -> new TycoWriter(new StringWriter()).global("port", "int", "80"));
+        assertThrows(IllegalArgumentException.class, () -> new TycoWriter(new StringWriter()).global("big", "int", Long.MIN_VALUE));
+        assertThrows(IllegalArgumentException.class,
+            () -> new TycoWriter(new StringWriter()).global("big", "int", BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)));
+        StringWriter wide = new StringWriter();
+        try (TycoWriter out = new TycoWriter(wide)) {
+            out.global("big", "int", BigInteger.valueOf(Long.MIN_VALUE + 1));
+        }
+        assertThat(TycoParser.loads(wide.toString()).get("big")).isEqualTo(Long.MIN_VALUE + 1);
+    }
+
+    private static List<Object> names(List<TycoInstance> instances) {
+        return instances.stream().map(instance -> instance.getAttribute("name").getRendered()).collect(Collectors.toList());
+    }
+
+    static class BoundConfig {
+        String env;
+        long[] ports;
+        List<BoundHost> host;
+        BoundSvc[] svc;
+    }
+
+    static class BoundHost {
+        String name;
+        int cores;
+    }
+
+    static class BoundPort {
+        int name;
+    }
+
+    static class BoundSvc {
+        String id;
+        BoundHost host;
+        String desc;
+    }
+
 }